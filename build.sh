@@ -9,7 +9,7 @@ TARGET=jxio.jar
 BIN_FOLDER=$TOP_DIR/bin
 LIB_FOLDER=$TOP_DIR/src/lib
 SRC_JAVA_FOLDER=$TOP_DIR/src/java
-SRC_JAVA_FILES="$SRC_JAVA_FOLDER/com/mellanox/jxio/*.java $SRC_JAVA_FOLDER/com/mellanox/jxio/impl/*.java"
+SRC_JAVA_FILES="$SRC_JAVA_FOLDER/com/mellanox/jxio/*.java $SRC_JAVA_FOLDER/com/mellanox/jxio/impl/*.java $SRC_JAVA_FOLDER/com/mellanox/jxio/codec/*.java"
 NATIVE_LIBS="libjxio.so libxio.so"
 
 export PATH=$BULLSEYE_DIR:$PATH
@@ -55,7 +55,7 @@ fi
 echo "Build JXIO... (java code)"
 cd $TOP_DIR
 mkdir -p docs
-javadoc -classpath $LIB_FOLDER/commons-logging.jar -d $TOP_DIR/docs -sourcepath src/java/   com.mellanox.jxio
+javadoc -classpath $LIB_FOLDER/commons-logging.jar -d $TOP_DIR/docs -sourcepath src/java/   com.mellanox.jxio com.mellanox.jxio.codec
 javac -cp $LIB_FOLDER/commons-logging.jar -d $BIN_FOLDER $SRC_JAVA_FILES
 if [[ $? != 0 ]] ; then
     exit 1
@@ -141,6 +141,10 @@ public class HelloServer {
 			// eqh.stop();
 		}
 
+		public void onOneWay(Msg msg) {
+			LOG.info("[SUCCESS] Got a one way message, no response is sent");
+		}
+
 		public boolean onMsgError(Msg msg, EventReason reason) {
 			LOG.info("[ERROR] onMsgErrorCallback. reason=" + reason);
 			return true;
@@ -30,6 +30,7 @@
 #include "Context.h"
 #include "Utils.h"
 #include "MsgPool.h"
+#include "MemoryRegion.h"
 #include "Bridge.h"
 
 static jclass cls;
@@ -427,6 +428,63 @@ extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_deleteMsgPo
 	delete pool;
 }
 
+extern "C" JNIEXPORT jlong JNICALL Java_com_mellanox_jxio_impl_Bridge_registerMemoryRegionNative(JNIEnv *env, jclass cls, jobject jbuf)
+{
+	char *buf = (char*)env->GetDirectBufferAddress(jbuf);
+	jlong buf_size = env->GetDirectBufferCapacity(jbuf);
+	if (buf == NULL || buf_size <= 0) {
+		LOG_ERR("ByteBuffer is not a direct buffer");
+		return 0;
+	}
+	MemoryRegion *region = new MemoryRegion(buf, buf_size);
+	if (region == NULL) {
+		LOG_ERR("memory allocation failed");
+		return 0;
+	}
+	if (region->error_creating) {
+		delete (region);
+		return 0;
+	}
+	return (jlong)(intptr_t) region;
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_deregisterMemoryRegionNative(JNIEnv *env, jclass cls, jlong ptr_region)
+{
+	MemoryRegion *region = (MemoryRegion*) ptr_region;
+	delete (region);
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_setMsgOutRegionNative(JNIEnv *env, jclass cls, jlong ptr_msg, jlong ptr_region, jint offset)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	MemoryRegion *region = (MemoryRegion*) ptr_region;
+	msg->set_out_region(region->buf + offset, region->get_xio_mr());
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_resetMsgOutRegionNative(JNIEnv *env, jclass cls, jlong ptr_msg)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	msg->reset_out_region();
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_setMsgNotifySendCompleteNative(JNIEnv *env, jclass cls, jlong ptr_msg, jboolean notify)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	msg->set_notify_send_complete(notify);
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_setMsgDeadlineNative(JNIEnv *env, jclass cls, jlong ptr_msg, jlong remaining_usec)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	msg->set_deadline(remaining_usec);
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_setMsgReplyStatusNative(JNIEnv *env, jclass cls, jlong ptr_msg, jint status)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	msg->set_reply_status(status);
+}
+
 extern "C" JNIEXPORT jboolean JNICALL Java_com_mellanox_jxio_impl_Bridge_serverSendResponseNative(JNIEnv *env, jclass cls, jlong ptr_msg, jint size, jlong ptr_ses_server)
 {
 	ServerSession *ses = (ServerSession*) ptr_ses_server;
@@ -439,6 +497,42 @@ extern "C" JNIEXPORT jboolean JNICALL Java_com_mellanox_jxio_impl_Bridge_serverS
 	return msg->send_reply(size);
 }
 
+//the batch arrays are copied in chunks to the stack: sending may log through Bridge.logToJava, so the arrays can not
+//be held with GetPrimitiveArrayCritical while sending, and Get<Type>ArrayElements may copy the whole array
+#define SEND_BATCH_CHUNK	64
+
+extern "C" JNIEXPORT jint JNICALL Java_com_mellanox_jxio_impl_Bridge_serverSendResponsesNative(JNIEnv *env, jclass cls, jlongArray ptr_msgs, jintArray sizes, jlongArray ptr_ses_servers, jint count)
+{
+	if (count < 0 || count > env->GetArrayLength(ptr_msgs) || count > env->GetArrayLength(sizes) || count > env->GetArrayLength(ptr_ses_servers)) {
+		LOG_ERR("count %d is out of the bounds of the response arrays", count);
+		return 0;
+	}
+
+	jlong msgs[SEND_BATCH_CHUNK];
+	jint msg_sizes[SEND_BATCH_CHUNK];
+	jlong sessions[SEND_BATCH_CHUNK];
+	int sent = 0;
+	for (int start = 0; start < count; start += SEND_BATCH_CHUNK) {
+		int len = (count - start < SEND_BATCH_CHUNK) ? count - start : SEND_BATCH_CHUNK;
+		env->GetLongArrayRegion(ptr_msgs, start, len, msgs);
+		env->GetIntArrayRegion(sizes, start, len, msg_sizes);
+		env->GetLongArrayRegion(ptr_ses_servers, start, len, sessions);
+		for (int i = 0; i < len; i++) {
+			ServerSession *ses = (ServerSession*) sessions[i];
+			Msg * msg = (Msg*) msgs[i];
+			if (ses->get_is_closing()) {
+				LOG_DBG("trying to send message while session is closing. Releasing msg back to pool");
+				msg->release_to_pool();
+				continue;
+			}
+			if (msg->send_reply(msg_sizes[i])) {
+				sent++;
+			}
+		}
+	}
+	return sent;
+}
+
 extern "C" JNIEXPORT jboolean JNICALL Java_com_mellanox_jxio_impl_Bridge_clientSendReqNative(JNIEnv *env, jclass cls, jlong ptr_session, jlong ptr_msg, jint size)
 {
 	Msg * msg = (Msg*) ptr_msg;
@@ -446,6 +540,39 @@ extern "C" JNIEXPORT jboolean JNICALL Java_com_mellanox_jxio_impl_Bridge_clientS
 	return client->send_msg(msg, size);
 }
 
+extern "C" JNIEXPORT jint JNICALL Java_com_mellanox_jxio_impl_Bridge_clientSendReqsNative(JNIEnv *env, jclass cls, jlong ptr_session, jlongArray ptr_msgs, jintArray sizes, jint count)
+{
+	Client * client = (Client*)ptr_session;
+	if (count < 0 || count > env->GetArrayLength(ptr_msgs) || count > env->GetArrayLength(sizes)) {
+		LOG_ERR("count %d is out of the bounds of the request arrays", count);
+		return 0;
+	}
+
+	// stop at the first failure: the requests that were posted are always a prefix of the array
+	jlong msgs[SEND_BATCH_CHUNK];
+	jint msg_sizes[SEND_BATCH_CHUNK];
+	int sent = 0;
+	while (sent < count) {
+		int len = (count - sent < SEND_BATCH_CHUNK) ? count - sent : SEND_BATCH_CHUNK;
+		env->GetLongArrayRegion(ptr_msgs, sent, len, msgs);
+		env->GetIntArrayRegion(sizes, sent, len, msg_sizes);
+		for (int i = 0; i < len; i++) {
+			if (!client->send_msg((Msg*) msgs[i], msg_sizes[i])) {
+				return sent;
+			}
+			sent++;
+		}
+	}
+	return sent;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL Java_com_mellanox_jxio_impl_Bridge_clientSendOneWayNative(JNIEnv *env, jclass cls, jlong ptr_session, jlong ptr_msg, jint size)
+{
+	Msg * msg = (Msg*) ptr_msg;
+	Client * client = (Client*)ptr_session;
+	return client->send_msg_one_way(msg, size);
+}
+
 extern "C" JNIEXPORT void JNICALL Java_com_mellanox_jxio_impl_Bridge_releaseMsgServerSideNative(JNIEnv *env, jclass cls, long ptr_msg)
 {
 	Msg * msg = (Msg*) ptr_msg;
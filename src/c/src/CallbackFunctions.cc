@@ -51,8 +51,26 @@ int on_msg_send_complete_callback(struct xio_session *session,
 {
 	LOG_TRACE("got on_msg_send_complete_callback for msg=%p", msg->user_context);
 
+	if (msg->type == XIO_MSG_TYPE_ONE_WAY) {
+		//client side - let Java return the msg to its pool
+		Contexable *cntxbl = (Contexable*) cb_prv_data;
+		Context *ctx = cntxbl->get_ctx_class();
+		char* buf = ctx->event_queue->get_buffer();
+		int sizeWritten = ctx->events->writeOnMsgSendCompleteEvent(buf, msg->user_context, session, msg);
+		done_event_creating(ctx, sizeWritten);
+		return 0;
+	}
+
 	//must release the message
 	Msg *msg_from_pool = (Msg*) msg->user_context;
+	if (msg_from_pool->get_notify_send_complete()) {
+		//server side - Java waits for the send to complete, e.g. before reusing the memory attached to the msg
+		Contexable *cntxbl = (Contexable*) cb_prv_data;
+		Context *ctx = cntxbl->get_ctx_class();
+		char* buf = ctx->event_queue->get_buffer();
+		int sizeWritten = ctx->events->writeOnMsgSendCompleteEvent(buf, msg->user_context, session, msg);
+		done_event_creating(ctx, sizeWritten);
+	}
 	msg_from_pool->release_to_pool();
 
 	LOG_TRACE("finished on_msg_send_complete_callback for msg=%p", msg->user_context);
@@ -71,6 +89,21 @@ int on_msg_callback(struct xio_session *session, struct xio_msg *msg,
 	Context *ctx = cntxbl->get_ctx_class();
 
 	const int msg_size = (msg->in.data_iovlen > 0) ? msg->in.data_iov[0].iov_len : 0;
+	//a request with a deadline carries the time left until the client gives up on it in its header,
+	//a response carries the status set by the server (e.g. the request was rejected)
+	int64_t deadline_usec = 0;
+	int32_t status = 0;
+	if (msg->type == XIO_MSG_TYPE_REQ || msg->type == XIO_MSG_TYPE_ONE_WAY) {
+		if (msg->in.header.iov_base != NULL && msg->in.header.iov_len >= sizeof(uint64_t)) {
+			uint64_t be;
+			memcpy(&be, msg->in.header.iov_base, sizeof(be));
+			deadline_usec = be64toh(be);
+		}
+	} else if (msg->in.header.iov_base != NULL && msg->in.header.iov_len >= sizeof(uint32_t)) {
+		uint32_t be;
+		memcpy(&be, msg->in.header.iov_base, sizeof(be));
+		status = ntohl(be);
+	}
 
 	if (msg->user_context == NULL) { //it's a request with a small buffer on server side
 		Msg* msg_from_pool = ctx->msg_pools.get_msg_from_pool(msg->in.data_iov[0].iov_len, msg->out.data_iov[0].iov_len);
@@ -84,14 +117,16 @@ int on_msg_callback(struct xio_session *session, struct xio_msg *msg,
 	char* buf = ctx->event_queue->get_buffer();
 	int sizeWritten;
 	if (msg->type == XIO_MSG_TYPE_REQ) { //it's request
-		sizeWritten = ctx->events->writeOnReqReceivedEvent(buf, msg->user_context, msg_size, session);
+		sizeWritten = ctx->events->writeOnReqReceivedEvent(buf, msg->user_context, msg_size, session, deadline_usec);
+	} else if (msg->type == XIO_MSG_TYPE_ONE_WAY) { //it's one way msg on server side. released once Java is done
+		sizeWritten = ctx->events->writeOnOneWayReceivedEvent(buf, msg->user_context, msg_size, session, deadline_usec);
 	} else { //it's response
-		sizeWritten = ctx->events->writeOnReplyReceivedEvent(buf, msg->user_context, msg_size);
+		sizeWritten = ctx->events->writeOnReplyReceivedEvent(buf, msg->user_context, msg_size, status);
 	}
 
 	done_event_creating(ctx, sizeWritten);
 
-	if (msg->type == XIO_MSG_TYPE_REQ) { //it's a request so it is server side
+	if (msg->type == XIO_MSG_TYPE_REQ || msg->type == XIO_MSG_TYPE_ONE_WAY) { //it's server side
 
 	} else { //it's response so it is client side
 		xio_release_response(msg);
@@ -109,8 +144,8 @@ int on_msg_error_callback(struct xio_session *session, enum xio_status error,
 
 	char* buf = ctx->event_queue->get_buffer();
 	int sizeWritten;
-	if (msg->type == XIO_MSG_TYPE_REQ) {
-		//this is client side - send of the request failed
+	if (msg->type == XIO_MSG_TYPE_REQ || (msg->type == XIO_MSG_TYPE_ONE_WAY && cntxbl->isClient())) {
+		//this is client side - send of the request or one way msg failed
 		sizeWritten = ctx->events->writeOnMsgErrorEventClient(buf, msg->user_context, error);
 	}else{//this is server side - send of the response failed
 		sizeWritten = ctx->events->writeOnMsgErrorEventServer(buf, msg->user_context,
@@ -40,10 +40,12 @@ Client::Client(const char* url, long ptrCtx)
 	set_ctx_class(ctxClass);
 
 	//defining structs to send to xio library
+	memset(&ses_ops, 0, sizeof(ses_ops));
 	ses_ops.on_session_event = on_session_event_callback;
 	ses_ops.on_session_established = on_session_established_callback;
 	ses_ops.on_msg = on_msg_callback;
 	ses_ops.on_msg_error = on_msg_error_callback;
+	ses_ops.on_msg_send_complete = on_msg_send_complete_callback; //used for one way msgs
 
 	attr.ses_ops = &ses_ops; /* callbacks structure */
 	attr.user_context = NULL; /* no need to pass the server private data */
@@ -163,3 +165,19 @@ bool Client::send_msg(Msg *msg, const int size)
 	}
 	return true;
 }
+
+bool Client::send_msg_one_way(Msg *msg, const int size)
+{
+	if (this->is_closing) {
+		CLIENT_LOG_DBG("attempting to send a message while client session is closing");
+		return false;
+	}
+	CLIENT_LOG_TRACE("##################### sending one way msg=%p, size=%d", msg, size);
+	msg->set_xio_msg_out_size(size);
+	int ret_val = xio_send_msg(this->con, msg->get_xio_msg());
+	if (ret_val) {
+		CLIENT_LOG_ERR("Error in sending one way xio_msg: '%s' (%d)", xio_strerror(xio_errno()), xio_errno());
+		return false;
+	}
+	return true;
+}
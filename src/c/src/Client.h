@@ -39,6 +39,7 @@ public:
 	~Client();
 	bool close_connection();
 	bool send_msg(Msg *msg, const int size);
+	bool send_msg_one_way(Msg *msg, const int size);
 
 	Context* ctxForSessionEvent(struct xio_session_event_data * event,
 				struct xio_session *session);
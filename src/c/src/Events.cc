@@ -31,6 +31,7 @@ typedef enum {
 	EVENT_SESSION_NEW = 6,
 	EVENT_MSG_SEND_COMPLETE = 7,
 	EVENT_FD_READY = 8,
+	EVENT_ONE_WAY_RECEIVED = 9,
 	EVENT_LAST
 } event_type_t;
 
@@ -158,23 +159,38 @@ int Events::writeOnMsgErrorEventClient(char *buf, void *ptrForJavaMsg, enum xio_
  }
 
 
-int Events::writeOnReqReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession)
+int Events::writeOnReqReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession, const int64_t deadline_usec)
 {
 	struct event_struct* event = (struct event_struct*)buf;
 	event->type = htonl(EVENT_REQUEST_RECEIVED);
 	event->ptr = htobe64(intptr_t(ptrForJavaMsg));
 	event->event_specific.req_received.msg_size = htonl(msg_size);
 	event->event_specific.req_received.ptr_session = htobe64(intptr_t(ptrForJavaSession));
+	event->event_specific.req_received.deadline_usec = htobe64(deadline_usec);
 	this->size = sizeof(struct event_req_received) +  sizeof((event_struct *)0)->type + sizeof((event_struct *)0)->ptr;
 	return this->size;
 }
 
-int Events::writeOnReplyReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size)
+int Events::writeOnOneWayReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession, const int64_t deadline_usec)
+{
+	//same layout as request received
+	struct event_struct* event = (struct event_struct*)buf;
+	event->type = htonl(EVENT_ONE_WAY_RECEIVED);
+	event->ptr = htobe64(intptr_t(ptrForJavaMsg));
+	event->event_specific.req_received.msg_size = htonl(msg_size);
+	event->event_specific.req_received.ptr_session = htobe64(intptr_t(ptrForJavaSession));
+	event->event_specific.req_received.deadline_usec = htobe64(deadline_usec);
+	this->size = sizeof(struct event_req_received) +  sizeof((event_struct *)0)->type + sizeof((event_struct *)0)->ptr;
+	return this->size;
+}
+
+int Events::writeOnReplyReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, const int32_t status)
 {
 	struct event_struct* event = (struct event_struct*)buf;
 	event->type = htonl(EVENT_REPLY_RECEIVED);
 	event->ptr = htobe64(intptr_t(ptrForJavaMsg));
 	event->event_specific.reply_received.msg_size = htonl(msg_size);
+	event->event_specific.reply_received.status = htonl(status);
 	this->size = sizeof(struct event_reply_received) +  sizeof((event_struct *)0)->type + sizeof((event_struct *)0)->ptr;
 	return this->size;
 }
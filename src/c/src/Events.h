@@ -60,11 +60,13 @@ struct __attribute__ ((packed)) event_msg_error_client {
 struct __attribute__ ((packed)) event_req_received {
 	int32_t 	msg_size;
 	int64_t		ptr_session;
+	int64_t		deadline_usec; //time left until the client gives up on the request, 0 if it has no deadline
 	//use the ptr inside event_struct for passing the pointer to msg class in java
 };
 
 struct __attribute__ ((packed)) event_reply_received {
 	int32_t 	msg_size;
+	int32_t 	status; //sent by the server in the header of the response, 0 if it sent none
 };
 
 struct __attribute__ ((packed)) event_fd_ready {
@@ -106,8 +108,9 @@ public:
 	int writeOnMsgErrorEventServer(char *buf, void *ptrForJavaMsg, void *ptrForJavaSession,
 			enum xio_status error);
 	int writeOnMsgErrorEventClient(char *buf, void *ptrForJava, enum xio_status error);
-	int writeOnReqReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession);
-	int writeOnReplyReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size);
+	int writeOnReqReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession, const int64_t deadline_usec);
+	int writeOnReplyReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, const int32_t status);
+	int writeOnOneWayReceivedEvent(char *buf, void *ptrForJavaMsg, const int32_t msg_size, void *ptrForJavaSession, const int64_t deadline_usec);
 	int writeOnFdReadyEvent(char *buf, int fd, int event);
 
 };
@@ -0,0 +1,51 @@
+/*
+** Copyright (C) 2013 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+*/
+
+#include "Utils.h"
+#include "MemoryRegion.h"
+
+#define MODULE_NAME		"MemoryRegion"
+#define MEMREGION_LOG_ERR(log_fmt, log_args...)  LOG_BY_MODULE(lsERROR, log_fmt, ##log_args)
+#define MEMREGION_LOG_DBG(log_fmt, log_args...)  LOG_BY_MODULE(lsDEBUG, log_fmt, ##log_args)
+
+
+MemoryRegion::MemoryRegion(char *buf, long buf_size)
+{
+	this->error_creating = false;
+	this->buf = buf;
+	this->buf_size = buf_size;
+
+	//the memory is owned by Java, we only register it
+	this->xio_mr = xio_reg_mr(this->buf, this->buf_size);
+	if (this->xio_mr == NULL) {
+		MEMREGION_LOG_ERR("registering memory %p of size %ld failed: '%s' (%d)", buf, buf_size, xio_strerror(xio_errno()), xio_errno());
+		this->error_creating = true;
+		return;
+	}
+	MEMREGION_LOG_DBG("CTOR done. registered buf=%p, size=%ld", buf, buf_size);
+}
+
+MemoryRegion::~MemoryRegion()
+{
+	if (error_creating) {
+		return;
+	}
+	if (xio_dereg_mr(&this->xio_mr)) {
+		MEMREGION_LOG_ERR("Error in xio_dereg_mr: '%s' (%d)", xio_strerror(xio_errno()), xio_errno());
+	}
+	MEMREGION_LOG_DBG("DTOR done");
+}
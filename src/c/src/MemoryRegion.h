@@ -0,0 +1,42 @@
+/*
+** Copyright (C) 2013 Mellanox Technologies
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at:
+**
+** http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+** either express or implied. See the License for the specific language
+** governing permissions and  limitations under the License.
+**
+*/
+#ifndef MemoryRegion__H___
+#define MemoryRegion__H___
+
+#include <stdlib.h>
+#include <stdio.h>
+
+#include <libxio.h>
+
+//represents memory allocated by the application (direct or mapped ByteBuffer)
+//that was RDMA registered so Msg can send from it without copying
+class MemoryRegion {
+public:
+	MemoryRegion(char *buf, long buf_size);
+	~MemoryRegion();
+
+	struct xio_mr* get_xio_mr() {return xio_mr;}
+
+	bool error_creating;
+	char			*buf;
+	long			buf_size;
+
+private:
+	struct xio_mr	*xio_mr;
+};
+
+#endif // ! MemoryRegion__H___
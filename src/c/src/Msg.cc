@@ -16,6 +16,7 @@
  */
 
 #include <sys/timerfd.h>
+#include <arpa/inet.h>
 
 #include "Utils.h"
 #include "Msg.h"
@@ -36,6 +37,11 @@ Msg::Msg(char* buf, struct xio_mr* xio_mr, int in_buf_size, int out_buf_size, Ms
 	this->xio_msg = (struct xio_msg *) calloc(1, sizeof(struct xio_msg));
 	this->pool = pool;
 	this->buf_out = this->buf + in_buf_size;
+	this->out_base = this->buf_out;
+	this->out_mr = this->xio_mr;
+	this->notify_send_complete = false;
+	this->deadline_header = 0;
+	this->status_header = 0;
 	this->set_xio_msg_client_fields();
 }
 
@@ -59,9 +65,9 @@ void Msg::set_xio_msg_client_fields()
 		this->xio_msg->out.data_iovlen = 0;
 	} else {
 		this->xio_msg->out.data_iovlen = 1;
-		this->xio_msg->out.data_iov[0].iov_base = this->buf_out;
+		this->xio_msg->out.data_iov[0].iov_base = this->out_base;
 		this->xio_msg->out.data_iov[0].iov_len = this->out_buf_size;
-		this->xio_msg->out.data_iov[0].mr = this->xio_mr;
+		this->xio_msg->out.data_iov[0].mr = this->out_mr;
 	}
 
 	this->xio_msg->in.header.iov_base = NULL;
@@ -79,9 +85,9 @@ void Msg::set_xio_msg_client_fields()
 void Msg::set_xio_msg_server_fields()
 {
 	this->xio_msg->out.data_iovlen = 1;
-	this->xio_msg->out.data_iov[0].iov_base = this->buf_out;
+	this->xio_msg->out.data_iov[0].iov_base = this->out_base;
 	this->xio_msg->out.data_iov[0].iov_len = this->out_buf_size;
-	this->xio_msg->out.data_iov[0].mr = this->xio_mr;
+	this->xio_msg->out.data_iov[0].mr = this->out_mr;
 
 	this->xio_msg->in.header.iov_base = NULL;
 	this->xio_msg->in.data_iovlen = 1;
@@ -102,6 +108,9 @@ void Msg::set_xio_msg_fields_for_assign(struct xio_msg *msg)
 void Msg::set_xio_msg_req(struct xio_msg *msg)
 {
 	this->xio_msg->request = msg;
+	//a status set for the response of the previous request is not sent again
+	this->xio_msg->out.header.iov_base = NULL;
+	this->xio_msg->out.header.iov_len = 0;
 //	log (lsDEBUG, "inside set_req_xio_msg msg is %p req is %p\n",this->xio_msg,  this->xio_msg->request);
 }
 
@@ -121,8 +130,51 @@ void Msg::reset_xio_msg_in_size()
 	this->xio_msg->in.data_iov[0].iov_len = this->in_buf_size;
 }
 
+void Msg::set_deadline(uint64_t remaining_usec)
+{
+	if (remaining_usec == 0) {
+		this->xio_msg->out.header.iov_base = NULL;
+		this->xio_msg->out.header.iov_len = 0;
+	} else {
+		this->deadline_header = htobe64(remaining_usec);
+		this->xio_msg->out.header.iov_base = &this->deadline_header;
+		this->xio_msg->out.header.iov_len = sizeof(this->deadline_header);
+	}
+}
+
+void Msg::set_reply_status(uint32_t status)
+{
+	this->status_header = htonl(status);
+	this->xio_msg->out.header.iov_base = &this->status_header;
+	this->xio_msg->out.header.iov_len = sizeof(this->status_header);
+}
+
+void Msg::set_out_region(char *out_base, struct xio_mr *out_mr)
+{
+	this->out_base = out_base;
+	this->out_mr = out_mr;
+	this->xio_msg->out.data_iov[0].iov_base = this->out_base;
+	this->xio_msg->out.data_iov[0].mr = this->out_mr;
+}
+
+void Msg::reset_out_region()
+{
+	this->set_out_region(this->buf_out, this->xio_mr);
+}
+
 void Msg::release_to_pool()
 {
+	struct xio_msg *req = this->xio_msg->request;
+	if (req && req->type == XIO_MSG_TYPE_ONE_WAY) {
+		//one way msg has no response, its receive buffers are returned to Accelio here
+		this->xio_msg->request = NULL;
+		if (xio_release_msg(req)) {
+			MSG_LOG_DBG("Got error from releasing one way xio_msg: '%s' (%d)", xio_strerror(xio_errno()), xio_errno());
+		}
+	}
+	//the application memory is no longer referenced once the msg is back in the pool
+	this->reset_out_region();
+	this->notify_send_complete = false;
 	this->pool->add_msg_to_pool(this);
 }
 
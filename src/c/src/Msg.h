@@ -37,11 +37,23 @@ public:
 	struct xio_msg* get_xio_msg();
 	void release_to_pool();
 	bool send_reply(const int size);
+	//points the out side of this msg to memory registered by the application
+	void set_out_region(char *out_base, struct xio_mr *out_mr);
+	void reset_out_region();
+	//asks for a send complete event to Java when the response is sent. Cleared when the msg returns to the pool
+	void set_notify_send_complete(bool notify) { this->notify_send_complete = notify; }
+	bool get_notify_send_complete() { return this->notify_send_complete; }
+	//sends the time left until the client gives up on this request in the out header. 0 sends no header
+	void set_deadline(uint64_t remaining_usec);
+	//sends a status (e.g. the request was rejected) in the out header of the response. Cleared on the next request
+	void set_reply_status(uint32_t status);
 	void dump(struct xio_msg *m); //func for debugging only
 
 private:
 	char * buf;
 	char * buf_out;
+	char * out_base; //buf_out unless the application attached its own memory region
+	struct xio_mr *out_mr;
 	int in_size;
 	int out_size;
 	struct xio_mr *xio_mr;
@@ -51,6 +63,9 @@ private:
 	int in_buf_size;
 	int out_buf_size;
 	MsgPool* pool;
+	bool notify_send_complete;
+	uint64_t deadline_header; //big endian, pointed to by the out header of a request with a deadline
+	uint32_t status_header; //big endian, pointed to by the out header of a response with a status
 };
 
 #endif // ! Msg__H___
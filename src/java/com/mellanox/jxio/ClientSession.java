@@ -19,6 +19,7 @@ package com.mellanox.jxio;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import java.net.URI;
+import java.util.ArrayDeque;
 
 import com.mellanox.jxio.impl.Bridge;
 import com.mellanox.jxio.impl.Event;
@@ -42,7 +43,21 @@ public class ClientSession extends EventQueueHandler.Eventable {
 
 	private final Callbacks         callbacks;
 	private final EventQueueHandler eventQHandler;
-	private static final Log        LOG = LogFactory.getLog(ClientSession.class.getCanonicalName());
+	// credit based flow control: requests beyond the window are queued until replies arrive
+	private final ArrayDeque<Msg>   queuedMsgs       = new ArrayDeque<Msg>();
+	private int                     window           = 0;              // 0 means no limit
+	private int                     inFlight         = 0;
+	private boolean                 adaptiveWindow   = false;
+	private int                     minWindow;
+	private int                     maxWindow;
+	private int                     repliesInRound   = 0;
+	private long                    minRttNanos      = Long.MAX_VALUE;
+	private long                    smoothedRttNanos = 0;
+	private volatile boolean        highPriority     = false;
+	// reused by sendRequests for passing the whole batch to C side in one call
+	private long[]                  batchMsgPtrs     = new long[0];
+	private int[]                   batchSizes       = new int[0];
+	private static final Log        LOG              = LogFactory.getLog(ClientSession.class.getCanonicalName());
 
 	/**
 	 * This interface needs to be implemented and passed to ClientSession in c-tor
@@ -126,27 +141,222 @@ public class ClientSession extends EventQueueHandler.Eventable {
 	 * This method sends the request to server.
 	 * <p>
 	 * The send is asynchronous, therefore even if the function returns, this does not mean that the msg reached the
-	 * server or even was sent to the server. The size send to Server is the current position of the OUT ByteBuffer
+	 * server or even was sent to the server. The size send to Server is the current position of the OUT ByteBuffer.
+	 * If an in flight window is set and it is full, the msg is queued and sent once a reply arrives.
 	 * 
 	 * @param msg
 	 *            - Msg to be sent to Server
 	 * @return true if queuing of the msg was successful and false otherwise
 	 */
 	public boolean sendRequest(Msg msg) {
+		msg.setDeadlineNanos(0);
+		return submitRequest(msg);
+	}
+
+	private boolean submitRequest(Msg msg) {
 		if (this.getIsClosing()) {
 			LOG.warn("Trying to send message while session is closing");
 			return false;
 		}
-		if (!Bridge.clientSendReq(this.getId(), msg.getId(), msg.getOut().position())) {
-			LOG.error("there was an error sending the message");
+		if (msg.isExpired()) {
+			LOG.error("Trying to send " + msg + " which timed out and is still owned by Accelio");
+			return false;
+		}
+		if (this.window > 0 && (this.inFlight >= this.window || !this.queuedMsgs.isEmpty())) {
+			// the window is full: the msg will be sent once a reply arrives
+			msg.setClientSession(this);
+			this.queuedMsgs.add(msg);
+			return true;
+		}
+		return postRequest(msg);
+	}
+
+	/**
+	 * This method sends several requests to server with a single call to the C side.
+	 * <p>
+	 * Behaves as calling sendRequest on msgs[0] .. msgs[count-1] in order, but crosses JNI once for the whole batch.
+	 * If an in flight window is set, the msgs that do not fit in it are queued. If the send fails, the msgs from the
+	 * first one that failed on were not sent and remain owned by the application.
+	 * 
+	 * @param msgs
+	 *            - Msgs to be sent to Server. The size of each is the current position of its OUT ByteBuffer
+	 * @param count
+	 *            - number of msgs to send from the beginning of msgs
+	 * @return number of msgs that were sent or queued, which is count unless there was an error
+	 */
+	public int sendRequests(Msg[] msgs, int count) {
+		if (this.getIsClosing()) {
+			LOG.warn("Trying to send message while session is closing");
+			return 0;
+		}
+		for (int i = 0; i < count; i++) {
+			if (msgs[i].isExpired()) {
+				LOG.error("Trying to send " + msgs[i] + " which timed out and is still owned by Accelio");
+				return 0;
+			}
+			msgs[i].setDeadlineNanos(0);
+		}
+		int toPost = count;
+		if (this.window > 0) {
+			toPost = this.queuedMsgs.isEmpty() ? Math.min(count, Math.max(0, this.window - this.inFlight)) : 0;
+		}
+		int posted = postRequests(msgs, toPost);
+		if (posted < toPost) {
+			return posted;
+		}
+		for (int i = toPost; i < count; i++) {
+			msgs[i].setClientSession(this);
+			this.queuedMsgs.add(msgs[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * This method sends a one way msg to server. The server receives it in ServerSession.Callbacks.onOneWay
+	 * and does not reply.
+	 * <p>
+	 * The send is asynchronous. Once the msg was sent, it is returned to its MsgPool automatically, therefore the
+	 * application must not use the msg after this call. If the send fails after this method returned, onMsgError
+	 * is called with the msg, which is returned to its MsgPool once onMsgError returns (the application must not
+	 * return it). The in flight window does not apply to one way msgs.
+	 * 
+	 * @param msg
+	 *            - Msg to be sent to Server
+	 * @return true if queuing of the msg was successful and false otherwise
+	 */
+	public boolean sendOneWay(Msg msg) {
+		if (this.getIsClosing()) {
+			LOG.warn("Trying to send message while session is closing");
+			return false;
+		}
+		if (msg.isExpired()) {
+			LOG.error("Trying to send " + msg + " which timed out and is still owned by Accelio");
+			return false;
+		}
+		msg.setDeadlineNanos(0);
+		msg.prepareDeadline();
+		if (!Bridge.clientSendOneWay(this.getId(), msg.getId(), msg.getOut().position())) {
+			LOG.error("there was an error sending the one way message");
 			return false;
 		}
 		msg.setClientSession(this);
-		// only if the send was successful the msg needs to be added to the "pending reply" list
+		msg.setOneWay(true);
+		// kept until send completion, which returns the msg to the pool
 		eventQHandler.addMsgInUse(msg);
 		return true;
 	}
 
+	/**
+	 * This method sends the request to server and fails it if the reply does not arrive in time.
+	 * <p>
+	 * Once timeOutMicroSec passes without a reply, onMsgError is called with reason TIMEOUT. The msg can be
+	 * returned to the pool from onMsgError as usual: if the request is still in flight, the msg will actually return
+	 * to the pool only when its late reply (which is not passed to the user) or msg error arrives. A msg that timed
+	 * out may only be returned to the pool: it can not be sent again (sendRequest returns false), a retry must use
+	 * another Msg.
+	 * <p>
+	 * The time left until the timeout is sent with the request, so the server can drop the request instead of
+	 * handling it once nobody waits for its reply (see Msg.getDeadlineNanos).
+	 * 
+	 * @param msg
+	 *            - Msg to be sent to Server
+	 * @param timeOutMicroSec
+	 *            - time to wait for the reply (measured in micro-sec), including time queued on the in flight window
+	 * @return true if queuing of the msg was successful and false otherwise
+	 */
+	public boolean sendRequest(Msg msg, long timeOutMicroSec) {
+		msg.setDeadlineNanos(timeOutMicroSec > 0 ? System.nanoTime() + timeOutMicroSec * 1000 : 0);
+		if (!submitRequest(msg)) {
+			return false;
+		}
+		if (timeOutMicroSec > 0) {
+			eventQHandler.scheduleTimer(msg.getTimer(), timeOutMicroSec);
+		}
+		return true;
+	}
+
+	/**
+	 * Limits the number of requests that are sent to the server and did not receive a reply yet.
+	 * Requests sent beyond the window are queued on this side and are sent as replies arrive, so the server's
+	 * MsgPool is not exhausted.
+	 * 
+	 * @param window
+	 *            - max number of outstanding requests. 0 means no limit (the default)
+	 */
+	public void setInFlightWindow(int window) {
+		this.window = Math.max(0, window);
+		this.adaptiveWindow = false;
+		sendQueuedMsgs();
+	}
+
+	/**
+	 * Limits the number of outstanding requests (see setInFlightWindow) and adapts the window from the observed
+	 * round trip time: the window grows while the round trip time stays close to the minimal one observed and
+	 * shrinks once requests start to queue up on the server.
+	 * 
+	 * @param minWindow
+	 *            - the window will not shrink below this value
+	 * @param maxWindow
+	 *            - the window will not grow beyond this value
+	 */
+	public void setAdaptiveInFlightWindow(int minWindow, int maxWindow) {
+		this.minWindow = Math.max(1, minWindow);
+		this.maxWindow = Math.max(this.minWindow, maxWindow);
+		this.window = this.minWindow;
+		this.adaptiveWindow = true;
+		this.repliesInRound = 0;
+		this.minRttNanos = Long.MAX_VALUE;
+		this.smoothedRttNanos = 0;
+		sendQueuedMsgs();
+	}
+
+	/**
+	 * Returns the current window of outstanding requests
+	 * 
+	 * @return the current window or 0 if there is no limit
+	 */
+	public int getInFlightWindow() {
+		return window;
+	}
+
+	/**
+	 * Returns the number of requests that were sent and did not receive a reply or msg error yet
+	 * 
+	 * @return number of outstanding requests
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of requests that wait for the window to open
+	 * 
+	 * @return number of requests queued on this side
+	 */
+	public int getQueued() {
+		return queuedMsgs.size();
+	}
+
+	/**
+	 * Marks all the replies and msg errors of this session as high priority: if the EventQueueHandler dispatches by priority (see
+	 * EventQueueHandler.setPriorityDispatch), they are handled before bulk events.
+	 * 
+	 * @param highPriority
+	 *            - true for high priority
+	 */
+	public void setHighPriority(boolean highPriority) {
+		this.highPriority = highPriority;
+	}
+
+	/**
+	 * Returns true if this session was marked as high priority
+	 * 
+	 * @return true if high priority
+	 */
+	public boolean isHighPriority() {
+		return highPriority;
+	}
+
 	/**
 	 * This method closes the ClientSession.
 	 * <p>
@@ -173,6 +383,129 @@ public class ClientSession extends EventQueueHandler.Eventable {
 		return true;
 	}
 
+	private boolean postRequest(Msg msg) {
+		msg.prepareDeadline();
+		if (!Bridge.clientSendReq(this.getId(), msg.getId(), msg.getOut().position())) {
+			LOG.error("there was an error sending the message");
+			return false;
+		}
+		onPosted(msg);
+		return true;
+	}
+
+	private int postRequests(Msg[] msgs, int count) {
+		if (count == 0) {
+			return 0;
+		}
+		if (this.batchMsgPtrs.length < count) {
+			this.batchMsgPtrs = new long[count];
+			this.batchSizes = new int[count];
+		}
+		for (int i = 0; i < count; i++) {
+			msgs[i].prepareDeadline();
+			this.batchMsgPtrs[i] = msgs[i].getId();
+			this.batchSizes[i] = msgs[i].getOut().position();
+		}
+		int posted = Bridge.clientSendReqs(this.getId(), this.batchMsgPtrs, this.batchSizes, count);
+		if (posted < count) {
+			LOG.error("there was an error sending the messages: " + posted + " out of " + count + " were sent");
+		}
+		for (int i = 0; i < posted; i++) {
+			onPosted(msgs[i]);
+		}
+		return posted;
+	}
+
+	private void onPosted(Msg msg) {
+		msg.setClientSession(this);
+		msg.setOneWay(false);
+		if (this.adaptiveWindow) {
+			msg.setSendTimeNanos(System.nanoTime());
+		}
+		this.inFlight++;
+		// only if the send was successful the msg needs to be added to the "pending reply" list
+		eventQHandler.addMsgInUse(msg);
+	}
+
+	private void onRequestDone(Msg msg, boolean replied) {
+		if (msg.hasScheduledTimer()) {
+			eventQHandler.cancelTimer(msg.getTimer());
+		}
+		this.inFlight--;
+		if (this.adaptiveWindow && replied) {
+			adaptWindow(System.nanoTime() - msg.getSendTimeNanos());
+		}
+		sendQueuedMsgs();
+	}
+
+	private void adaptWindow(long rttNanos) {
+		if (rttNanos < this.minRttNanos) {
+			this.minRttNanos = rttNanos;
+		}
+		if (this.smoothedRttNanos == 0) {
+			this.smoothedRttNanos = rttNanos;
+		} else {
+			this.smoothedRttNanos += (rttNanos - this.smoothedRttNanos) / 8;
+		}
+		// change the window at most once per round trip of a full window
+		if (++this.repliesInRound < this.window) {
+			return;
+		}
+		this.repliesInRound = 0;
+		if (this.smoothedRttNanos < this.minRttNanos + this.minRttNanos / 2) {
+			// latency is still flat, there is room for more requests
+			this.window = Math.min(this.maxWindow, this.window + 1);
+		} else if (this.smoothedRttNanos > 2 * this.minRttNanos) {
+			// requests are queuing on the server, back off
+			this.window = Math.max(this.minWindow, this.window - this.window / 4 - 1);
+		}
+	}
+
+	private void sendQueuedMsgs() {
+		while (!this.queuedMsgs.isEmpty() && (this.window == 0 || this.inFlight < this.window)) {
+			Msg msg = this.queuedMsgs.poll();
+			if (this.getIsClosing() || !postRequest(msg)) {
+				flushQueuedMsg(msg);
+			}
+		}
+	}
+
+	private void flushQueuedMsg(Msg msg) {
+		if (msg.hasScheduledTimer()) {
+			eventQHandler.cancelTimer(msg.getTimer());
+		}
+		callbacks.onMsgError(msg, EventReason.MSG_FLUSHED);
+	}
+
+	// a request handed over from another thread by ClientSessionPool, now on the EQH thread
+	void sendPostedRequest(Msg msg) {
+		if (!sendRequest(msg)) {
+			callbacks.onMsgError(msg, EventReason.MSG_FLUSHED);
+		}
+	}
+
+	EventQueueHandler getEventQueueHandler() {
+		return eventQHandler;
+	}
+
+	void onTimeout(Msg msg) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(this.toString() + ": request timed out " + msg);
+		}
+		if (!this.queuedMsgs.remove(msg)) {
+			// the request is in flight: it will be reclaimed when the late reply or msg error arrives
+			msg.setExpired();
+			onRequestDone(msg, false);
+		}
+		callbacks.onMsgError(msg, EventReason.TIMEOUT);
+	}
+
+	private void flushQueuedMsgs() {
+		while (!this.queuedMsgs.isEmpty()) {
+			flushQueuedMsg(this.queuedMsgs.poll());
+		}
+	}
+
 	void onEvent(Event ev) {
 		switch (ev.getEventType()) {
 
@@ -188,6 +521,7 @@ public class ClientSession extends EventQueueHandler.Eventable {
 					switch (eventName) {
 						case SESSION_CLOSED:
 							this.setIsClosing(true);
+							flushQueuedMsgs();
 							// now we are officially done with this session and it can be deleted from the EQH
 							eventQHandler.removeEventable(this);
 							Bridge.deleteClient(this.getId());
@@ -213,6 +547,13 @@ public class ClientSession extends EventQueueHandler.Eventable {
 					evMsgErr = (EventMsgError) ev;
 					Msg msg = evMsgErr.getMsg();
 					int reason = evMsgErr.getReason();
+					if (msg.isOneWay()) {
+						callbacks.onMsgError(msg, EventReason.getEventByIndex(reason));
+						// as after a successful send, the one way msg returns to the pool automatically
+						msg.returnToParentPool();
+						break;
+					}
+					onRequestDone(msg, false);
 					callbacks.onMsgError(msg, EventReason.getEventByIndex(reason));
 				} else {
 					LOG.error("Event is not an instance of EventMsgError" + this.toString());
@@ -234,6 +575,7 @@ public class ClientSession extends EventQueueHandler.Eventable {
 				if (ev instanceof EventNewMsg) {
 					evNewMsg = (EventNewMsg) ev;
 					Msg msg = evNewMsg.getMsg();
+					onRequestDone(msg, true);
 					callbacks.onReply(msg);
 				} else {
 					LOG.error("Event is not an instance of EventNewMsg" + this.toString());
@@ -0,0 +1,191 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ClientSessionPool opens several ClientSessions to the same server and presents them to the application as one.
+ * A single connection can not fill the bandwidth of the NIC, several connections (possibly progressed by several
+ * EventQueueHandlers in different threads) can.
+ * <p>
+ * Each request is sent on the session with the least outstanding requests. The events of all the sessions are
+ * delivered to one implementation of ClientSession.Callbacks:
+ * 1. onSessionEstablished - once, when the first session is established.
+ * 2. onSessionEvent - SESSION_CLOSED is delivered once, after all the sessions were closed. Other session events
+ * are delivered as they arrive on each of the sessions.
+ * 3. onReply.
+ * 4. onMsgError.
+ * The callbacks are invoked on the thread of the EventQueueHandler progressing the session, therefore they must be
+ * thread safe if more than one EventQueueHandler is used.
+ * 
+ */
+public class ClientSessionPool {
+
+	private final ClientSession.Callbacks callbacks;
+	private final ClientSession[]         sessions;
+	private final PooledSession[]         pooled;
+	private final AtomicInteger           numOpen;
+	private final AtomicBoolean           established = new AtomicBoolean(false);
+	private int                           next        = 0;
+	private static final Log              LOG         = LogFactory.getLog(ClientSessionPool.class.getCanonicalName());
+
+	/**
+	 * Constructor of ClientSessionPool. Opens numSessions ClientSessions to uri, spread round robin on the
+	 * EventQueueHandlers.
+	 * 
+	 * @param eventQHandlers
+	 *            - EventQueueHandlers on which the events of the sessions will arrive
+	 * @param uri
+	 *            - URI of the server to which the sessions will connect
+	 * @param numSessions
+	 *            - number of sessions to open
+	 * @param callbacks
+	 *            - implementation of Interface ClientSession.Callbacks, receiving the events of all the sessions
+	 */
+	public ClientSessionPool(EventQueueHandler[] eventQHandlers, URI uri, int numSessions,
+	        ClientSession.Callbacks callbacks) {
+		this.callbacks = callbacks;
+		this.sessions = new ClientSession[numSessions];
+		this.pooled = new PooledSession[numSessions];
+		this.numOpen = new AtomicInteger(numSessions);
+		for (int i = 0; i < numSessions; i++) {
+			this.pooled[i] = new PooledSession();
+			this.sessions[i] = new ClientSession(eventQHandlers[i % eventQHandlers.length], uri, this.pooled[i]);
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("opened " + numSessions + " sessions to " + uri + " on " + eventQHandlers.length + " EQHs");
+		}
+	}
+
+	/**
+	 * This method sends the request to server on the session with the least outstanding requests.
+	 * <p>
+	 * May be called from any thread. If the chosen session is progressed by an EventQueueHandler running in a
+	 * different thread, the msg is handed over to that thread, and a failure to send it is reported with onMsgError.
+	 * 
+	 * @param msg
+	 *            - Msg to be sent to Server
+	 * @return true if queuing of the msg was successful and false otherwise
+	 */
+	public boolean sendRequest(Msg msg) {
+		int chosen = -1;
+		int minOutstanding = Integer.MAX_VALUE;
+		final int n = this.sessions.length;
+		// start after the last choice so that ties are spread between the sessions
+		final int start = this.next;
+		for (int j = 0; j < n; j++) {
+			int i = (start + j) % n;
+			if (this.sessions[i].getIsClosing()) {
+				continue;
+			}
+			int outstanding = this.pooled[i].outstanding.get();
+			if (outstanding < minOutstanding) {
+				minOutstanding = outstanding;
+				chosen = i;
+			}
+		}
+		if (chosen == -1) {
+			LOG.warn("Trying to send message while all sessions of the pool are closing");
+			return false;
+		}
+		this.next = chosen + 1;
+		ClientSession ses = this.sessions[chosen];
+		PooledSession p = this.pooled[chosen];
+		p.outstanding.incrementAndGet();
+		EventQueueHandler eqh = ses.getEventQueueHandler();
+		if (eqh.isEventLoopThread()) {
+			if (!ses.sendRequest(msg)) {
+				p.outstanding.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		msg.setPostedTo(ses);
+		eqh.postMsg(msg);
+		return true;
+	}
+
+	/**
+	 * This method closes all the sessions of the pool. The method is asynchronous: SESSION_CLOSED is delivered
+	 * once all the sessions were closed. Should be called from the thread of the EventQueueHandlers of the sessions
+	 * or when they are not running.
+	 */
+	public void close() {
+		for (ClientSession ses : this.sessions) {
+			if (!ses.getIsClosing()) {
+				ses.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of sessions of the pool
+	 * 
+	 * @return number of sessions
+	 */
+	public int getNumSessions() {
+		return sessions.length;
+	}
+
+	/**
+	 * Returns the number of requests that were sent on the pool and did not receive a reply or msg error yet
+	 * 
+	 * @return number of outstanding requests
+	 */
+	public int getOutstanding() {
+		int sum = 0;
+		for (PooledSession p : this.pooled) {
+			sum += p.outstanding.get();
+		}
+		return sum;
+	}
+
+	private class PooledSession implements ClientSession.Callbacks {
+		// updated by the sending thread and by the EQH of the session
+		final AtomicInteger outstanding = new AtomicInteger(0);
+
+		public void onReply(Msg msg) {
+			outstanding.decrementAndGet();
+			callbacks.onReply(msg);
+		}
+
+		public void onSessionEstablished() {
+			if (established.compareAndSet(false, true)) {
+				callbacks.onSessionEstablished();
+			}
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			if (session_event != EventName.SESSION_CLOSED) {
+				callbacks.onSessionEvent(session_event, reason);
+			} else if (numOpen.decrementAndGet() == 0) {
+				callbacks.onSessionEvent(session_event, reason);
+			}
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			outstanding.decrementAndGet();
+			callbacks.onMsgError(msg, reason);
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * DedupCache keeps the responses to recent requests by a request id supplied by the client, so that a retried
+ * request (after a timeout, or after the client reconnected on a new session) is answered with the response that
+ * was already computed, without calling onRequest again.
+ * <p>
+ * The request id is a long at a fixed offset of the request's IN buffer (by default its first 8 bytes). Id 0 means
+ * the request has no id and is never deduplicated, so the client may tag only its idempotent-sensitive requests.
+ * <p>
+ * The request id is supplied by the client, so the cache trusts its clients. To keep the responses of one client
+ * from being replayed to another, a client can identify itself with the URI parameter "client" (see CLIENT_PARAM)
+ * of its session URI, e.g. "rdma://host:port/path?client=c17". The parameter is kept when the client reconnects, and
+ * requests are matched only against the responses sent to sessions with the same client value. Sessions without the
+ * parameter share a single id space: their ids must be unique among all of them, e.g. by holding a client id in
+ * their upper bits.
+ * <p>
+ * The responses are copied into a slab of off-heap memory with a fixed slot per entry, so the cache does not
+ * allocate once created and does not load the garbage collector. Entries are evicted in LRU order when the cache is
+ * full, and expire ttl after they were stored. Responses longer than the slot size are not cached, and neither are
+ * empty responses, such as those of requests rejected by the rate limit of the session.
+ * <p>
+ * A request that arrives again while the first copy is still being handled is handled again: only responses that
+ * were sent are cached.
+ * <p>
+ * The cache is attached with ServerSession.setDedupCache and may be shared by sessions of different
+ * EventQueueHandlers (all its methods are synchronized). It should be shared by all the sessions a client may
+ * reconnect on, e.g. all the sessions of a ServerPortal and its workers.
+ */
+public class DedupCache {
+
+	private final int          maxEntries;
+	private final int          slotSize;
+	private final long         ttlNanos;
+	private final int          idOffset;
+	private final ByteBuffer   slab;
+	private final int[]        slotLengths;
+	private final long[]       slotClients;
+	private final LruSlotIndex slots;
+	private long               numHits      = 0;
+	private long               numMisses    = 0;
+	private long               numEvictions = 0;
+	private long               numExpired   = 0;
+	private static final Log   LOG          = LogFactory.getLog(DedupCache.class.getCanonicalName());
+
+	/**
+	 * Name of the session URI parameter identifying the client, whose value scopes the request ids
+	 */
+	public static final String CLIENT_PARAM = "client";
+
+	/**
+	 * Constructor of DedupCache
+	 * 
+	 * @param maxEntries
+	 *            - maximal number of responses kept
+	 * @param maxResponseSize
+	 *            - size of the slot of each response, longer responses are not cached
+	 * @param ttlMicroSec
+	 *            - time a response is kept after it was sent, in microseconds
+	 * @param idOffset
+	 *            - offset of the request id in the IN buffer of requests
+	 */
+	public DedupCache(int maxEntries, int maxResponseSize, long ttlMicroSec, int idOffset) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.slotSize = Math.max(0, maxResponseSize);
+		this.ttlNanos = ttlMicroSec * 1000;
+		this.idOffset = idOffset;
+		this.slab = ByteBuffer.allocateDirect((int) Math.min((long) this.maxEntries * this.slotSize, Integer.MAX_VALUE));
+		this.slotLengths = new int[this.maxEntries];
+		this.slotClients = new long[this.maxEntries];
+		this.slots = new LruSlotIndex(this.maxEntries);
+		if ((long) this.maxEntries * this.slotSize > Integer.MAX_VALUE) {
+			LOG.error("cache of " + maxEntries + " entries of " + maxResponseSize + " bytes is too large, "
+			        + "responses of the upper slots will not be cached");
+		}
+	}
+
+	/**
+	 * Constructor of DedupCache, for requests whose id is their first 8 bytes
+	 * 
+	 * @param maxEntries
+	 *            - maximal number of responses kept
+	 * @param maxResponseSize
+	 *            - size of the slot of each response, longer responses are not cached
+	 * @param ttlMicroSec
+	 *            - time a response is kept after it was sent, in microseconds
+	 */
+	public DedupCache(int maxEntries, int maxResponseSize, long ttlMicroSec) {
+		this(maxEntries, maxResponseSize, ttlMicroSec, 0);
+	}
+
+	/**
+	 * Returns the request id of the request held in msg
+	 * 
+	 * @param msg
+	 *            - Msg holding a request
+	 * @return request id or 0 if the request is too short to hold one
+	 */
+	public long getRequestId(Msg msg) {
+		ByteBuffer in = msg.getIn();
+		if (in.limit() < idOffset + 8) {
+			return 0;
+		}
+		return in.getLong(idOffset);
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache
+	 * 
+	 * @return number of hits
+	 */
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * Returns the number of requests with an id that were not found in the cache
+	 * 
+	 * @return number of misses
+	 */
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Returns the number of responses removed to make room for newer ones
+	 * 
+	 * @return number of evictions
+	 */
+	public synchronized long getNumEvictions() {
+		return numEvictions;
+	}
+
+	/**
+	 * Returns the number of responses removed because their ttl passed
+	 * 
+	 * @return number of expired responses
+	 */
+	public synchronized long getNumExpired() {
+		return numExpired;
+	}
+
+	/**
+	 * Returns the number of responses in the cache
+	 * 
+	 * @return number of entries
+	 */
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	// writes the cached response to the request of client in msg to its OUT buffer. Returns false if there is none
+	synchronized boolean replay(Msg msg, long client) {
+		long id = getRequestId(msg);
+		if (id == 0) {
+			return false;
+		}
+		int slot = slots.find(id ^ client);
+		if (slot == LruSlotIndex.NONE || slotClients[slot] != client) {
+			numMisses++;
+			return false;
+		}
+		if (slots.isExpired(slot, System.nanoTime())) {
+			numExpired++;
+			numMisses++;
+			slots.detach(slot);
+			slots.free(slot);
+			return false;
+		}
+		ByteBuffer out = msg.getOut();
+		int len = slotLengths[slot];
+		if (len > out.capacity()) {
+			LOG.error("cached response of " + len + " bytes does not fit in " + msg);
+			numMisses++;
+			return false;
+		}
+		out.clear();
+		copy(slab, slot * slotSize, out, 0, len);
+		out.position(len);
+		slots.touch(slot);
+		numHits++;
+		return true;
+	}
+
+	// keeps the response in the OUT buffer of msg, if its request has an id that is not cached yet for client
+	synchronized void store(Msg msg, long client) {
+		long id = getRequestId(msg);
+		if (id == 0) {
+			return;
+		}
+		ByteBuffer out = msg.getOut();
+		int len = out.position();
+		if (len == 0 || len > slotSize || slots.find(id ^ client) != LruSlotIndex.NONE) {
+			return;
+		}
+		int slot = allocateSlot();
+		if ((long) slot * slotSize + len > slab.capacity()) {
+			slots.free(slot);
+			return;
+		}
+		copy(out, 0, slab, slot * slotSize, len);
+		slotLengths[slot] = len;
+		slotClients[slot] = client;
+		slots.add(id ^ client, slot, System.nanoTime() + ttlNanos);
+	}
+
+	// the key scoping the request ids of sessions with this URI: a hash of its client parameter, 0 if it has none
+	static long clientKeyOf(String sessionUri) {
+		int q = (sessionUri == null) ? -1 : sessionUri.indexOf('?');
+		if (q == -1) {
+			return 0;
+		}
+		int end = sessionUri.indexOf('#', q);
+		String query = sessionUri.substring(q + 1, (end == -1) ? sessionUri.length() : end);
+		for (String pair : query.split("&")) {
+			if (pair.startsWith(CLIENT_PARAM + "=")) {
+				return hash(pair.substring(CLIENT_PARAM.length() + 1));
+			}
+		}
+		return 0;
+	}
+
+	// 64 bit FNV-1a followed by the murmur3 finalizer. Never 0, which is the key of sessions without a client
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (h == 0) ? 1 : h;
+	}
+
+	// absolute copy, does not change the positions of the buffers
+	private static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+		int i = 0;
+		// copying 8 bytes at a time keeps their order only if both buffers have the same byte order
+		int longs = (src.order() == dst.order()) ? length & ~7 : 0;
+		for (; i < longs; i += 8) {
+			dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+		}
+		for (; i < length; i++) {
+			dst.put(dstOffset + i, src.get(srcOffset + i));
+		}
+	}
+
+	private int allocateSlot() {
+		int slot = slots.allocate();
+		if (slot == LruSlotIndex.NONE) {
+			// full: evict the least recently used entry, which may have expired already
+			slot = slots.leastRecentlyUsed();
+			if (slots.isExpired(slot, System.nanoTime())) {
+				numExpired++;
+			} else {
+				numEvictions++;
+			}
+			slots.detach(slot);
+		}
+		return slot;
+	}
+}
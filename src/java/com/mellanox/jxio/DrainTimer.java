@@ -0,0 +1,68 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+/**
+ * Polls the progress of ServerPortal.drain and ServerSession.drain on the EventQueueHandler's timer wheel, reports
+ * it and closes the drained object once no requests are in flight or the time out passed.
+ */
+abstract class DrainTimer extends TimerWheel.Timer {
+
+	private static final long                 POLL_MICRO_SEC = 10000; // 10 msec
+	private final EventQueueHandler           eventQHandler;
+	private final ServerPortal.DrainCallbacks callbacks;
+	private long                              deadlineNanos;
+	private int                               lastSessions   = -1;
+	private int                               lastInFlight   = -1;
+
+	DrainTimer(EventQueueHandler eventQHandler, ServerPortal.DrainCallbacks callbacks) {
+		this.eventQHandler = eventQHandler;
+		this.callbacks = callbacks;
+	}
+
+	abstract int numSessions();
+
+	abstract int numRequestsInFlight();
+
+	abstract void finish();
+
+	void start(long timeOutMicroSec) {
+		this.deadlineNanos = System.nanoTime() + timeOutMicroSec * 1000;
+		poll();
+	}
+
+	void onExpired() {
+		poll();
+	}
+
+	private void poll() {
+		int sessions = numSessions();
+		int inFlight = numRequestsInFlight();
+		if (sessions != lastSessions || inFlight != lastInFlight) {
+			lastSessions = sessions;
+			lastInFlight = inFlight;
+			callbacks.onDrainProgress(sessions, inFlight);
+		}
+		boolean graceful = inFlight <= 0;
+		if (graceful || System.nanoTime() >= deadlineNanos) {
+			finish();
+			callbacks.onDrainComplete(graceful);
+			return;
+		}
+		eventQHandler.scheduleTimer(this, Math.min(POLL_MICRO_SEC, (deadlineNanos - System.nanoTime()) / 1000 + 1));
+	}
+}
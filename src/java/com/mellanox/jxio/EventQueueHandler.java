@@ -22,6 +22,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,6 +55,35 @@ public class EventQueueHandler implements Runnable {
 	private Map<Long, Eventable>   eventables            = new HashMap<Long, Eventable>();
 	private Map<Long, Msg>         msgsPendingReply      = new HashMap<Long, Msg>();
 	private Map<Long, Msg>         msgsPendingNewRequest = new HashMap<Long, Msg>();
+	// responses whose send completion is waited for (see notifyOnSendComplete), by msg id
+	private Map<Long, SendCompleteListener> responsesPendingSendComplete = new HashMap<Long, SendCompleteListener>();
+	// deadlines of objects handled by this EQH (1 msec resolution, 512 msec per turn of the wheel)
+	private final TimerWheel       timers                = new TimerWheel(512, 1000000L);
+	// msgs posted by other threads (ServerSession.postResponse, ClientSessionPool), sent by this EQH between batches
+	private final ConcurrentLinkedQueue<Msg> postedMsgs = new ConcurrentLinkedQueue<Msg>();
+	private final AtomicBoolean    wakeupPending         = new AtomicBoolean(false);
+	private static final int       RESPONSE_BATCH_SIZE   = 256;
+	private final Msg[]            batchMsgs             = new Msg[RESPONSE_BATCH_SIZE];
+	private final long[]           batchMsgPtrs          = new long[RESPONSE_BATCH_SIZE];
+	private final int[]            batchSizes            = new int[RESPONSE_BATCH_SIZE];
+	private final long[]           batchSesPtrs          = new long[RESPONSE_BATCH_SIZE];
+	private final ServerSession[]  batchSessions         = new ServerSession[RESPONSE_BATCH_SIZE];
+	private volatile Thread        loopThread            = null;
+	// load metrics, written by the EQH thread once per batch of events and read by any thread
+	private volatile long          totalEventsHandled    = 0;
+	private volatile long          busyNanos             = 0;
+	// priority dispatch: high priority events of a batch are handled first, bulk events are copied aside and handled
+	// after them, at most bulkBudget per batch
+	private boolean                priorityDispatch      = false;
+	private int                    bulkBudget;
+	private boolean                prioritizedRound      = false;
+	private int[]                  highOffsets           = new int[64];
+	private int                    highCount             = 0;
+	private int                    highNext              = 0;
+	private ByteBuffer             deferred              = null;
+	private ByteBuffer             deferredWriter        = null;
+	private ByteBuffer             eventQueueView        = null;
+	private int                    deferredCount         = 0;
 	private volatile boolean       breakLoop             = false;
 	private volatile boolean       stopLoop              = false;
 	private volatile boolean       inRunLoop             = false;
@@ -134,12 +165,15 @@ public class EventQueueHandler implements Runnable {
 			return 0;
 		}
 		this.inRunLoop = true;
+		this.loopThread = Thread.currentThread();
 
 		boolean is_forever = (timeOutMicroSec == -1) ? true : false;
 		boolean is_infinite_events = (maxEvents == -1) ? true : false;
 
 		this.elapsedTime.resetStartTime();
 		int eventsHandled = 0;
+		int eventsReported = 0;
+		long batchStartNanos = 0;
 
 		long remainingTimeOutMicroSec = timeOutMicroSec;
 		while (!this.breakLoop && ((is_infinite_events) || (maxEvents > eventsHandled))
@@ -163,25 +197,57 @@ public class EventQueueHandler implements Runnable {
 			}
 
 			if (eventsWaitingInQ <= 0) { // the event queue is empty now, get more events from libxio
-				int[] retVal = Bridge.runEventLoop(getId(), remainingTimeOutMicroSec);
+				if (!postedMsgs.isEmpty()) {
+					sendPostedMsgs();
+				}
+				long blockMicroSec = remainingTimeOutMicroSec;
+				if (deferredCount > 0) {
+					// bulk events are waiting: only poll for new events
+					blockMicroSec = 0;
+				}
+				if (!timers.isEmpty()) {
+					// between batches: fire expired timers and do not block beyond the next deadline
+					long now = System.nanoTime();
+					eventsHandled += timers.expire(now);
+					long timerMicroSec = timers.getTimeToNextExpiryMicro(now);
+					if (timerMicroSec != -1 && (blockMicroSec < 0 || timerMicroSec < blockMicroSec)) {
+						blockMicroSec = timerMicroSec;
+					}
+				}
+				if (batchStartNanos != 0) {
+					this.busyNanos += System.nanoTime() - batchStartNanos;
+				}
+				this.totalEventsHandled += eventsHandled - eventsReported;
+				eventsReported = eventsHandled;
+				int[] retVal = Bridge.runEventLoop(getId(), blockMicroSec);
+				batchStartNanos = System.nanoTime();
 				eventsWaitingInQ = retVal[0];
 				eventQueue.position(retVal[1]);
+				prioritizedRound = priorityDispatch || deferredCount > 0;
+				if (prioritizedRound) {
+					eventsWaitingInQ = prioritizeBatch(eventsWaitingInQ);
+				}
 			}
 			remainingTimeOutMicroSec = timeOutMicroSec - this.elapsedTime.getElapsedTimeMicro();
 
 			// process in eventQueue pending events
 			if (eventsWaitingInQ > 0) {
-				handleEvent(eventQueue);
+				handleEvent(prioritizedRound ? nextPrioritizedEvent() : eventQueue);
 				eventsHandled++;
 				eventsWaitingInQ--;
 			}
 		}
 
+		if (batchStartNanos != 0) {
+			this.busyNanos += System.nanoTime() - batchStartNanos;
+		}
+		this.totalEventsHandled += eventsHandled - eventsReported;
 		this.breakLoop = false;
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("[" + getId() + "] returning with " + eventsWaitingInQ + " events in Q. handled " + eventsHandled
 			        + " events, elapsed time is " + elapsedTime.getElapsedTimeMicro() + " usec.");
 		}
+		this.loopThread = null;
 		this.inRunLoop = false;
 		return eventsHandled;
 	}
@@ -205,6 +271,248 @@ public class EventQueueHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * Returns the number of events this EventQueueHandler handled since it was created. Updated once per batch of
+	 * events, can be called from any thread.
+	 * 
+	 * @return number of events handled
+	 */
+	public long getTotalEventsHandled() {
+		return totalEventsHandled;
+	}
+
+	/**
+	 * Returns the time this EventQueueHandler spent handling events (as opposed to waiting for them) since it was
+	 * created. Sampling it periodically gives the utilization of the thread. Updated once per batch of events, can be
+	 * called from any thread.
+	 * 
+	 * @return busy time in nano-sec
+	 */
+	public long getBusyNanos() {
+		return busyNanos;
+	}
+
+	/**
+	 * Enables dispatching events by priority. Within each batch of events received from Accelio, the events of high
+	 * priority Msgs and sessions (see Msg.setHighPriority, ClientSession.setHighPriority and
+	 * ServerSession.setHighPriority) and all control events are handled first. The other (bulk) events are handled
+	 * after them, in order, at most maxBulkPerBatch of them per batch; the rest wait for the next batch. Session events
+	 * are never handled before bulk events that arrived earlier.
+	 * <p>
+	 * Should be called from the thread running this EventQueueHandler or before it runs
+	 * 
+	 * @param enable
+	 *            - true for dispatching by priority and false for handling the events in the order they arrived
+	 *            (the default)
+	 * @param maxBulkPerBatch
+	 *            - max number of bulk events handled after each batch
+	 */
+	public void setPriorityDispatch(boolean enable, int maxBulkPerBatch) {
+		this.priorityDispatch = enable;
+		this.bulkBudget = Math.max(1, maxBulkPerBatch);
+		if (enable && this.deferred == null) {
+			this.deferred = ByteBuffer.allocate(64 * 1024);
+			this.deferredWriter = this.deferred.duplicate();
+			this.eventQueueView = this.eventQueue.duplicate();
+		}
+	}
+
+	// splits the batch in eventQueue to high priority events (handled in place) and bulk events (copied to deferred)
+	// returns the number of events to handle before the next batch
+	private int prioritizeBatch(int numEvents) {
+		highCount = 0;
+		highNext = 0;
+		int pos = eventQueue.position();
+		for (int i = 0; i < numEvents; i++) {
+			int size = eventSize(eventQueue, pos);
+			if (priorityDispatch && isHighPriority(eventQueue, pos)) {
+				if (highCount == highOffsets.length) {
+					int[] grown = new int[highCount * 2];
+					System.arraycopy(highOffsets, 0, grown, 0, highCount);
+					highOffsets = grown;
+				}
+				highOffsets[highCount++] = pos;
+			} else {
+				deferEvent(pos, size);
+			}
+			pos += size;
+		}
+		return highCount + (priorityDispatch ? Math.min(deferredCount, bulkBudget) : deferredCount);
+	}
+
+	private ByteBuffer nextPrioritizedEvent() {
+		if (highNext < highCount) {
+			eventQueue.position(highOffsets[highNext++]);
+			return eventQueue;
+		}
+		deferredCount--;
+		return deferred;
+	}
+
+	private void deferEvent(int pos, int size) {
+		if (deferredCount == 0) {
+			deferred.clear();
+			deferredWriter.clear();
+		}
+		if (deferredWriter.remaining() < size) {
+			// move the unread events to the beginning of the buffer, grow it if it is still too small
+			int readPos = deferred.position();
+			int unread = deferredWriter.position() - readPos;
+			ByteBuffer target = deferred;
+			if (deferred.capacity() - unread < size) {
+				target = ByteBuffer.allocate(Math.max(deferred.capacity() * 2, unread + size));
+			}
+			System.arraycopy(deferred.array(), readPos, target.array(), 0, unread);
+			deferred = target;
+			deferred.clear();
+			deferredWriter = deferred.duplicate();
+			deferredWriter.position(unread);
+		}
+		eventQueueView.limit(pos + size);
+		eventQueueView.position(pos);
+		deferredWriter.put(eventQueueView);
+		deferredCount++;
+	}
+
+	// sizes of the events written by Events.cc (packed structs of Events.h)
+	private int eventSize(ByteBuffer q, int pos) {
+		switch (q.getInt(pos)) {
+			case 3: // session established
+			case 7: // msg send complete
+				return 12;
+			case 2: // msg error client
+				return 16;
+			case 0: // session event
+			case 5: // on reply
+			case 8: // on fd ready
+				return 20;
+			case 1: // msg error server
+				return 24;
+			case 4: // on request
+			case 9: // on one way msg
+				return 32;
+			case 6: // on new session: ptr session, uri and ip strings
+				int uriLen = q.getInt(pos + 20);
+				int ipLen = q.getInt(pos + 24 + uriLen);
+				return 28 + uriLen + ipLen;
+			default:
+				LOG.fatal("received an unknown event " + q.getInt(pos) + " while prioritizing events");
+				return 12;
+		}
+	}
+
+	private boolean isHighPriority(ByteBuffer q, int pos) {
+		long id = q.getLong(pos + 4);
+		switch (q.getInt(pos)) {
+			case 0: // session event: keep it after bulk events that arrived before it
+				return deferredCount == 0;
+			case 2: // msg error client
+			case 5: // on reply
+			{
+				Msg msg = msgsPendingReply.get(id);
+				if (msg == null || msg.isHighPriority()) {
+					return true;
+				}
+				Eventable ses = msg.getClientSession();
+				return ses instanceof ClientSession && ((ClientSession) ses).isHighPriority();
+			}
+			case 4: // on request
+			case 9: // on one way msg
+			{
+				Eventable ses = eventables.get(q.getLong(pos + 16));
+				return ses instanceof ServerSession && ((ServerSession) ses).isHighPriority();
+			}
+			default:
+				return true;
+		}
+	}
+
+	boolean isEventLoopThread() {
+		return this.loopThread == Thread.currentThread();
+	}
+
+	// may be called from any thread
+	void postMsg(Msg msg) {
+		postedMsgs.offer(msg);
+		// wake up the event loop once per batch. Unlike breakEventLoop, runEventLoop does not return
+		if (wakeupPending.compareAndSet(false, true)) {
+			Bridge.breakEventLoop(getId());
+		}
+	}
+
+	private void sendPostedMsgs() {
+		// msgs posted from now on need a new wake up
+		wakeupPending.set(false);
+		Msg msg;
+		int count = 0;
+		while ((msg = postedMsgs.poll()) != null) {
+			Eventable target = msg.getPostedTo();
+			msg.setPostedTo(null);
+			if (target instanceof ClientSession) {
+				((ClientSession) target).sendPostedRequest(msg);
+				continue;
+			}
+			ServerSession ses = (ServerSession) target;
+			ses.onResponsesSent(1);
+			if (ses.getIsClosing()) {
+				LOG.warn("session " + ses + " was closed before the posted response was sent");
+				ses.releaseMsg(msg);
+				continue;
+			}
+			batchMsgs[count] = msg;
+			batchMsgPtrs[count] = msg.getId();
+			batchSizes[count] = msg.getOut().position();
+			batchSesPtrs[count] = ses.getPtrServerSession();
+			batchSessions[count] = ses;
+			count++;
+			if (count == RESPONSE_BATCH_SIZE) {
+				sendResponseBatch(count);
+				count = 0;
+			}
+		}
+		if (count > 0) {
+			sendResponseBatch(count);
+		}
+	}
+
+	int sendResponses(ServerSession ses, Msg[] msgs, int count) {
+		int sent = 0;
+		int inBatch = 0;
+		for (int i = 0; i < count; i++) {
+			batchMsgs[inBatch] = msgs[i];
+			batchMsgPtrs[inBatch] = msgs[i].getId();
+			batchSizes[inBatch] = msgs[i].getOut().position();
+			batchSesPtrs[inBatch] = ses.getPtrServerSession();
+			batchSessions[inBatch] = ses;
+			inBatch++;
+			if (inBatch == RESPONSE_BATCH_SIZE) {
+				sent += sendResponseBatch(inBatch);
+				inBatch = 0;
+			}
+		}
+		if (inBatch > 0) {
+			sent += sendResponseBatch(inBatch);
+		}
+		return sent;
+	}
+
+	private int sendResponseBatch(int count) {
+		int sent = Bridge.serverSendResponses(batchMsgPtrs, batchSizes, batchSesPtrs, count);
+		if (sent != count && LOG.isDebugEnabled()) {
+			LOG.debug("[" + getId() + "] " + (count - sent) + " out of " + count + " responses were not sent");
+		}
+		for (int i = 0; i < count; i++) {
+			// as in ServerSession.sendResponse, the actual release to pool is done on c side
+			releaseMsgBackToPool(batchMsgs[i]);
+			batchMsgs[i] = null;
+		}
+		for (int i = 0; i < count; i++) {
+			batchSessions[i].afterResponsesSent();
+			batchSessions[i] = null;
+		}
+		return sent;
+	}
+
 	/**
 	 * Close (and stops) this EQH and release all corresponding Java and Native resources
 	 * (including closing the related ServerSessions, ServerPortal and ClientSession)
@@ -251,6 +559,14 @@ public class EventQueueHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * Notified when a response of a ServerSession has left the server (or failed), so memory attached to it may be
+	 * reused
+	 */
+	static interface SendCompleteListener {
+		void onSendComplete(Msg msg, boolean delivered);
+	}
+
 	static abstract class Eventable {
 
 		private long    id        = 0;
@@ -284,6 +600,28 @@ public class EventQueueHandler implements Runnable {
 		return refToCObject;
 	}
 
+	// must be called on the loop thread, before the response is sent
+	void notifyOnSendComplete(Msg msg, SendCompleteListener listener) {
+		responsesPendingSendComplete.put(msg.getId(), listener);
+		Bridge.setMsgNotifySendComplete(msg.getId(), true);
+	}
+
+	// must be called on the loop thread, when sending the response failed and no completion will arrive
+	void cancelSendComplete(Msg msg) {
+		if (responsesPendingSendComplete.remove(msg.getId()) != null) {
+			Bridge.setMsgNotifySendComplete(msg.getId(), false);
+		}
+	}
+
+	private void onResponseSendComplete(long id, Msg msg, boolean delivered) {
+		SendCompleteListener listener = responsesPendingSendComplete.remove(id);
+		if (listener != null) {
+			listener.onSendComplete(msg, delivered);
+		} else if (LOG.isDebugEnabled()) {
+			LOG.debug("send complete of msg " + Long.toHexString(id) + " which nobody waits for");
+		}
+	}
+
 	void addEventable(Eventable eventable) {
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("** adding " + eventable.getId() + " to map of EQH id=" + this.getId());
@@ -311,6 +649,14 @@ public class EventQueueHandler implements Runnable {
 		}
 	}
 
+	void scheduleTimer(TimerWheel.Timer timer, long timeOutMicroSec) {
+		timers.schedule(timer, System.nanoTime() + timeOutMicroSec * 1000);
+	}
+
+	void cancelTimer(TimerWheel.Timer timer) {
+		timers.cancel(timer);
+	}
+
 	Msg getAndremoveMsgInUse(long id) {
 		Msg msg = msgsPendingReply.remove(id);
 		return msg;
@@ -350,6 +696,9 @@ public class EventQueueHandler implements Runnable {
 					LOG.trace("session refToCObject" + session_id);
 				}
 				final int reason = eventQueue.getInt();
+				if (!responsesPendingSendComplete.isEmpty()) {
+					onResponseSendComplete(id, msg, false);
+				}
 				eventable = eventables.get(session_id);
 				if (eventable == null) {
 					LOG.warn(this.toString() + " eventable with id " + session_id + " was not found in map");
@@ -367,6 +716,11 @@ public class EventQueueHandler implements Runnable {
 				if (LOG.isDebugEnabled()) {
 					LOG.debug("got error on msg " + msg);
 				}
+				if (msg.isExpired()) {
+					// the user was already notified with TIMEOUT
+					msg.onLateCompletion();
+					break;
+				}
 				EventMsgError evMsgErr = new EventMsgError(eventType, id, msg, reason);
 				eventable = msg.getClientSession();
 				if (LOG.isTraceEnabled()) {
@@ -390,12 +744,15 @@ public class EventQueueHandler implements Runnable {
 				break;
 
 			case 4: // on request
+			case 9: // on one way msg
 			{
 				Msg msg = this.msgsPendingNewRequest.remove(id);
 				msg.resetPositions();
 				final int msg_size = eventQueue.getInt();
 				msg.getIn().limit(msg_size);
 				final long session_id = eventQueue.getLong();
+				final long deadline_usec = eventQueue.getLong();
+				msg.setDeadlineNanos(deadline_usec == 0 ? 0 : System.nanoTime() + deadline_usec * 1000);
 				if (LOG.isTraceEnabled()) {
 					LOG.trace("session refToCObject" + session_id);
 				}
@@ -413,6 +770,13 @@ public class EventQueueHandler implements Runnable {
 			{
 				Msg msg = msgsPendingReply.remove(id);
 				final int msg_size = eventQueue.getInt();
+				final int status = eventQueue.getInt();
+				msg.setRejected(status == Msg.REPLY_STATUS_REJECTED);
+				if (msg.isExpired()) {
+					// reply arrived after the request timed out and the user was notified with TIMEOUT
+					msg.onLateCompletion();
+					break;
+				}
 				msg.getIn().limit(msg_size);
 				if (LOG.isTraceEnabled()) {
 					LOG.trace("msg is " + msg);
@@ -444,6 +808,20 @@ public class EventQueueHandler implements Runnable {
 			}
 				break;
 
+			case 7: // msg send complete (client one way msg or server response, see notifyOnSendComplete)
+			{
+				Msg msg = msgsPendingReply.remove(id);
+				if (msg == null) {
+					onResponseSendComplete(id, msgsPendingNewRequest.get(id), true);
+					break;
+				}
+				if (LOG.isTraceEnabled()) {
+					LOG.trace("one way msg was sent " + msg);
+				}
+				msg.returnToParentPool();
+			}
+				break;
+
 			case 8: // on fd ready
 			{
 				/*
@@ -0,0 +1,113 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * FileRegion is a MemoryRegion over a memory mapped file. The file is mapped with FileChannel.map and
+ * registered once. Ranges of the file can then be sent as responses with
+ * {@link ServerSession#sendFileRegion(Msg, FileRegion, long, int)} without copying the file data into Java
+ * heap or into MsgPool buffers.
+ * <p>
+ * RDMA registration requires writable pages, so the file is mapped in READ_WRITE mode (a shared mapping, the
+ * file's page cache is registered as is). JXIO never writes to the mapping. A single mapping is limited to
+ * Integer.MAX_VALUE bytes, larger files should be covered by several FileRegions.
+ */
+public class FileRegion extends MemoryRegion {
+	private static final Log LOG = LogFactory.getLog(FileRegion.class.getCanonicalName());
+	private final long       filePosition;
+
+	/**
+	 * Constructor of FileRegion. Maps and registers the whole file. The file must be writable by this process.
+	 * 
+	 * @param file
+	 *            - the file to map
+	 * @throws IOException
+	 *             if the file could not be opened or mapped
+	 */
+	public FileRegion(File file) throws IOException {
+		this(mapFile(file), 0);
+	}
+
+	/**
+	 * Constructor of FileRegion. Maps and registers size bytes of the file starting at position.
+	 * 
+	 * @param channel
+	 *            - FileChannel that was opened for reading and writing. It can be closed once the c-tor returns
+	 * @param position
+	 *            - position in the file at which the region starts
+	 * @param size
+	 *            - number of bytes to map
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	public FileRegion(FileChannel channel, long position, int size) throws IOException {
+		this(channel.map(FileChannel.MapMode.READ_WRITE, position, size), position);
+	}
+
+	private FileRegion(MappedByteBuffer mapped, long filePosition) {
+		super(mapped);
+		this.filePosition = filePosition;
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("mapped " + this + " at file position " + filePosition);
+		}
+	}
+
+	/**
+	 * Returns the position in the file at which this region starts
+	 * 
+	 * @return position in the file at which this region starts
+	 */
+	public long getFilePosition() {
+		return filePosition;
+	}
+
+	/**
+	 * Returns true if the file range [position, position + length) is covered by this region
+	 * 
+	 * @param position
+	 *            - position in the file
+	 * @param length
+	 *            - number of bytes
+	 * @return true if the range is covered by this region
+	 */
+	public boolean contains(long position, int length) {
+		return position >= filePosition && length >= 0 && position + length <= filePosition + capacity();
+	}
+
+	private static MappedByteBuffer mapFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = raf.length();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("file " + file + " of size " + size + " is too big for a single FileRegion");
+			}
+			// the mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+}
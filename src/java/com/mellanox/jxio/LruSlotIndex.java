@@ -0,0 +1,187 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+/**
+ * A fixed number of slots indexed by a long key, kept in LRU order and with an expiry time per slot. The data of the
+ * slots is kept by the user (DedupCache, ResponseCache), typically in an off-heap slab at slot * slotSize.
+ * <p>
+ * A slot is either free, or allocated. An allocated slot is in the index (find returns it) and in the LRU list
+ * after add, until detach. A detached slot stays allocated until free, so its data may still be used. Nothing is
+ * allocated after construction. Not thread safe.
+ */
+final class LruSlotIndex {
+
+	static final int    NONE     = -1;
+	private final long[] keys;
+	private final long[] expiry;
+	private final int[]  lruPrev;
+	private final int[]  lruNext;  // also links the free slots
+	private int          lruHead  = NONE; // most recently used
+	private int          lruTail  = NONE; // least recently used
+	private int          freeHead = 0;
+	private int          size     = 0;
+	// open addressing from key to slot+1 (0 is an empty bucket), linear probing
+	private final int[]  index;
+	private final int    indexMask;
+
+	LruSlotIndex(int numSlots) {
+		this.keys = new long[numSlots];
+		this.expiry = new long[numSlots];
+		this.lruPrev = new int[numSlots];
+		this.lruNext = new int[numSlots];
+		for (int i = 0; i < numSlots; i++) {
+			lruNext[i] = (i + 1 < numSlots) ? i + 1 : NONE;
+		}
+		int buckets = Integer.highestOneBit(Math.max(numSlots, 1) * 2 - 1) << 1;
+		this.index = new int[buckets];
+		this.indexMask = buckets - 1;
+	}
+
+	// number of slots in the index
+	int size() {
+		return size;
+	}
+
+	long getKey(int slot) {
+		return keys[slot];
+	}
+
+	boolean isExpired(int slot, long nowNanos) {
+		return nowNanos - expiry[slot] > 0;
+	}
+
+	int find(long key) {
+		int b = mix(key) & indexMask;
+		while (index[b] != 0) {
+			int slot = index[b] - 1;
+			if (keys[slot] == key) {
+				return slot;
+			}
+			b = (b + 1) & indexMask;
+		}
+		return NONE;
+	}
+
+	// returns a free slot or NONE if all are allocated
+	int allocate() {
+		int slot = freeHead;
+		if (slot != NONE) {
+			freeHead = lruNext[slot];
+		}
+		return slot;
+	}
+
+	void free(int slot) {
+		lruNext[slot] = freeHead;
+		freeHead = slot;
+	}
+
+	// adds an allocated slot to the index as the most recently used
+	void add(long key, int slot, long expiryNanos) {
+		keys[slot] = key;
+		expiry[slot] = expiryNanos;
+		int b = mix(key) & indexMask;
+		while (index[b] != 0) {
+			b = (b + 1) & indexMask;
+		}
+		index[b] = slot + 1;
+		linkHead(slot);
+		size++;
+	}
+
+	// removes a slot from the index and the LRU list. The slot stays allocated
+	void detach(int slot) {
+		unlink(slot);
+		delete(keys[slot]);
+		size--;
+	}
+
+	void touch(int slot) {
+		if (lruHead != slot) {
+			unlink(slot);
+			linkHead(slot);
+		}
+	}
+
+	int leastRecentlyUsed() {
+		return lruTail;
+	}
+
+	// the slot used right after slot, NONE for the most recently used
+	int nextMoreRecent(int slot) {
+		return lruPrev[slot];
+	}
+
+	private void linkHead(int slot) {
+		lruPrev[slot] = NONE;
+		lruNext[slot] = lruHead;
+		if (lruHead != NONE) {
+			lruPrev[lruHead] = slot;
+		}
+		lruHead = slot;
+		if (lruTail == NONE) {
+			lruTail = slot;
+		}
+	}
+
+	private void unlink(int slot) {
+		int prev = lruPrev[slot];
+		int next = lruNext[slot];
+		if (prev != NONE) {
+			lruNext[prev] = next;
+		} else {
+			lruHead = next;
+		}
+		if (next != NONE) {
+			lruPrev[next] = prev;
+		} else {
+			lruTail = prev;
+		}
+	}
+
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	// removes key from the index, shifting back the entries that follow it so no probe sequence is broken
+	private void delete(long key) {
+		int b = mix(key) & indexMask;
+		while (keys[index[b] - 1] != key) {
+			b = (b + 1) & indexMask;
+		}
+		int hole = b;
+		int j = b;
+		while (true) {
+			j = (j + 1) & indexMask;
+			if (index[j] == 0) {
+				break;
+			}
+			int home = mix(keys[index[j] - 1]) & indexMask;
+			// move the entry at j into the hole unless its home lies cyclically in (hole, j]
+			boolean inRange = (hole <= j) ? (hole < home && home <= j) : (hole < home || home <= j);
+			if (!inRange) {
+				index[hole] = index[j];
+				hole = j;
+			}
+		}
+		index[hole] = 0;
+	}
+}
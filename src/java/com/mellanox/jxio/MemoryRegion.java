@@ -0,0 +1,106 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mellanox.jxio.impl.Bridge;
+
+/**
+ * MemoryRegion RDMA registers memory that is owned by the application (a direct ByteBuffer or a
+ * MappedByteBuffer). Slices of the registered memory can be attached to the OUT side of a {@link Msg}
+ * with {@link Msg#attachOut(MemoryRegion, int, int)} and will be zero copied to the remote peer,
+ * instead of copying the data into the Msg's own buffer first.
+ * <p>
+ * The application must keep a reference to the ByteBuffer and must not call deregister() while Msgs
+ * referencing this MemoryRegion might still be sent.
+ */
+public class MemoryRegion {
+	private static final Log LOG = LogFactory.getLog(MemoryRegion.class.getCanonicalName());
+	private final ByteBuffer buffer;
+	private long             refToCObject;
+
+	/**
+	 * Constructor of MemoryRegion. Registers the memory of the buffer (from position 0 up to its capacity)
+	 * 
+	 * @param buffer
+	 *            - direct or memory mapped ByteBuffer holding the data that will be sent
+	 */
+	public MemoryRegion(ByteBuffer buffer) {
+		this.buffer = buffer;
+		if (!buffer.isDirect()) {
+			LOG.error("only direct ByteBuffer can be registered");
+			this.refToCObject = 0;
+			return;
+		}
+		this.refToCObject = Bridge.registerMemoryRegion(buffer);
+		if (this.refToCObject == 0) {
+			LOG.error("there was an error registering the memory");
+		}
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("jxio.MemoryRegion(" + Long.toHexString(refToCObject) + ")");
+		sb.append("[capacity=" + buffer.capacity() + "]");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the ByteBuffer that was registered
+	 * 
+	 * @return the registered ByteBuffer
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of registered bytes
+	 * 
+	 * @return the number of registered bytes
+	 */
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Returns id of the object. The id is unique and represents pointer
+	 * to the corresponding C object.
+	 * 
+	 * @return id of the object
+	 */
+	public long getId() {
+		return refToCObject;
+	}
+
+	/**
+	 * Deregisters the memory. The ByteBuffer itself is not released, it remains owned by the application.
+	 * This should be the last method called for this MemoryRegion
+	 */
+	public void deregister() {
+		if (refToCObject == 0) {
+			LOG.warn("trying to deregister MemoryRegion that is not registered");
+			return;
+		}
+		Bridge.deregisterMemoryRegion(refToCObject);
+		refToCObject = 0;
+	}
+}
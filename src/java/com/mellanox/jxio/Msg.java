@@ -18,10 +18,11 @@ package com.mellanox.jxio;
 
 import java.nio.ByteBuffer;
 
-//import org.apache.commons.logging.Log;
-//import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.mellanox.jxio.EventQueueHandler.Eventable;
+import com.mellanox.jxio.impl.Bridge;
 
 /**
  * Msg is the object that represents a message received from or to be sent to another
@@ -32,19 +33,36 @@ import com.mellanox.jxio.EventQueueHandler.Eventable;
  */
 public class Msg {
 
-	// private static final Log LOG = LogFactory.getLog(Msg.class.getCanonicalName());
+	private static final Log LOG = LogFactory.getLog(Msg.class.getCanonicalName());
 	private long       refToCObject;
 	private Eventable  clientSession;
 	// reference to MsgPool holding this buffer
 	private MsgPool    msgPool;
 	private ByteBuffer in, out;
+	private ByteBuffer poolOut;      // OUT buffer of the pool. out differs from it when MemoryRegion is attached
+	private MemoryRegion outRegion;
 	private Object     userContext;  // variable for usage by the user
+	private long       sendTimeNanos; // set by ClientSession when measuring round trip time
+	private MsgTimer   timer;
+	// a request that timed out is still owned by Accelio until its reply or msg error arrives
+	private boolean    expired;
+	private boolean    returnOnCompletion;
+	private boolean    oneWay;        // sent with ClientSession.sendOneWay, no reply will arrive
+	private Eventable  postedTo;      // set while a msg posted from another thread waits for the EQH
+	private boolean    highPriority;
+	private long       deadlineNanos; // System.nanoTime() after which nobody waits for the reply, 0 if none
+	private boolean    deadlineSent;  // the C msg carries a deadline header
+	private boolean    rejected;      // the server answered without handling the request
+
+	// status sent by the server in the header of a response (see Bridge.setMsgReplyStatus)
+	static final int   REPLY_STATUS_REJECTED = 1;
 
 	Msg(ByteBuffer buffer, int inSize, int outSize, long id, MsgPool msgPool) {
 		this.msgPool = msgPool;
 		this.refToCObject = id;
 		this.in = createSubBuffer(0, inSize, buffer);
 		this.out = createSubBuffer(inSize, inSize + outSize, buffer);
+		this.poolOut = this.out;
 		resetPositions();
 	}
 
@@ -89,6 +107,103 @@ public class Msg {
 		return out;
 	}
 
+	/**
+	 * Attaches a slice of MemoryRegion as the OUT side of this Msg. The data is sent directly from
+	 * the registered memory, no copy to the Msg's own buffer is done.
+	 * <p>
+	 * After this call getOut() returns a ByteBuffer over the slice with position set to length, so
+	 * that the whole slice is sent. The Msg's own OUT buffer is restored by resetPositions(), which is called
+	 * when the Msg returns to the pool.
+	 * 
+	 * @param region
+	 *            - registered memory holding the data
+	 * @param offset
+	 *            - offset of the slice in the region
+	 * @param length
+	 *            - number of bytes to send
+	 * @return true if the slice was attached and false otherwise
+	 */
+	public boolean attachOut(MemoryRegion region, int offset, int length) {
+		if (region == null || region.getId() == 0) {
+			LOG.error("MemoryRegion provided is null or not registered. Can not attach");
+			return false;
+		}
+		if (offset < 0 || length < 0 || offset + length > region.capacity()) {
+			LOG.error("slice offset=" + offset + ", length=" + length + " is out of " + region);
+			return false;
+		}
+		Bridge.setMsgOutRegion(refToCObject, region.getId(), offset);
+		ByteBuffer b = region.getBuffer().duplicate();
+		b.limit(offset + length);
+		b.position(offset);
+		this.out = b.slice();
+		this.out.position(length);
+		this.outRegion = region;
+		return true;
+	}
+
+	/**
+	 * Returns the MemoryRegion attached to the OUT side of this Msg
+	 * 
+	 * @return MemoryRegion attached to this Msg or null if the Msg's own OUT buffer is used
+	 */
+	public MemoryRegion getOutRegion() {
+		return outRegion;
+	}
+
+	/**
+	 * Marks the reply to this request as high priority: if the EventQueueHandler dispatches by priority (see
+	 * EventQueueHandler.setPriorityDispatch), it is handled before bulk events. The mark stays until it is changed.
+	 * 
+	 * @param highPriority
+	 *            - true for high priority
+	 */
+	public void setHighPriority(boolean highPriority) {
+		this.highPriority = highPriority;
+	}
+
+	/**
+	 * Returns true if this Msg was marked as high priority
+	 * 
+	 * @return true if high priority
+	 */
+	public boolean isHighPriority() {
+		return highPriority;
+	}
+
+	/**
+	 * Returns the deadline of this request: the value of System.nanoTime() after which nobody waits for its reply.
+	 * <p>
+	 * On the client it is set by ClientSession.sendRequest(Msg, long) from its timeout. The time left until it is
+	 * sent with the request, and on the server the deadline is that time counted from the arrival of the request
+	 * (the time the request spent on the network is not subtracted, so the server's deadline is a bit late).
+	 * 
+	 * @return the deadline in System.nanoTime() units or 0 if the request has no deadline
+	 */
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Returns true if this request has a deadline and it has passed
+	 * 
+	 * @return true if nobody waits for the reply anymore
+	 */
+	public boolean isPastDeadline() {
+		return deadlineNanos != 0 && deadlineNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Returns true if the server did not handle this request and answered it with an empty response instead: it was
+	 * rejected by the rate limit of the ServerSession (see ServerSession.setRateLimit) or dropped because it arrived
+	 * past its deadline. Valid on the client once the reply arrived
+	 * 
+	 * @return true if the request was rejected by the server
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
 	/**
 	 * Retrieves user context associated with this Msg
 	 * 
@@ -113,6 +228,11 @@ public class Msg {
 	 * 
 	 */
 	public void resetPositions() {
+		if (this.outRegion != null) {
+			Bridge.resetMsgOutRegion(refToCObject);
+			this.outRegion = null;
+			this.out = this.poolOut;
+		}
 		this.in.position(0).limit(0);
 		this.out.clear();
 	}
@@ -129,10 +249,96 @@ public class Msg {
 		return clientSession;
 	}
 
+	void setSendTimeNanos(long sendTimeNanos) {
+		this.sendTimeNanos = sendTimeNanos;
+	}
+
+	long getSendTimeNanos() {
+		return sendTimeNanos;
+	}
+
+	void setOneWay(boolean oneWay) {
+		this.oneWay = oneWay;
+	}
+
+	boolean isOneWay() {
+		return oneWay;
+	}
+
+	void setPostedTo(Eventable postedTo) {
+		this.postedTo = postedTo;
+	}
+
+	Eventable getPostedTo() {
+		return postedTo;
+	}
+
+	TimerWheel.Timer getTimer() {
+		if (timer == null) {
+			timer = new MsgTimer();
+		}
+		return timer;
+	}
+
+	boolean hasScheduledTimer() {
+		return timer != null && timer.isScheduled();
+	}
+
+	void setRejected(boolean rejected) {
+		this.rejected = rejected;
+	}
+
+	void setDeadlineNanos(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	// updates the deadline header of the C msg before the request is sent
+	void prepareDeadline() {
+		if (deadlineNanos != 0) {
+			Bridge.setMsgDeadline(refToCObject, Math.max(1, (deadlineNanos - System.nanoTime()) / 1000));
+			deadlineSent = true;
+		} else if (deadlineSent) {
+			Bridge.setMsgDeadline(refToCObject, 0);
+			deadlineSent = false;
+		}
+	}
+
+	void setExpired() {
+		this.expired = true;
+	}
+
+	boolean isExpired() {
+		return expired;
+	}
+
+	// called when the user returns the msg. If the request timed out and Accelio still owns the msg,
+	// the return is deferred until the late reply or msg error arrives
+	boolean deferReturnToPool() {
+		if (!expired) {
+			return false;
+		}
+		returnOnCompletion = true;
+		return true;
+	}
+
+	void onLateCompletion() {
+		expired = false;
+		if (returnOnCompletion) {
+			returnOnCompletion = false;
+			msgPool.releaseMsg(this);
+		}
+	}
+
 	long getId() {
 		return refToCObject;
 	}
 
+	private class MsgTimer extends TimerWheel.Timer {
+		void onExpired() {
+			((ClientSession) clientSession).onTimeout(Msg.this);
+		}
+	}
+
 	private ByteBuffer createSubBuffer(int position, int limit, ByteBuffer buf) {
 		ByteBuffer sub;
 		buf.position(position);
@@ -150,6 +150,11 @@ public class MsgPool {
 	 *            to be returned back to pool
 	 */
 	public void releaseMsg(Msg msg) {
+		if (msg.deferReturnToPool()) {
+			// the request timed out but Accelio still owns the buffers. It will return to the pool once the
+			// late reply or msg error arrives
+			return;
+		}
 		if (msg.getParentPool() == this) {
 			msg.resetPositions();
 			listMsg.add(msg);
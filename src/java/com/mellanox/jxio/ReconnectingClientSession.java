@@ -0,0 +1,284 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ReconnectingClientSession is a ClientSession that reconnects to the server by itself. Once the session is lost
+ * (SESSION_CLOSED, SESSION_REJECT or SESSION_ERROR that the application did not initiate by calling close) a new
+ * ClientSession to the same URI is opened after a jittered exponential backoff.
+ * <p>
+ * Requests sent while there is no established session, and requests that were in flight when the session was lost,
+ * are kept in a bounded replay buffer and are sent again once the new session is established. Therefore a request
+ * might reach the server more than once. When the replay buffer is full, the request is failed with onMsgError
+ * (reason MSG_FLUSHED).
+ * <p>
+ * The events are delivered to ClientSession.Callbacks:
+ * 1. onSessionEstablished - each time a session (the first one or a reconnected one) is established.
+ * 2. onSessionEvent - SESSION_CLOSED only once the application closed the session. Other session events are
+ * delivered as they arrive.
+ * 3. onReply.
+ * 4. onMsgError - for errors that are not recovered by replaying the request.
+ * Like ClientSession, it must be used from the thread running its EventQueueHandler.
+ * 
+ */
+public class ReconnectingClientSession {
+
+	private final EventQueueHandler       eventQHandler;
+	private final URI                     uri;
+	private final ClientSession.Callbacks callbacks;
+	// preallocated, reused by all the sessions opened by this object
+	private final SessionCallbacks        sessionCallbacks = new SessionCallbacks();
+	private final ReconnectTimer          reconnectTimer   = new ReconnectTimer();
+	private final Msg[]                   replay;
+	private int                           replayHead       = 0;
+	private int                           replayCount      = 0;
+	private ClientSession                 session;
+	private boolean                       established      = false;
+	private boolean                       closed           = false;
+	private int                           attempts         = 0;
+	private long                          initialBackoffMicroSec = 1000;
+	private long                          maxBackoffMicroSec     = 1000000;
+	private long                          seed             = System.nanoTime() | 1;
+	private static final Log              LOG              = LogFactory.getLog(ReconnectingClientSession.class
+	                                                               .getCanonicalName());
+
+	/**
+	 * Constructor of ReconnectingClientSession. Opens the first ClientSession to uri.
+	 * 
+	 * @param eventQHandler
+	 *            - EventQueueHandler on which the events of the sessions will arrive
+	 * @param uri
+	 *            - URI of the server
+	 * @param replayBufferSize
+	 *            - max number of requests kept while there is no established session
+	 * @param callbacks
+	 *            - implementation of Interface ClientSession.Callbacks
+	 */
+	public ReconnectingClientSession(EventQueueHandler eventQHandler, URI uri, int replayBufferSize,
+	        ClientSession.Callbacks callbacks) {
+		this.eventQHandler = eventQHandler;
+		this.uri = uri;
+		this.callbacks = callbacks;
+		this.replay = new Msg[Math.max(1, replayBufferSize)];
+		this.session = new ClientSession(eventQHandler, uri, sessionCallbacks);
+	}
+
+	/**
+	 * Sets the backoff between reconnect attempts. The n-th consecutive attempt waits a random time between half
+	 * and all of min(initial * 2^n, max).
+	 * 
+	 * @param initialMicroSec
+	 *            - backoff before the first attempt (default 1 msec)
+	 * @param maxMicroSec
+	 *            - max backoff (default 1 sec)
+	 */
+	public void setBackoff(long initialMicroSec, long maxMicroSec) {
+		this.initialBackoffMicroSec = Math.max(1, initialMicroSec);
+		this.maxBackoffMicroSec = Math.max(this.initialBackoffMicroSec, maxMicroSec);
+	}
+
+	/**
+	 * This method sends the request to server. If there is no established session, the request is kept in the
+	 * replay buffer and sent once the session is (re)established.
+	 * 
+	 * @param msg
+	 *            - Msg to be sent to Server
+	 * @return true if the msg was sent or kept for replay and false if the replay buffer is full, the session was
+	 *         closed or the send on the established session failed
+	 */
+	public boolean sendRequest(Msg msg) {
+		if (this.closed) {
+			LOG.warn("Trying to send message while session is closing");
+			return false;
+		}
+		if (!this.established || this.session.getIsClosing()) {
+			return addToReplay(msg);
+		}
+		// the session is up: a failed send will not be fixed by a reconnect
+		return this.session.sendRequest(msg);
+	}
+
+	/**
+	 * This method closes the session and stops reconnecting. Requests waiting for replay are failed with
+	 * onMsgError (reason MSG_FLUSHED). The method is asynchronous: SESSION_CLOSED is delivered once the current
+	 * session was closed.
+	 * 
+	 * @return true if the session is being closed and false if it was already closed
+	 */
+	public boolean close() {
+		if (this.closed) {
+			LOG.warn(this.toString() + ": attempting to close session that is already closed or being closed");
+			return false;
+		}
+		this.closed = true;
+		flushReplay();
+		if (this.reconnectTimer.isScheduled()) {
+			// between sessions: there is nothing to close on C side
+			eventQHandler.cancelTimer(this.reconnectTimer);
+			callbacks.onSessionEvent(EventName.SESSION_CLOSED, EventReason.SUCCESS);
+			return true;
+		}
+		if (!this.session.getIsClosing()) {
+			this.session.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if there is an established session to the server
+	 * 
+	 * @return true if connected
+	 */
+	public boolean isEstablished() {
+		return established;
+	}
+
+	/**
+	 * Returns the number of requests waiting for the session to be established
+	 * 
+	 * @return number of requests in the replay buffer
+	 */
+	public int getReplayCount() {
+		return replayCount;
+	}
+
+	private boolean addToReplay(Msg msg) {
+		if (this.replayCount == this.replay.length) {
+			return false;
+		}
+		this.replay[(this.replayHead + this.replayCount) % this.replay.length] = msg;
+		this.replayCount++;
+		return true;
+	}
+
+	private Msg pollReplay() {
+		Msg msg = this.replay[this.replayHead];
+		this.replay[this.replayHead] = null;
+		this.replayHead = (this.replayHead + 1) % this.replay.length;
+		this.replayCount--;
+		return msg;
+	}
+
+	private void replay() {
+		while (this.replayCount > 0 && this.established) {
+			Msg msg = pollReplay();
+			if (!this.session.sendRequest(msg)) {
+				callbacks.onMsgError(msg, EventReason.MSG_FLUSHED);
+			}
+		}
+	}
+
+	private void flushReplay() {
+		while (this.replayCount > 0) {
+			callbacks.onMsgError(pollReplay(), EventReason.MSG_FLUSHED);
+		}
+	}
+
+	private void scheduleReconnect() {
+		long backoff = Math.min(this.maxBackoffMicroSec, this.initialBackoffMicroSec << Math.min(this.attempts, 30));
+		this.attempts++;
+		// equal jitter: half of the backoff is fixed, the other half random, so that clients do not reconnect in sync
+		long jittered = backoff / 2 + nextRandom(backoff / 2 + 1);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(this.toString() + ": reconnecting to " + uri + " in " + jittered + " usec (attempt " + attempts
+			        + ")");
+		}
+		eventQHandler.scheduleTimer(this.reconnectTimer, jittered);
+	}
+
+	// xorshift, does not allocate
+	private long nextRandom(long bound) {
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (seed >>> 1) % bound;
+	}
+
+	private boolean isSessionLoss(EventReason reason) {
+		switch (reason) {
+			case TIMEOUT:
+				return false;
+			case MSG_FLUSHED:
+			case SESSION_DISCONNECTED:
+			case SESSION_ABORTED:
+				return true;
+			default:
+				return session.getIsClosing();
+		}
+	}
+
+	private class ReconnectTimer extends TimerWheel.Timer {
+		void onExpired() {
+			if (!closed) {
+				session = new ClientSession(eventQHandler, uri, sessionCallbacks);
+			}
+		}
+	}
+
+	private class SessionCallbacks implements ClientSession.Callbacks {
+
+		public void onReply(Msg msg) {
+			callbacks.onReply(msg);
+		}
+
+		public void onSessionEstablished() {
+			established = true;
+			attempts = 0;
+			callbacks.onSessionEstablished();
+			replay();
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			switch (session_event) {
+				case SESSION_CLOSED:
+					established = false;
+					if (closed) {
+						callbacks.onSessionEvent(session_event, reason);
+					} else {
+						scheduleReconnect();
+					}
+					return;
+				case SESSION_ERROR:
+					// the session is lost; once it is closed a new one is opened
+					established = false;
+					if (!session.getIsClosing()) {
+						session.close();
+					}
+					break;
+				case SESSION_REJECT:
+					established = false;
+					break;
+				default:
+					break;
+			}
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			// requests flushed because the session went down are replayed on the next session
+			if (!closed && isSessionLoss(reason) && addToReplay(msg)) {
+				return;
+			}
+			callbacks.onMsgError(msg, reason);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RequestStream is the client side of a stream opened with StreamClient.open.
+ * <p>
+ * Chunks are passed to the Listener in the order the server sent them, each in the IN buffer of one of the stream's
+ * msgs. Once onChunk returns, the Msg is sent back to the server as a credit for another chunk, so the listener must
+ * not keep it. Chunks that arrive ahead of their turn are held until the chunks before them arrive.
+ * <p>
+ * When the stream ends, its msgs return to the pool and onEnd is called once.
+ */
+public class RequestStream {
+
+	private final ClientSession session;
+	private final long          streamId;
+	private final MsgPool       pool;
+	private final Listener      listener;
+	private final Msg[]         pending;               // chunks that arrived ahead of nextSeq, by seq modulo window
+	private int                 nextSeq       = 0;
+	private int                 outstanding   = 0;     // msgs sent and not replied yet
+	private boolean             ended         = false;
+	private boolean             cancelPending = false; // a cancel waits for a msg to be sent on
+	private boolean             done          = false;
+	private EventReason         reason;
+	private Object              userContext;
+	private static final Log    LOG           = LogFactory.getLog(RequestStream.class.getCanonicalName());
+
+	/**
+	 * Receives the chunks of a stream. The methods are invoked on the thread of the EventQueueHandler
+	 */
+	public static interface Listener {
+		/**
+		 * Invoked for each chunk, in order
+		 * 
+		 * @param stream
+		 *            - the stream
+		 * @param msg
+		 *            - Msg holding the chunk in its IN buffer, from its position to its limit. It is valid only
+		 *            until this method returns
+		 */
+		public void onChunk(RequestStream stream, Msg msg);
+
+		/**
+		 * Invoked once the stream ended and all its msgs returned to the pool
+		 * 
+		 * @param stream
+		 *            - the stream
+		 * @param reason
+		 *            - SUCCESS after the last chunk, MSG_CANCELED after cancel, MSG_INVALID if the server rejected
+		 *            the stream, or the reason of the msg error that ended the stream
+		 */
+		public void onEnd(RequestStream stream, EventReason reason);
+	}
+
+	RequestStream(ClientSession session, long streamId, MsgPool pool, int window, Listener listener) {
+		this.session = session;
+		this.streamId = streamId;
+		this.pool = pool;
+		this.pending = new Msg[window];
+		this.listener = listener;
+	}
+
+	/**
+	 * Cancels the stream: no more chunks are passed to the listener and the server stops producing them. onEnd is
+	 * called with MSG_CANCELED once the msgs of the stream returned
+	 * 
+	 * @return true if the stream was cancelled and false if it already ended
+	 */
+	public boolean cancel() {
+		if (ended) {
+			return false;
+		}
+		end(EventReason.MSG_CANCELED);
+		cancelPending = true;
+		Msg msg = pool.getMsg();
+		if (msg != null) {
+			recycle(msg);
+		}
+		// otherwise the cancel is sent on the next msg that returns
+		return true;
+	}
+
+	/**
+	 * Returns the id of the stream, unique within its session
+	 * 
+	 * @return stream id
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns the number of msgs of the stream that are in flight
+	 * 
+	 * @return number of outstanding requests and credits
+	 */
+	public int getOutstanding() {
+		return outstanding;
+	}
+
+	/**
+	 * Returns true if the last chunk arrived, or the stream was cancelled or failed
+	 * 
+	 * @return true if no more chunks will be passed to the listener
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Sets an object of the application, e.g. the state of the consumer
+	 * 
+	 * @param userContext
+	 *            - object of the application
+	 */
+	public void setUserContext(Object userContext) {
+		this.userContext = userContext;
+	}
+
+	/**
+	 * Returns the object set with setUserContext
+	 * 
+	 * @return object of the application or null
+	 */
+	public Object getUserContext() {
+		return userContext;
+	}
+
+	public String toString() {
+		return "RequestStream(" + streamId + ")[seq=" + nextSeq + ", outstanding=" + outstanding + ", ended=" + ended
+		        + "]";
+	}
+
+	boolean sendRequest(Msg msg) {
+		msg.setUserContext(this);
+		if (!session.sendRequest(msg)) {
+			msg.setUserContext(null);
+			return false;
+		}
+		outstanding++;
+		return true;
+	}
+
+	boolean sendCredit(Msg msg) {
+		return sendControl(msg, StreamServer.CREDIT);
+	}
+
+	void onReply(Msg msg) {
+		outstanding--;
+		ByteBuffer in = msg.getIn();
+		boolean bad = msg.isRejected() || in.limit() < StreamServer.HEADER_LENGTH;
+		int type = bad ? StreamServer.BAD_REQUEST : in.getShort(12);
+		if (ended) {
+			recycle(msg);
+		} else if (type == StreamServer.CHUNK || type == StreamServer.LAST) {
+			int ahead = in.getInt(8) - nextSeq;
+			if (ahead < 0 || ahead >= pending.length || pending[(nextSeq + ahead) % pending.length] != null) {
+				LOG.error(this.toString() + ": unexpected chunk " + in.getInt(8));
+				end(EventReason.MSG_INVALID);
+				recycle(msg);
+			} else if (ahead > 0) {
+				pending[(nextSeq + ahead) % pending.length] = msg;
+			} else {
+				deliver(msg);
+				Msg next;
+				while (!ended && (next = pending[nextSeq % pending.length]) != null) {
+					pending[nextSeq % pending.length] = null;
+					deliver(next);
+				}
+			}
+		} else if (type == StreamServer.UNUSED) {
+			// the server holds enough credits: the window shrinks
+			release(msg);
+			if (outstanding == 0) {
+				LOG.error(this.toString() + ": the server returned all the credits without ending the stream");
+				end(EventReason.MSG_INVALID);
+			}
+		} else {
+			LOG.error(this.toString() + ": rejected by the server");
+			end(EventReason.MSG_INVALID);
+			release(msg);
+		}
+		checkDone();
+	}
+
+	void onMsgError(Msg msg, EventReason reason) {
+		outstanding--;
+		end(reason);
+		recycle(msg);
+		checkDone();
+	}
+
+	private void deliver(Msg msg) {
+		ByteBuffer in = msg.getIn();
+		boolean last = in.getShort(12) == StreamServer.LAST;
+		in.position(StreamServer.HEADER_LENGTH);
+		nextSeq++;
+		listener.onChunk(this, msg);
+		if (last) {
+			end(EventReason.SUCCESS);
+		}
+		if (ended) {
+			// the last chunk, or the listener cancelled the stream
+			recycle(msg);
+		} else if (!sendCredit(msg)) {
+			end(EventReason.MSG_FLUSHED);
+			release(msg);
+		}
+	}
+
+	private void end(EventReason reason) {
+		if (ended) {
+			return;
+		}
+		ended = true;
+		this.reason = reason;
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i] != null) {
+				release(pending[i]);
+				pending[i] = null;
+			}
+		}
+	}
+
+	// returns a msg of an ended stream, after using it for a pending cancel
+	private void recycle(Msg msg) {
+		if (cancelPending && sendControl(msg, StreamServer.CANCEL)) {
+			cancelPending = false;
+			return;
+		}
+		release(msg);
+	}
+
+	private boolean sendControl(Msg msg, int type) {
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		StreamServer.writeHeader(out, streamId, 0, type);
+		out.position(StreamServer.HEADER_LENGTH);
+		return sendRequest(msg);
+	}
+
+	private void release(Msg msg) {
+		msg.setUserContext(null);
+		msg.returnToParentPool();
+	}
+
+	private void checkDone() {
+		if (ended && outstanding == 0 && !done) {
+			done = true;
+			listener.onEnd(this, reason);
+		}
+	}
+}
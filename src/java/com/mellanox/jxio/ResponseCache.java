@@ -0,0 +1,360 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ResponseCache keeps responses to identical requests in registered memory and sends them again without calling
+ * onRequest and without copying them: a hit attaches the cached response to the Msg (see
+ * {@link Msg#attachOut(MemoryRegion, int, int)}) and RDMA reads it straight from the cache.
+ * <p>
+ * The cache is keyed by a 64 bit hash of the whole request (the IN buffer up to its limit) and a hit is confirmed
+ * by comparing the request itself. The application decides which responses are cached, typically those of read only
+ * requests, by calling put before sending them:
+ * 
+ * <pre>
+ * public void onRequest(Msg msg) {
+ * 	handleRead(msg);
+ * 	cache.put(msg);
+ * 	session.sendResponse(msg);
+ * }
+ * </pre>
+ * 
+ * and attaches the cache to its sessions with ServerSession.setResponseCache. Requests found in the cache are then
+ * answered before onRequest (and before the rate limit of the session).
+ * <p>
+ * Each entry takes a fixed slot of maxRequestSize bytes of unregistered memory and maxResponseSize bytes of
+ * registered memory, so the memory of the cache is bounded by maxEntries times their sum and nothing is allocated
+ * once it is created. Entries expire ttl after they were put, and the least recently used entry is evicted when a
+ * new one needs its slot. An entry that is being sent is pinned until its send completes: it is not evicted, and
+ * if it expires or is replaced its slot is reused only after the send completed.
+ * <p>
+ * The cache may be shared by sessions of different EventQueueHandlers (its methods are synchronized).
+ */
+public class ResponseCache {
+
+	private final int           maxEntries;
+	private final int           maxRequestSize;
+	private final int           maxResponseSize;
+	private final long          ttlNanos;
+	private final ByteBuffer    requests;
+	private final ByteBuffer    responses;
+	private final MemoryRegion  region;
+	private final int[]         requestLengths;
+	private final int[]         responseLengths;
+	private final int[]         pins;
+	private final boolean[]     indexed;
+	private final SlotRelease[] releases;
+	private final LruSlotIndex  slots;
+	private long                numHits      = 0;
+	private long                numMisses    = 0;
+	private long                numEvictions = 0;
+	private long                numExpired   = 0;
+	private static final Log    LOG          = LogFactory.getLog(ResponseCache.class.getCanonicalName());
+
+	/**
+	 * Constructor of ResponseCache. Allocates and registers the memory of the cache
+	 * 
+	 * @param maxEntries
+	 *            - maximal number of cached responses
+	 * @param maxRequestSize
+	 *            - longer requests are not cached
+	 * @param maxResponseSize
+	 *            - longer responses are not cached
+	 * @param ttlMicroSec
+	 *            - time an entry is kept after it was put, in microseconds
+	 */
+	public ResponseCache(int maxEntries, int maxRequestSize, int maxResponseSize, long ttlMicroSec) {
+		this.maxRequestSize = Math.max(0, maxRequestSize);
+		this.maxResponseSize = Math.max(0, maxResponseSize);
+		this.ttlNanos = ttlMicroSec * 1000;
+		// each slab is a single ByteBuffer, so the number of entries is limited to what fits in it
+		int maxSize = Math.max(1, Math.max(this.maxRequestSize, this.maxResponseSize));
+		int entries = Math.max(1, maxEntries);
+		if ((long) entries * maxSize > Integer.MAX_VALUE) {
+			entries = Integer.MAX_VALUE / maxSize;
+			LOG.error("cache of " + maxEntries + " entries of " + maxRequestSize + "/" + maxResponseSize
+			        + " bytes is too large, only " + entries + " entries are cached");
+		}
+		this.maxEntries = entries;
+		this.requests = ByteBuffer.allocateDirect(this.maxEntries * this.maxRequestSize);
+		this.responses = ByteBuffer.allocateDirect(this.maxEntries * this.maxResponseSize);
+		this.region = new MemoryRegion(this.responses);
+		this.requestLengths = new int[this.maxEntries];
+		this.responseLengths = new int[this.maxEntries];
+		this.pins = new int[this.maxEntries];
+		this.indexed = new boolean[this.maxEntries];
+		this.releases = new SlotRelease[this.maxEntries];
+		for (int i = 0; i < this.maxEntries; i++) {
+			this.releases[i] = new SlotRelease(i);
+		}
+		this.slots = new LruSlotIndex(this.maxEntries);
+	}
+
+	/**
+	 * Caches the response held in the OUT buffer of msg (up to its position) for the request held in its IN buffer.
+	 * A previous entry for the same request is replaced. The msg itself is not changed and should then be sent as
+	 * usual
+	 * 
+	 * @param msg
+	 *            - Msg holding a request and its response
+	 * @return true if the response was cached and false if the request or response is too long, or all the slots
+	 *         are being sent
+	 */
+	public synchronized boolean put(Msg msg) {
+		ByteBuffer in = msg.getIn();
+		ByteBuffer out = msg.getOut();
+		int reqLen = in.limit();
+		int respLen = out.position();
+		if (reqLen > maxRequestSize || respLen > maxResponseSize || msg.getOutRegion() == region) {
+			return false;
+		}
+		long key = hash(in, reqLen);
+		int old = slots.find(key);
+		if (old != LruSlotIndex.NONE) {
+			drop(old);
+		}
+		int slot = allocateSlot();
+		if (slot == LruSlotIndex.NONE) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("all " + maxEntries + " entries are being sent, response is not cached");
+			}
+			return false;
+		}
+		ByteBuffer src = in.duplicate();
+		src.limit(reqLen).position(0);
+		ByteBuffer dst = requests.duplicate();
+		dst.position(slot * maxRequestSize);
+		dst.put(src);
+		src = out.duplicate();
+		src.flip();
+		dst = responses.duplicate();
+		dst.position(slot * maxResponseSize);
+		dst.put(src);
+		requestLengths[slot] = reqLen;
+		responseLengths[slot] = respLen;
+		indexed[slot] = true;
+		slots.add(key, slot, System.nanoTime() + ttlNanos);
+		return true;
+	}
+
+	/**
+	 * Removes all the entries. Entries that are being sent are released when their send completes
+	 */
+	public synchronized void clear() {
+		int slot;
+		while ((slot = slots.leastRecentlyUsed()) != LruSlotIndex.NONE) {
+			drop(slot);
+		}
+	}
+
+	/**
+	 * Deregisters the memory of the cache. Must be called after the sessions using the cache were closed
+	 */
+	public synchronized void close() {
+		for (int i = 0; i < maxEntries; i++) {
+			if (pins[i] != 0) {
+				LOG.error("closing ResponseCache while cached responses are being sent");
+				break;
+			}
+		}
+		region.deregister();
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache
+	 * 
+	 * @return number of hits
+	 */
+	public synchronized long getNumHits() {
+		return numHits;
+	}
+
+	/**
+	 * Returns the number of requests that were not found in the cache
+	 * 
+	 * @return number of misses
+	 */
+	public synchronized long getNumMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Returns the number of entries removed to make room for newer ones
+	 * 
+	 * @return number of evictions
+	 */
+	public synchronized long getNumEvictions() {
+		return numEvictions;
+	}
+
+	/**
+	 * Returns the number of entries removed because their ttl passed
+	 * 
+	 * @return number of expired entries
+	 */
+	public synchronized long getNumExpired() {
+		return numExpired;
+	}
+
+	/**
+	 * Returns the number of cached responses
+	 * 
+	 * @return number of entries
+	 */
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	// answers the request in msg from the cache. Called on the thread of the session's EventQueueHandler
+	synchronized boolean serve(ServerSession session, Msg msg) {
+		ByteBuffer in = msg.getIn();
+		int reqLen = in.limit();
+		if (reqLen > maxRequestSize) {
+			numMisses++;
+			return false;
+		}
+		int slot = slots.find(hash(in, reqLen));
+		if (slot == LruSlotIndex.NONE) {
+			numMisses++;
+			return false;
+		}
+		if (slots.isExpired(slot, System.nanoTime())) {
+			numExpired++;
+			numMisses++;
+			drop(slot);
+			return false;
+		}
+		if (!sameRequest(in, reqLen, slot)) {
+			// hash collision
+			numMisses++;
+			return false;
+		}
+		if (!msg.attachOut(region, slot * maxResponseSize, responseLengths[slot])) {
+			numMisses++;
+			return false;
+		}
+		EventQueueHandler eqh = session.getEventQueueHandler();
+		eqh.notifyOnSendComplete(msg, releases[slot]);
+		pins[slot]++;
+		if (!session.sendResponse(msg)) {
+			eqh.cancelSendComplete(msg);
+			unpin(slot);
+		}
+		slots.touch(slot);
+		numHits++;
+		return true;
+	}
+
+	private int allocateSlot() {
+		int slot = slots.allocate();
+		if (slot != LruSlotIndex.NONE) {
+			return slot;
+		}
+		// evict the least recently used entry that is not being sent
+		long now = System.nanoTime();
+		for (slot = slots.leastRecentlyUsed(); slot != LruSlotIndex.NONE; slot = slots.nextMoreRecent(slot)) {
+			if (pins[slot] == 0) {
+				if (slots.isExpired(slot, now)) {
+					numExpired++;
+				} else {
+					numEvictions++;
+				}
+				slots.detach(slot);
+				indexed[slot] = false;
+				return slot;
+			}
+		}
+		return LruSlotIndex.NONE;
+	}
+
+	// removes an entry, its slot is freed once it is not being sent
+	private void drop(int slot) {
+		slots.detach(slot);
+		indexed[slot] = false;
+		if (pins[slot] == 0) {
+			slots.free(slot);
+		}
+	}
+
+	private void unpin(int slot) {
+		pins[slot]--;
+		if (pins[slot] == 0 && !indexed[slot]) {
+			slots.free(slot);
+		}
+	}
+
+	private boolean sameRequest(ByteBuffer in, int len, int slot) {
+		if (requestLengths[slot] != len) {
+			return false;
+		}
+		int base = slot * maxRequestSize;
+		int i = 0;
+		if (in.order() == requests.order()) {
+			for (; i + 8 <= len; i += 8) {
+				if (in.getLong(i) != requests.getLong(base + i)) {
+					return false;
+				}
+			}
+		}
+		for (; i < len; i++) {
+			if (in.get(i) != requests.get(base + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// 64 bit hash of the first len bytes of buf, 8 bytes at a time
+	private static long hash(ByteBuffer buf, int len) {
+		long h = 0x9e3779b97f4a7c15L ^ len;
+		int i = 0;
+		for (; i + 8 <= len; i += 8) {
+			long k = buf.getLong(i) * 0x87c37b91114253d5L;
+			k = Long.rotateLeft(k, 31) * 0x4cf5ad432745937fL;
+			h = Long.rotateLeft(h ^ k, 27) * 5 + 0x52dce729;
+		}
+		for (; i < len; i++) {
+			h = (h ^ (buf.get(i) & 0xff)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// releases the pin of a slot when a response sent from it completed
+	private class SlotRelease implements EventQueueHandler.SendCompleteListener {
+		private final int slot;
+
+		SlotRelease(int slot) {
+			this.slot = slot;
+		}
+
+		public void onSendComplete(Msg msg, boolean delivered) {
+			synchronized (ResponseCache.this) {
+				unpin(slot);
+			}
+		}
+	}
+}
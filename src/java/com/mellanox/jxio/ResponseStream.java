@@ -0,0 +1,204 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ResponseStream is the server side of a stream opened by a client, see StreamServer.
+ * <p>
+ * Chunks are sent on the credits of the stream: nextChunk returns the Msg of a credit with its OUT buffer positioned
+ * after the header, and send sends it. When the stream has no credits, nextChunk returns null and the producer waits
+ * for StreamServer.Handler.onCredit. The stream ends with the chunk sent with last set (or with finish), after which
+ * the remaining credits are returned to the client.
+ * <p>
+ * The methods must be called on the thread of the EventQueueHandler of the session's msgs.
+ */
+public class ResponseStream {
+
+	private final ServerSession             session;
+	private final long                      streamId;
+	private final Map<Long, ResponseStream> streams;
+	private final ArrayDeque<Msg>           credits   = new ArrayDeque<Msg>();
+	private int                             nextSeq   = 0;
+	private boolean                         closed    = false;
+	private boolean                         finishing = false;
+	private Object                          userContext;
+	private static final Log                LOG       = LogFactory.getLog(ResponseStream.class.getCanonicalName());
+
+	ResponseStream(ServerSession session, long streamId, Map<Long, ResponseStream> streams) {
+		this.session = session;
+		this.streamId = streamId;
+		this.streams = streams;
+	}
+
+	/**
+	 * Returns a Msg for the next chunk, or null if the stream has no credits or was closed. The chunk is written to
+	 * the OUT buffer of the Msg from its position, and the Msg must then be passed to send
+	 * 
+	 * @return Msg for the next chunk or null
+	 */
+	public Msg nextChunk() {
+		if (closed || finishing) {
+			return null;
+		}
+		Msg msg = credits.poll();
+		if (msg != null) {
+			ByteBuffer out = msg.getOut();
+			out.clear();
+			out.position(StreamServer.HEADER_LENGTH);
+		}
+		return msg;
+	}
+
+	/**
+	 * Sends a chunk. Chunks are delivered to the client in the order they are sent
+	 * 
+	 * @param chunk
+	 *            - Msg returned by nextChunk, holding the chunk in its OUT buffer up to its position
+	 * @param last
+	 *            - true if this is the last chunk of the stream
+	 * @return true if the chunk was sent and false if the stream was cancelled or the send failed
+	 */
+	public boolean send(Msg chunk, boolean last) {
+		if (closed) {
+			// cancelled while the chunk was written: the credit still has to be answered
+			StreamServer.answer(session, chunk, streamId, StreamServer.UNUSED);
+			return false;
+		}
+		StreamServer.writeHeader(chunk.getOut(), streamId, nextSeq++, last ? StreamServer.LAST : StreamServer.CHUNK);
+		boolean sent = session.sendResponse(chunk);
+		if (last) {
+			close();
+		}
+		return sent;
+	}
+
+	/**
+	 * Ends the stream without data: sends an empty last chunk, at once if the stream has a credit and otherwise
+	 * when the next credit arrives
+	 */
+	public void finish() {
+		if (closed || finishing) {
+			return;
+		}
+		finishing = true;
+		finishPending();
+	}
+
+	/**
+	 * Returns the number of chunks that can be sent now
+	 * 
+	 * @return number of credits held by the stream
+	 */
+	public int getCredits() {
+		return credits.size();
+	}
+
+	/**
+	 * Returns true if the last chunk was sent or the stream was cancelled
+	 * 
+	 * @return true if no more chunks can be sent
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the id of the stream, unique within its session
+	 * 
+	 * @return stream id
+	 */
+	public long getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns the ServerSession on which the stream was opened
+	 * 
+	 * @return the ServerSession
+	 */
+	public ServerSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Sets an object of the application, e.g. the state of the producer
+	 * 
+	 * @param userContext
+	 *            - object of the application
+	 */
+	public void setUserContext(Object userContext) {
+		this.userContext = userContext;
+	}
+
+	/**
+	 * Returns the object set with setUserContext
+	 * 
+	 * @return object of the application or null
+	 */
+	public Object getUserContext() {
+		return userContext;
+	}
+
+	public String toString() {
+		return "ResponseStream(" + streamId + ")[seq=" + nextSeq + ", credits=" + credits.size() + ", closed="
+		        + closed + "]";
+	}
+
+	void addCredit(Msg msg) {
+		credits.add(msg);
+	}
+
+	// sends the empty last chunk of finish if there is a credit for it. Returns true if finish is pending
+	boolean finishPending() {
+		if (!finishing) {
+			return false;
+		}
+		Msg msg = credits.poll();
+		if (msg != null) {
+			msg.getOut().clear().position(StreamServer.HEADER_LENGTH);
+			send(msg, true);
+		}
+		return true;
+	}
+
+	// the client cancelled the stream or the session is closed
+	void cancel() {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(session.toString() + ": " + this + " was cancelled");
+		}
+		close();
+	}
+
+	private void close() {
+		closed = true;
+		streams.remove(streamId);
+		Msg msg;
+		while ((msg = credits.poll()) != null) {
+			if (!session.getIsClosing()) {
+				// the msgs of a closing session are released when it is closed
+				StreamServer.answer(session, msg, streamId, StreamServer.UNUSED);
+			}
+		}
+	}
+}
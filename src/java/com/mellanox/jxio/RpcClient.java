@@ -0,0 +1,164 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RpcClient calls methods of an RpcServer over a ClientSession and returns an RpcFuture for each call.
+ * <p>
+ * The arguments are written in place to the OUT buffer of a Msg from the pool, after space for the header:
+ * 
+ * <pre>
+ * Msg msg = pool.getMsg();
+ * RpcClient.startCall(msg).putLong(key);
+ * rpcClient.call(GET_METHOD, msg).setListener(listener);
+ * </pre>
+ * 
+ * When the response arrives the future completes with the same Msg, whose IN buffer is positioned at the result.
+ * <p>
+ * The session events are delivered to the ClientSession.Callbacks given in the c-tor. The replies and msg errors of
+ * calls complete their futures instead; replies and msg errors of msgs sent directly on getSession() are delivered
+ * to the callbacks as usual.
+ */
+public class RpcClient {
+
+	private final ClientSession           session;
+	private final EventQueueHandler       eventQHandler;
+	private final ClientSession.Callbacks callbacks;
+	private static final Log              LOG = LogFactory.getLog(RpcClient.class.getCanonicalName());
+
+	/**
+	 * Constructor of RpcClient. Opens a ClientSession to uri
+	 * 
+	 * @param eventQHandler
+	 *            - EventQueueHandler on which the events of the session will arrive
+	 * @param uri
+	 *            - URI of the RpcServer
+	 * @param callbacks
+	 *            - implementation of Interface ClientSession.Callbacks receiving the session events
+	 */
+	public RpcClient(EventQueueHandler eventQHandler, URI uri, ClientSession.Callbacks callbacks) {
+		this.eventQHandler = eventQHandler;
+		this.callbacks = callbacks;
+		this.session = new ClientSession(eventQHandler, uri, new RpcClientCallbacks());
+	}
+
+	/**
+	 * Prepares the OUT buffer of msg for the arguments of a call: clears it and skips the space of the header
+	 * 
+	 * @param msg
+	 *            - Msg for the call
+	 * @return OUT buffer of msg, to which the arguments are written
+	 */
+	public static ByteBuffer startCall(Msg msg) {
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		out.position(RpcServer.HEADER_LENGTH);
+		return out;
+	}
+
+	/**
+	 * Calls a method of the server. The arguments must have been written to msg after startCall.
+	 * <p>
+	 * May be called from any thread. If the EventQueueHandler of the session runs in a different thread (or is not
+	 * running yet), the msg is handed over to it, and a failure to send it fails the future.
+	 * 
+	 * @param methodId
+	 *            - method id, between 0 and RpcServer.MAX_METHOD_ID
+	 * @param msg
+	 *            - Msg holding the arguments
+	 * @return future of the call or null if the call could not be sent
+	 */
+	public RpcFuture call(int methodId, Msg msg) {
+		if (methodId < 0 || methodId > RpcServer.MAX_METHOD_ID) {
+			LOG.error("method id " + methodId + " is out of range");
+			return null;
+		}
+		ByteBuffer out = msg.getOut();
+		if (out.position() < RpcServer.HEADER_LENGTH) {
+			LOG.error("no space for the rpc header in " + msg + ", RpcClient.startCall was not called");
+			return null;
+		}
+		out.putShort(0, (short) methodId);
+		out.putShort(2, (short) 0);
+		RpcFuture future = new RpcFuture(msg);
+		msg.setUserContext(future);
+		if (eventQHandler.isEventLoopThread()) {
+			if (!session.sendRequest(msg)) {
+				msg.setUserContext(future.getUserContext());
+				return null;
+			}
+			return future;
+		}
+		msg.setPostedTo(session);
+		eventQHandler.postMsg(msg);
+		return future;
+	}
+
+	/**
+	 * Returns the ClientSession of this RpcClient, e.g. for setting the in flight window
+	 * 
+	 * @return the ClientSession
+	 */
+	public ClientSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Closes the session. The method is asynchronous: SESSION_CLOSED is delivered to the callbacks when the session
+	 * is closed, calls still in flight fail before it
+	 * 
+	 * @return true if there was a successful call to close of the session and false otherwise
+	 */
+	public boolean close() {
+		return session.close();
+	}
+
+	private class RpcClientCallbacks implements ClientSession.Callbacks {
+
+		public void onReply(Msg msg) {
+			Object ctx = msg.getUserContext();
+			if (ctx instanceof RpcFuture) {
+				((RpcFuture) ctx).complete(null);
+			} else {
+				callbacks.onReply(msg);
+			}
+		}
+
+		public void onSessionEstablished() {
+			callbacks.onSessionEstablished();
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			Object ctx = msg.getUserContext();
+			if (ctx instanceof RpcFuture) {
+				((RpcFuture) ctx).complete(reason);
+			} else {
+				callbacks.onMsgError(msg, reason);
+			}
+		}
+	}
+}
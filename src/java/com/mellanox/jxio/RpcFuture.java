@@ -0,0 +1,196 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RpcFuture is the result of RpcClient.call. It completes with the Msg of the call when the response arrives, or
+ * fails with the EventReason of the msg error.
+ * <p>
+ * The result may be taken in two ways:
+ * 1. setListener - the listener is invoked on the thread of the EventQueueHandler when the call completes (or at
+ * once, if it already completed). This does not block and is the way to use from the EventQueueHandler's thread.
+ * 2. get - blocks until the call completes. Must not be called from the thread of the EventQueueHandler of the
+ * session, since that thread completes the call.
+ * <p>
+ * Once the call completed the Msg holds the result in its IN buffer, positioned after the response header, and its
+ * user context is restored to the value it had before the call. The Msg belongs to the application again and should
+ * be returned to its pool when it is no longer needed.
+ */
+public class RpcFuture implements Future<Msg> {
+
+	private static final int PENDING   = 0;
+	private static final int COMPLETED = 1;
+	private static final int FAILED    = 2;
+
+	private final Msg        msg;
+	private final Object     userContext;
+	private int              state     = PENDING;
+	private int              status    = -1;
+	private EventReason      reason;
+	private Listener         listener;
+
+	/**
+	 * Notified when a call completes
+	 */
+	public static interface Listener {
+		/**
+		 * Invoked when the call completed or failed
+		 * 
+		 * @param future
+		 *            - the completed future
+		 */
+		public void onComplete(RpcFuture future);
+	}
+
+	RpcFuture(Msg msg) {
+		this.msg = msg;
+		this.userContext = msg.getUserContext();
+	}
+
+	/**
+	 * Sets the listener notified when the call completes. If the call already completed the listener is invoked
+	 * right away, on the calling thread
+	 * 
+	 * @param listener
+	 *            - listener to notify
+	 */
+	public void setListener(Listener listener) {
+		synchronized (this) {
+			if (state == PENDING) {
+				this.listener = listener;
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	/**
+	 * Returns the Msg of the call
+	 * 
+	 * @return Msg passed to RpcClient.call
+	 */
+	public Msg getMsg() {
+		return msg;
+	}
+
+	/**
+	 * Returns true if the response arrived
+	 * 
+	 * @return true if the call completed and false if it is pending or failed
+	 */
+	public synchronized boolean isCompleted() {
+		return state == COMPLETED;
+	}
+
+	/**
+	 * Returns the status of the response, one of RpcServer.STATUS_* or a status set by the handler
+	 * 
+	 * @return status of the response or -1 if the call did not complete
+	 */
+	public synchronized int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the reason the call failed
+	 * 
+	 * @return EventReason of the msg error or null if the call did not fail
+	 */
+	public synchronized EventReason getErrorReason() {
+		return reason;
+	}
+
+	/**
+	 * Calls in flight can not be cancelled
+	 * 
+	 * @return false
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return state != PENDING;
+	}
+
+	public synchronized Msg get() throws InterruptedException, ExecutionException {
+		while (state == PENDING) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized Msg get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+	        TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (state == PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	private Msg result() throws ExecutionException {
+		if (state == FAILED) {
+			throw new ExecutionException("rpc call failed: " + reason, null);
+		}
+		return msg;
+	}
+
+	Object getUserContext() {
+		return userContext;
+	}
+
+	void complete(EventReason failure) {
+		Listener l;
+		msg.setUserContext(userContext);
+		synchronized (this) {
+			if (failure == null) {
+				ByteBuffer in = msg.getIn();
+				if (msg.isRejected() || in.limit() < RpcServer.HEADER_LENGTH) {
+					// the server session rejected the request (rate limit or deadline) before RpcServer saw it
+					status = RpcServer.STATUS_REJECTED;
+				} else {
+					status = in.getShort(2) & 0xffff;
+					in.position(RpcServer.HEADER_LENGTH);
+				}
+				state = COMPLETED;
+			} else {
+				reason = failure;
+				state = FAILED;
+			}
+			l = listener;
+			notifyAll();
+		}
+		if (l != null) {
+			l.onComplete(this);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RpcServer dispatches the requests of ServerSessions to handlers registered by method id.
+ * <p>
+ * Each request and response starts with a 4 byte header: method id (2 bytes) and status (2 bytes, 0 in requests),
+ * followed by the arguments or the result. The header is read and written in place, so the arguments and result
+ * are neither copied nor wrapped: the handler gets the received Msg itself, with the IN buffer positioned at the
+ * arguments and the OUT buffer positioned after the response header (with status STATUS_OK already written), and
+ * answers with the usual ServerSession.sendResponse. The response may be sent later, from the EventQueueHandler's
+ * thread with sendResponse or from any thread with ServerSession.postResponse, so handlers can complete
+ * asynchronously.
+ * <p>
+ * Sessions are created with newSession instead of the ServerSession c-tor:
+ * 
+ * <pre>
+ * public void onSessionNew(ServerSession.SessionKey sesKey, String srcIP) {
+ * 	portal.accept(rpcServer.newSession(sesKey, sessionCallbacks));
+ * }
+ * </pre>
+ * 
+ * Requests with a method id that has no handler are answered with STATUS_UNKNOWN_METHOD, and requests shorter than
+ * the header with STATUS_BAD_REQUEST, without involving the application. Dispatch is an array lookup, and a single
+ * RpcServer may serve sessions on several EventQueueHandlers once all the handlers are registered.
+ */
+public class RpcServer {
+
+	/**
+	 * Length of the header preceding the arguments and the result
+	 */
+	public static final int     HEADER_LENGTH         = 4;
+	/**
+	 * The request was dispatched to its handler
+	 */
+	public static final int     STATUS_OK             = 0;
+	/**
+	 * No handler is registered for the method id of the request
+	 */
+	public static final int     STATUS_UNKNOWN_METHOD = 1;
+	/**
+	 * The request is too short to hold the header
+	 */
+	public static final int     STATUS_BAD_REQUEST    = 2;
+	/**
+	 * The response has no header: the server answered without dispatching, e.g. the request exceeded the rate limit
+	 * of the session (see ServerSession.setRateLimit)
+	 */
+	public static final int     STATUS_REJECTED       = 3;
+	/**
+	 * Largest method id, method ids are sent as 2 unsigned bytes
+	 */
+	public static final int     MAX_METHOD_ID         = 0xffff;
+
+	private final Handler[]     handlers;
+	private static final Log    LOG                   = LogFactory.getLog(RpcServer.class.getCanonicalName());
+
+	/**
+	 * Handles calls of one method
+	 */
+	public static interface Handler {
+		/**
+		 * Invoked on the thread of the EventQueueHandler of the session when a request for the method arrives.
+		 * The arguments are in msg.getIn(), from its position to its limit. The result should be written to
+		 * msg.getOut() from its position and sent with session.sendResponse(msg) or session.postResponse(msg),
+		 * either before returning or later. Status other than STATUS_OK may be set with RpcServer.setStatus.
+		 * 
+		 * @param session
+		 *            - ServerSession on which the request arrived
+		 * @param msg
+		 *            - Msg holding the request
+		 */
+		public void onCall(ServerSession session, Msg msg);
+	}
+
+	/**
+	 * Constructor of RpcServer
+	 * 
+	 * @param maxMethodId
+	 *            - largest method id that will be registered, at most MAX_METHOD_ID
+	 */
+	public RpcServer(int maxMethodId) {
+		if (maxMethodId < 0 || maxMethodId > MAX_METHOD_ID) {
+			LOG.error("maxMethodId " + maxMethodId + " is out of range, using " + MAX_METHOD_ID);
+			maxMethodId = MAX_METHOD_ID;
+		}
+		this.handlers = new Handler[maxMethodId + 1];
+	}
+
+	/**
+	 * Registers the handler of a method, replacing the previous handler of that method id if there was one. Handlers
+	 * should be registered before requests arrive
+	 * 
+	 * @param methodId
+	 *            - method id, between 0 and maxMethodId given in the c-tor
+	 * @param handler
+	 *            - handler of the method or null to unregister the method
+	 * @return true if the handler was registered and false if the method id is out of range
+	 */
+	public boolean register(int methodId, Handler handler) {
+		if (methodId < 0 || methodId >= handlers.length) {
+			LOG.error("method id " + methodId + " is out of range 0.." + (handlers.length - 1));
+			return false;
+		}
+		this.handlers[methodId] = handler;
+		return true;
+	}
+
+	/**
+	 * Creates a ServerSession whose requests are dispatched by this RpcServer. The session events, msg errors and
+	 * one way msgs are delivered to callbacks, whose onRequest is not used
+	 * 
+	 * @param sessionKey
+	 *            - SessionKey received in ServerPortal.Callbacks.onSessionNew
+	 * @param callbacks
+	 *            - implementation of Interface ServerSession.Callbacks receiving the other events of the session
+	 * @return the new ServerSession, to be passed to ServerPortal.accept or ServerPortal.forward
+	 */
+	public ServerSession newSession(ServerSession.SessionKey sessionKey, ServerSession.Callbacks callbacks) {
+		RpcSessionCallbacks rpcCallbacks = new RpcSessionCallbacks(callbacks);
+		ServerSession session = new ServerSession(sessionKey, rpcCallbacks);
+		rpcCallbacks.session = session;
+		return session;
+	}
+
+	/**
+	 * Returns the method id of the request held in msg
+	 * 
+	 * @param msg
+	 *            - Msg received by a ServerSession of this RpcServer
+	 * @return method id of the request
+	 */
+	public static int getMethodId(Msg msg) {
+		return msg.getIn().getShort(0) & 0xffff;
+	}
+
+	/**
+	 * Sets the status of the response held in msg. The status is STATUS_OK unless set otherwise. Values below 16 are
+	 * reserved for RpcServer
+	 * 
+	 * @param msg
+	 *            - Msg passed to Handler.onCall
+	 * @param status
+	 *            - status of the response, between 0 and 65535
+	 */
+	public static void setStatus(Msg msg, int status) {
+		msg.getOut().putShort(2, (short) status);
+	}
+
+	private void dispatch(ServerSession session, Msg msg) {
+		ByteBuffer in = msg.getIn();
+		ByteBuffer out = msg.getOut();
+		if (in.limit() < HEADER_LENGTH) {
+			LOG.error(session.toString() + ": request of " + in.limit() + " bytes is too short for the rpc header");
+			reject(session, msg, 0, STATUS_BAD_REQUEST);
+			return;
+		}
+		int methodId = in.getShort(0) & 0xffff;
+		Handler handler = (methodId < handlers.length) ? handlers[methodId] : null;
+		if (handler == null) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug(session.toString() + ": no handler for method id " + methodId);
+			}
+			reject(session, msg, methodId, STATUS_UNKNOWN_METHOD);
+			return;
+		}
+		in.position(HEADER_LENGTH);
+		out.putShort(0, (short) methodId);
+		out.putShort(2, (short) STATUS_OK);
+		out.position(HEADER_LENGTH);
+		handler.onCall(session, msg);
+	}
+
+	private void reject(ServerSession session, Msg msg, int methodId, int status) {
+		ByteBuffer out = msg.getOut();
+		out.putShort(0, (short) methodId);
+		out.putShort(2, (short) status);
+		out.position(HEADER_LENGTH);
+		session.sendResponse(msg);
+	}
+
+	private class RpcSessionCallbacks implements ServerSession.Callbacks {
+		private final ServerSession.Callbacks callbacks;
+		private ServerSession                 session;
+
+		RpcSessionCallbacks(ServerSession.Callbacks callbacks) {
+			this.callbacks = callbacks;
+		}
+
+		public void onRequest(Msg msg) {
+			dispatch(session, msg);
+		}
+
+		public void onOneWay(Msg msg) {
+			callbacks.onOneWay(msg);
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public boolean onMsgError(Msg msg, EventReason reason) {
+			return callbacks.onMsgError(msg, reason);
+		}
+	}
+}
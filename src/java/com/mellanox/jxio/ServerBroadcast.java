@@ -0,0 +1,287 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ServerBroadcast sends the same payload to many ServerSessions without copying it.
+ * <p>
+ * A server can only send a Msg to a client as the response to one of its requests. Clients that want to receive
+ * broadcasts send subscription requests, which the server parks with subscribe instead of answering them. broadcast
+ * then attaches the same slice of a MemoryRegion to one parked request of every subscribed session and sends them
+ * all: the payload exists once in memory, whatever the number of sessions, and is never copied to the Msgs. When
+ * the last of the responses completed (was sent, or failed), the ReleaseListener of the broadcast is called and the
+ * slice may be reused. A client typically sends a new subscription request each time it receives a broadcast, or
+ * keeps several of them parked.
+ * <p>
+ * All the sessions of a ServerBroadcast must receive their msgs on the same EventQueueHandler, and all the methods
+ * must be called from its thread. A server with several worker portals uses one ServerBroadcast per worker.
+ */
+public class ServerBroadcast {
+
+	private final Map<ServerSession, ArrayDeque<Msg>> subscribers = new LinkedHashMap<ServerSession, ArrayDeque<Msg>>();
+	private int                                       numParked   = 0;
+	private EventQueueHandler                         eqh         = null;
+	private static final Log                          LOG         = LogFactory.getLog(ServerBroadcast.class
+	                                                                      .getCanonicalName());
+
+	/**
+	 * Notified when all the responses of a broadcast completed
+	 */
+	public static interface ReleaseListener {
+		/**
+		 * Invoked on the thread of the EventQueueHandler once no response of the broadcast references the payload
+		 * 
+		 * @param region
+		 *            - MemoryRegion holding the payload
+		 * @param offset
+		 *            - offset of the payload in the region
+		 * @param length
+		 *            - length of the payload
+		 * @param numDelivered
+		 *            - number of sessions the payload was sent to
+		 */
+		public void onReleased(MemoryRegion region, int offset, int length, int numDelivered);
+	}
+
+	/**
+	 * Parks a request of session, to be answered by the next broadcast
+	 * 
+	 * @param session
+	 *            - ServerSession on which the request arrived
+	 * @param msg
+	 *            - the request, received in ServerSession.Callbacks.onRequest
+	 * @return true if the request was parked and false if the session receives its msgs on a different
+	 *         EventQueueHandler than the other subscribers
+	 */
+	public boolean subscribe(ServerSession session, Msg msg) {
+		EventQueueHandler sessionEqh = session.getEventQueueHandler();
+		if (this.eqh == null) {
+			this.eqh = sessionEqh;
+		} else if (sessionEqh != this.eqh) {
+			LOG.error(session.toString() + " is progressed by a different EventQueueHandler than the other subscribers");
+			return false;
+		}
+		ArrayDeque<Msg> parked = subscribers.get(session);
+		if (parked == null) {
+			parked = new ArrayDeque<Msg>();
+			subscribers.put(session, parked);
+		}
+		parked.add(msg);
+		numParked++;
+		session.setParksRequests();
+		return true;
+	}
+
+	/**
+	 * Removes session from the subscribers. Its parked requests are answered with empty responses, unless the session
+	 * is closing. Should be called at the latest when the session is closed
+	 * 
+	 * @param session
+	 *            - ServerSession to remove
+	 * @return number of parked requests the session had
+	 */
+	public int unsubscribe(ServerSession session) {
+		ArrayDeque<Msg> parked = subscribers.remove(session);
+		if (parked == null) {
+			return 0;
+		}
+		int n = parked.size();
+		numParked -= n;
+		if (!session.getIsClosing()) {
+			for (Msg msg : parked) {
+				msg.getOut().clear();
+				session.sendResponse(msg);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of sessions with parked requests
+	 * 
+	 * @return number of sessions a broadcast would be sent to
+	 */
+	public int getNumSubscribers() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Returns the number of parked requests of all the sessions
+	 * 
+	 * @return number of parked requests
+	 */
+	public int getNumParked() {
+		return numParked;
+	}
+
+	/**
+	 * Sends a slice of region to every subscribed session, answering the oldest parked request of each. Sessions whose
+	 * parked requests were all used are no longer subscribed. The slice must not change until listener is called
+	 * 
+	 * @param region
+	 *            - registered memory holding the payload
+	 * @param offset
+	 *            - offset of the payload in region
+	 * @param length
+	 *            - length of the payload
+	 * @param listener
+	 *            - notified when the payload is no longer referenced, may be null
+	 * @return number of sessions the payload was sent to or -1 if the slice is not valid or the method was not called
+	 *         from the thread of the EventQueueHandler of the sessions
+	 */
+	public int broadcast(MemoryRegion region, int offset, int length, ReleaseListener listener) {
+		if (!canBroadcast(region, offset, length)) {
+			return -1;
+		}
+		Delivery delivery = new Delivery(region, offset, length, listener);
+		Iterator<Map.Entry<ServerSession, ArrayDeque<Msg>>> it = subscribers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ServerSession, ArrayDeque<Msg>> e = it.next();
+			ServerSession session = e.getKey();
+			ArrayDeque<Msg> parked = e.getValue();
+			Msg msg = parked.poll();
+			numParked--;
+			if (parked.isEmpty()) {
+				it.remove();
+			}
+			delivery.send(session, msg);
+		}
+		return delivery.seal();
+	}
+
+	/**
+	 * Sends a slice of region to some of the subscribed sessions, answering the oldest parked request of each.
+	 * Sessions without parked requests are skipped. The slice must not change until listener is called
+	 * 
+	 * @param sessions
+	 *            - sessions to send the payload to
+	 * @param count
+	 *            - number of sessions from the beginning of sessions
+	 * @param region
+	 *            - registered memory holding the payload
+	 * @param offset
+	 *            - offset of the payload in region
+	 * @param length
+	 *            - length of the payload
+	 * @param listener
+	 *            - notified when the payload is no longer referenced, may be null
+	 * @return number of sessions the payload was sent to or -1 if the slice is not valid or the method was not called
+	 *         from the thread of the EventQueueHandler of the sessions
+	 */
+	public int broadcast(ServerSession[] sessions, int count, MemoryRegion region, int offset, int length,
+	        ReleaseListener listener) {
+		if (!canBroadcast(region, offset, length)) {
+			return -1;
+		}
+		Delivery delivery = new Delivery(region, offset, length, listener);
+		for (int i = 0; i < count; i++) {
+			ArrayDeque<Msg> parked = subscribers.get(sessions[i]);
+			if (parked == null) {
+				continue;
+			}
+			Msg msg = parked.poll();
+			numParked--;
+			if (parked.isEmpty()) {
+				subscribers.remove(sessions[i]);
+			}
+			delivery.send(sessions[i], msg);
+		}
+		return delivery.seal();
+	}
+
+	private boolean canBroadcast(MemoryRegion region, int offset, int length) {
+		if (region == null || region.getId() == 0 || offset < 0 || length < 0 || offset + length > region.capacity()) {
+			LOG.error("can not broadcast slice offset=" + offset + ", length=" + length + " of " + region);
+			return false;
+		}
+		if (this.eqh != null && !this.eqh.isEventLoopThread()) {
+			LOG.error("broadcast must be called from the thread of the EventQueueHandler of the subscribers");
+			return false;
+		}
+		return true;
+	}
+
+	// one broadcast payload, released when the completions of all its responses arrived
+	private static class Delivery implements EventQueueHandler.SendCompleteListener {
+		private final MemoryRegion    region;
+		private final int             offset;
+		private final int             length;
+		private final ReleaseListener listener;
+		private int                   pending   = 0;
+		private int                   delivered = 0;
+		private boolean               sealed    = false;
+
+		Delivery(MemoryRegion region, int offset, int length, ReleaseListener listener) {
+			this.region = region;
+			this.offset = offset;
+			this.length = length;
+			this.listener = listener;
+		}
+
+		void send(ServerSession session, Msg msg) {
+			if (session.getIsClosing()) {
+				// the msgs of a closing session are released when it is closed
+				return;
+			}
+			EventQueueHandler eqh = session.getEventQueueHandler();
+			msg.attachOut(region, offset, length);
+			eqh.notifyOnSendComplete(msg, this);
+			pending++;
+			if (!session.sendResponse(msg)) {
+				eqh.cancelSendComplete(msg);
+				pending--;
+			}
+		}
+
+		int seal() {
+			sealed = true;
+			int sent = pending;
+			if (pending == 0) {
+				release();
+			}
+			return sent;
+		}
+
+		public void onSendComplete(Msg msg, boolean isDelivered) {
+			pending--;
+			if (isDelivered) {
+				delivered++;
+			}
+			if (sealed && pending == 0) {
+				release();
+			}
+		}
+
+		private void release() {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("broadcast of " + length + " bytes of " + region + " completed, delivered to " + delivered
+				        + " sessions");
+			}
+			if (listener != null) {
+				listener.onReleased(region, offset, length, delivered);
+			}
+		}
+	}
+}
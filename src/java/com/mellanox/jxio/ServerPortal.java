@@ -26,8 +26,12 @@ import com.mellanox.jxio.impl.EventSession;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ServerPortal is the object which listens to incoming connections. He can accept/reject or forward to
@@ -41,6 +45,10 @@ import java.util.Set;
  * 1. onSessionNew.
  * 2. onSessionEvent.
  * 
+ * A listener can balance the new sessions between its workers: the workers are registered with addWorker and
+ * forwardBalanced picks one of them according to the ForwardPolicy. Before shutting down, a portal can be
+ * drained (see drain) instead of closed.
+ * 
  */
 public class ServerPortal extends EventQueueHandler.Eventable {
 
@@ -50,8 +58,43 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 	private URI                     uriPort0;
 	private final int               port;
 	private Set<ServerSession>      sessions = new HashSet<ServerSession>();
+	// load of this portal, updated by the EQHs of its sessions and read by the listener forwarding to it
+	private final AtomicInteger     numSessions         = new AtomicInteger(0);
+	private final AtomicInteger     numRequestsInFlight = new AtomicInteger(0);
+	// workers of this listener, used by forwardBalanced
+	private ServerPortal[]          workers             = new ServerPortal[0];
+	private int[]                   weights             = new int[0];
+	private int[]                   currentWeights      = new int[0];
+	private ForwardPolicy           forwardPolicy       = ForwardPolicy.ROUND_ROBIN;
+	private int                     nextWorker          = 0;
+	// consistent hash ring of the workers: sorted hashes of the virtual nodes and the worker owning each of them
+	private long[]                  ringHashes          = new long[0];
+	private int[]                   ringWorkers         = new int[0];
+	private String                  affinityParam       = null;                // null means the URI path
+	private static final int        VIRTUAL_NODES       = 128;                 // per unit of weight
+	private volatile boolean        draining            = false;
 	private static final Log        LOG      = LogFactory.getLog(ServerPortal.class.getCanonicalName());
 
+	/**
+	 * Policies used by forwardBalanced for choosing the worker a new session is forwarded to
+	 */
+	public static enum ForwardPolicy {
+		/** the workers are chosen one after the other */
+		ROUND_ROBIN,
+		/** the worker with the least open sessions is chosen */
+		LEAST_SESSIONS,
+		/** the worker with the least requests that were received and not answered yet is chosen */
+		LEAST_IN_FLIGHT,
+		/** the workers are chosen in proportion to the weight they were added with (smooth weighted round robin) */
+		WEIGHTED,
+		/**
+		 * the worker is chosen by hashing the affinity key of the session URI (see setAffinityKey) on a consistent
+		 * hash ring, so sessions with the same key land on the same worker and adding or removing a worker moves
+		 * only the sessions of its share of the ring
+		 */
+		CONSISTENT_HASH
+	}
+
 	public static interface Callbacks {
 
 		/**
@@ -76,6 +119,29 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 		public void onSessionEvent(EventName session_event, EventReason reason);
 	}
 
+	/**
+	 * Progress of ServerPortal.drain and ServerSession.drain is reported to an implementation of this interface
+	 */
+	public static interface DrainCallbacks {
+		/**
+		 * Called when drain starts and whenever the number of sessions or requests in flight changes
+		 * 
+		 * @param numSessions
+		 *            - sessions that are still open
+		 * @param numRequestsInFlight
+		 *            - requests that were received and not answered yet
+		 */
+		public void onDrainProgress(int numSessions, int numRequestsInFlight);
+
+		/**
+		 * Called once the drained object was closed
+		 * 
+		 * @param graceful
+		 *            - true if all the requests were answered and false if the time out passed first
+		 */
+		public void onDrainComplete(boolean graceful);
+	}
+
 	/**
 	 * This constructor is for the ServerPortal listener. He istens on a well known port and redirects
 	 * the request for a new session to ServerPortal worker
@@ -167,6 +233,65 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 		return true;
 	}
 
+	/**
+	 * This method drains the ServerPortal and then closes it, for example before a rolling deploy.
+	 * <p>
+	 * New sessions are not accepted anymore: a listener rejects them (reason SESSION_REFUSED) without calling
+	 * onSessionNew and forwardBalanced does not forward sessions to a draining worker. Once all the requests received
+	 * by the sessions of this portal were answered, or once the time out passed, the portal is closed (see close).
+	 * <p>
+	 * Draining a listener also waits for the sessions it forwarded to the workers added with addWorker: their sessions
+	 * and requests in flight are counted as well, but the workers are not closed. Workers should be drained
+	 * individually, after the listener stopped forwarding sessions to them.
+	 * <p>
+	 * The method is asynchronous and must be called from the thread running this portal's EventQueueHandler: the
+	 * progress is polled by a timer of the EventQueueHandler and reported through callbacks.
+	 * 
+	 * @param timeOutMicroSec
+	 *            - max time to wait for the requests in flight (measured in micro-sec)
+	 * @param drainCallbacks
+	 *            - implementation of Interface ServerPortal.DrainCallbacks
+	 * @return true if drain started and false if the portal is already draining or closing
+	 */
+	public boolean drain(long timeOutMicroSec, DrainCallbacks drainCallbacks) {
+		if (this.draining || this.getIsClosing()) {
+			LOG.warn("attempting to drain server portal that is already draining or closing");
+			return false;
+		}
+		this.draining = true;
+		new DrainTimer(this.eventQHndl, drainCallbacks) {
+			int numSessions() {
+				int n = numSessions.get();
+				for (ServerPortal worker : workers) {
+					n += worker.getNumSessions();
+				}
+				return n;
+			}
+
+			int numRequestsInFlight() {
+				int n = numRequestsInFlight.get();
+				for (ServerPortal worker : workers) {
+					n += worker.getNumRequestsInFlight();
+				}
+				return n;
+			}
+
+			void finish() {
+				close();
+			}
+		}.start(timeOutMicroSec);
+		return true;
+	}
+
+	/**
+	 * Returns true if drain was called on this portal
+	 * 
+	 * @return true if draining
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
 	/**
 	 * This method accepts the serverSession on this ServerPortal. This means that all ServerSession
 	 * events will arrive on this ServerPortal's EventQueueHandler.
@@ -209,6 +334,218 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 		portal.setSession(serverSession);
 	}
 
+	/**
+	 * Adds a worker to which forwardBalanced can forward sessions. Equivalent to addWorker(portal, 1).
+	 * 
+	 * @param portal
+	 *            - ServerPortal worker
+	 */
+	public void addWorker(ServerPortal portal) {
+		addWorker(portal, 1);
+	}
+
+	/**
+	 * Adds a worker to which forwardBalanced can forward sessions.
+	 * <p>
+	 * The workers should be added from the thread running this listener's EventQueueHandler, or before it starts
+	 * 
+	 * @param portal
+	 *            - ServerPortal worker
+	 * @param weight
+	 *            - relative share of the sessions this worker gets with policy WEIGHTED
+	 */
+	public void addWorker(ServerPortal portal, int weight) {
+		int n = this.workers.length;
+		ServerPortal[] newWorkers = new ServerPortal[n + 1];
+		int[] newWeights = new int[n + 1];
+		System.arraycopy(this.workers, 0, newWorkers, 0, n);
+		System.arraycopy(this.weights, 0, newWeights, 0, n);
+		newWorkers[n] = portal;
+		newWeights[n] = Math.max(1, weight);
+		this.workers = newWorkers;
+		this.weights = newWeights;
+		this.currentWeights = new int[n + 1];
+		buildRing();
+	}
+
+	/**
+	 * Removes a worker that was added with addWorker. Sessions already forwarded to it are not affected.
+	 * 
+	 * @param portal
+	 *            - ServerPortal worker
+	 * @return true if the portal was a worker of this listener and false otherwise
+	 */
+	public boolean removeWorker(ServerPortal portal) {
+		int n = this.workers.length;
+		int index = -1;
+		for (int i = 0; i < n; i++) {
+			if (this.workers[i] == portal) {
+				index = i;
+			}
+		}
+		if (index == -1) {
+			LOG.warn("portal " + portal + " is not a worker of " + this);
+			return false;
+		}
+		ServerPortal[] newWorkers = new ServerPortal[n - 1];
+		int[] newWeights = new int[n - 1];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (i != index) {
+				newWorkers[j] = this.workers[i];
+				newWeights[j] = this.weights[i];
+				j++;
+			}
+		}
+		this.workers = newWorkers;
+		this.weights = newWeights;
+		this.currentWeights = new int[n - 1];
+		this.nextWorker = 0;
+		buildRing();
+		return true;
+	}
+
+	/**
+	 * Sets the part of the session URI that is hashed by policy CONSISTENT_HASH.
+	 * 
+	 * @param queryParam
+	 *            - name of the query parameter holding the key (for example "tenant" for
+	 *            rdma://host:port/path?tenant=7), or null for hashing the path of the URI (the default)
+	 */
+	public void setAffinityKey(String queryParam) {
+		this.affinityParam = queryParam;
+	}
+
+	/**
+	 * Sets the policy used by forwardBalanced. The default is ROUND_ROBIN
+	 * 
+	 * @param policy
+	 *            - the policy for choosing a worker
+	 */
+	public void setForwardPolicy(ForwardPolicy policy) {
+		this.forwardPolicy = policy;
+	}
+
+	/**
+	 * Returns the worker forwardBalanced would forward a new session to, according to the current ForwardPolicy
+	 * 
+	 * @param sesKey
+	 *            - SessionKey received in onSessionNew
+	 * @return the chosen ServerPortal worker or null if no workers were added
+	 */
+	public ServerPortal selectWorker(ServerSession.SessionKey sesKey) {
+		final int n = this.workers.length;
+		if (n == 0) {
+			LOG.error("there are no workers to forward session " + sesKey.getSessionPtr() + " to");
+			return null;
+		}
+		int chosen = -1;
+		switch (this.forwardPolicy) {
+			case ROUND_ROBIN:
+				for (int j = 0; j < n && chosen == -1; j++) {
+					int i = (this.nextWorker + j) % n;
+					if (!this.workers[i].draining) {
+						chosen = i;
+					}
+				}
+				break;
+
+			case LEAST_SESSIONS:
+			case LEAST_IN_FLIGHT:
+				// start scanning after the last choice so that ties are spread between the workers
+				long minLoad = Long.MAX_VALUE;
+				for (int j = 0; j < n; j++) {
+					int i = (this.nextWorker + j) % n;
+					if (this.workers[i].draining) {
+						continue;
+					}
+					long load = loadOf(this.workers[i]);
+					if (load < minLoad) {
+						minLoad = load;
+						chosen = i;
+					}
+				}
+				break;
+
+			case WEIGHTED:
+				int total = 0;
+				for (int i = 0; i < n; i++) {
+					if (this.workers[i].draining) {
+						continue;
+					}
+					this.currentWeights[i] += this.weights[i];
+					total += this.weights[i];
+					if (chosen == -1 || this.currentWeights[i] > this.currentWeights[chosen]) {
+						chosen = i;
+					}
+				}
+				if (chosen != -1) {
+					this.currentWeights[chosen] -= total;
+				}
+				break;
+
+			case CONSISTENT_HASH:
+				// the first virtual node clockwise from the hash of the key, skipping draining workers
+				int pos = Arrays.binarySearch(this.ringHashes, hash(affinityKeyOf(sesKey.getUri())));
+				if (pos < 0) {
+					pos = -pos - 1;
+				}
+				for (int j = 0; j < this.ringWorkers.length && chosen == -1; j++) {
+					int i = this.ringWorkers[(pos + j) % this.ringWorkers.length];
+					if (!this.workers[i].draining) {
+						chosen = i;
+					}
+				}
+				break;
+		}
+		if (chosen == -1) {
+			LOG.error("all the workers are draining, can not forward session " + sesKey.getSessionPtr());
+			return null;
+		}
+		this.nextWorker = chosen + 1;
+		return this.workers[chosen];
+	}
+
+	/**
+	 * This method forwards the serverSession to one of the workers added with addWorker, chosen according to the
+	 * ForwardPolicy. Workers that are draining are skipped. If no workers were added, the session is accepted on
+	 * this portal. If all the workers are draining, the session is rejected.
+	 * 
+	 * @param serverSession
+	 *            - serverSession that will be forwarded
+	 * @return the ServerPortal the session was forwarded to or null if it was rejected
+	 */
+	public ServerPortal forwardBalanced(ServerSession serverSession) {
+		if (this.workers.length == 0) {
+			accept(serverSession);
+			return this;
+		}
+		ServerPortal portal = selectWorker(serverSession.getSessionKey());
+		if (portal == null) {
+			reject(serverSession.getSessionKey(), EventReason.SESSION_REFUSED, "no workers");
+			return null;
+		}
+		forward(portal, serverSession);
+		return portal;
+	}
+
+	/**
+	 * Returns the number of open sessions on this portal
+	 * 
+	 * @return number of sessions that were accepted or forwarded to this portal and were not closed yet
+	 */
+	public int getNumSessions() {
+		return numSessions.get();
+	}
+
+	/**
+	 * Returns the number of requests that arrived to the sessions of this portal and were not answered yet
+	 * 
+	 * @return number of requests in flight on this portal
+	 */
+	public int getNumRequestsInFlight() {
+		return numRequestsInFlight.get();
+	}
+
 	/**
 	 * This method rejects the Session.
 	 * 
@@ -225,9 +562,112 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 
 	private void setSession(ServerSession serverSession) {
 		this.sessions.add(serverSession);
+		this.numSessions.incrementAndGet();
 		serverSession.setPortal(this);
 	}
 
+	private void buildRing() {
+		TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+		for (int i = 0; i < this.workers.length; i++) {
+			// the points of a worker depend only on its own URI, so they do not move when other workers come and go
+			String name = String.valueOf(this.workers[i].getUri());
+			for (int v = 0; v < this.weights[i] * VIRTUAL_NODES; v++) {
+				ring.put(hash(name + "#" + v), i);
+			}
+		}
+		long[] hashes = new long[ring.size()];
+		int[] owners = new int[ring.size()];
+		int k = 0;
+		for (Map.Entry<Long, Integer> e : ring.entrySet()) {
+			hashes[k] = e.getKey();
+			owners[k] = e.getValue();
+			k++;
+		}
+		this.ringHashes = hashes;
+		this.ringWorkers = owners;
+	}
+
+	private String affinityKeyOf(String sessionUri) {
+		URI u;
+		try {
+			u = new URI(sessionUri);
+		} catch (URISyntaxException e) {
+			LOG.warn("could not parse session URI " + sessionUri + ", hashing all of it");
+			return sessionUri;
+		}
+		if (this.affinityParam == null) {
+			return String.valueOf(u.getPath());
+		}
+		String query = u.getQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				String name = (eq == -1) ? pair : pair.substring(0, eq);
+				if (name.equals(this.affinityParam)) {
+					return (eq == -1) ? "" : pair.substring(eq + 1);
+				}
+			}
+		}
+		return "";
+	}
+
+	// 64 bit FNV-1a followed by the murmur3 finalizer, for spreading similar keys over the ring
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private long loadOf(ServerPortal portal) {
+		if (this.forwardPolicy == ForwardPolicy.LEAST_IN_FLIGHT) {
+			// sessions break ties between workers with the same number of requests
+			return ((long) portal.numRequestsInFlight.get() << 32) + portal.numSessions.get();
+		}
+		return portal.numSessions.get();
+	}
+
+	ServerPortal[] getWorkers() {
+		return workers;
+	}
+
+	EventQueueHandler getEventQueueHandler() {
+		return eventQHndl;
+	}
+
+	// the session with the fewest requests in flight that was not picked yet and does not park requests (it is the
+	// likeliest to reach a quiet point soon), if this portal has more than one
+	ServerSession pickSessionToMove() {
+		if (this.sessions.size() < 2) {
+			return null;
+		}
+		ServerSession picked = null;
+		for (ServerSession ses : this.sessions) {
+			if (ses.getIsClosing() || ses.isMoveRequested() || ses.getParksRequests()) {
+				continue;
+			}
+			if (picked == null || ses.getRequestsInFlight() < picked.getRequestsInFlight()) {
+				picked = ses;
+			}
+		}
+		return picked;
+	}
+
+	void onRequestReceived() {
+		this.numRequestsInFlight.incrementAndGet();
+	}
+
+	void onRequestsAnswered(int count) {
+		this.numRequestsInFlight.addAndGet(-count);
+	}
+
 	void onEvent(Event ev) {
 		switch (ev.getEventType()) {
 
@@ -261,7 +701,11 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 					long ptrSes = ((EventNewSession) ev).getPtrSes();
 					String uri = ((EventNewSession) ev).getUri();
 					String srcIP = ((EventNewSession) ev).getSrcIP();
-					ServerSession.SessionKey sesKey = new ServerSession.SessionKey(ptrSes, uri);
+					ServerSession.SessionKey sesKey = new ServerSession.SessionKey(ptrSes, uri, this);
+					if (this.draining) {
+						reject(sesKey, EventReason.SESSION_REFUSED, "draining");
+						break;
+					}
 					this.callbacks.onSessionNew(sesKey, srcIP);
 				}
 				break;
@@ -272,7 +716,9 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 	}
 
 	void removeSession(ServerSession s) {
-		this.sessions.remove(s);
+		if (this.sessions.remove(s)) {
+			this.numSessions.decrementAndGet();
+		}
 	}
 
 	private URI replacePortInURI(URI uri, int newPort) {
@@ -304,7 +750,7 @@ public class ServerPortal extends EventQueueHandler.Eventable {
 		return newUri;
 	}
 
-	private URI getUri() {
+	URI getUri() {
 		return uri;
 	}
 }
@@ -0,0 +1,238 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * ServerPortalGroup listens on several URIs, e.g. on each port of a multi port NIC, from a single EventQueueHandler.
+ * <p>
+ * A ServerPortal listener is started for each URI, all of them on the same EventQueueHandler. The MsgPools are bound
+ * to the EventQueueHandler rather than to a portal, so the listeners share them: the pools bound once with
+ * EventQueueHandler.bindMsgPool serve the sessions accepted through any of the URIs, and listening on another port
+ * takes no more registered memory and no more threads.
+ * <p>
+ * The session requests of all the listeners are delivered to the same ServerPortal.Callbacks, and the listener that
+ * received each of them is reported by SessionKey.getListenUri (or getListenerIndex). The session is accepted,
+ * forwarded or rejected through the group, which hands it to that listener. Workers added with addWorker are shared
+ * by all the listeners; a worker whose URI has host 0.0.0.0 serves sessions arriving on any of the interfaces.
+ */
+public class ServerPortalGroup {
+
+	private final EventQueueHandler      eventQHandler;
+	private final ServerPortal[]         listeners;
+	private final ServerPortal.Callbacks callbacks;
+	private int                          numClosed = 0;
+	private static final Log             LOG       = LogFactory.getLog(ServerPortalGroup.class.getCanonicalName());
+
+	/**
+	 * Constructor of ServerPortalGroup. Starts a ServerPortal listener for each URI
+	 * 
+	 * @param eventQHandler
+	 *            - EventQueueHandler on which the events of all the listeners will arrive
+	 * @param uris
+	 *            - URIs on which to listen, each with a well known port
+	 * @param callbacks
+	 *            - implementation of Interface ServerPortal.Callbacks. PORTAL_CLOSED is delivered once, when all the
+	 *            listeners were closed
+	 */
+	public ServerPortalGroup(EventQueueHandler eventQHandler, URI[] uris, ServerPortal.Callbacks callbacks) {
+		this.eventQHandler = eventQHandler;
+		this.callbacks = callbacks;
+		this.listeners = new ServerPortal[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			this.listeners[i] = new ServerPortal(eventQHandler, uris[i], new ListenerCallbacks(i));
+		}
+	}
+
+	/**
+	 * Accepts the session on the listener that received its request
+	 * 
+	 * @param serverSession
+	 *            - serverSession that will be accepted
+	 */
+	public void accept(ServerSession serverSession) {
+		serverSession.getSessionKey().getListener().accept(serverSession);
+	}
+
+	/**
+	 * Forwards the session from the listener that received its request to portal
+	 * 
+	 * @param portal
+	 *            - the portal to which the serverSession will be forwarded
+	 * @param serverSession
+	 *            - serverSession that will be forwarded
+	 */
+	public void forward(ServerPortal portal, ServerSession serverSession) {
+		serverSession.getSessionKey().getListener().forward(portal, serverSession);
+	}
+
+	/**
+	 * Forwards the session to one of the workers added with addWorker, see ServerPortal.forwardBalanced
+	 * 
+	 * @param serverSession
+	 *            - serverSession that will be forwarded
+	 * @return the ServerPortal the session was forwarded to or null if it was rejected
+	 */
+	public ServerPortal forwardBalanced(ServerSession serverSession) {
+		return serverSession.getSessionKey().getListener().forwardBalanced(serverSession);
+	}
+
+	/**
+	 * Rejects the session request
+	 * 
+	 * @param sesKey
+	 *            which was received in callback onNewSession
+	 * @param reason
+	 *            - reason to reject the Session
+	 * @param data
+	 *            - data to pass to the client
+	 */
+	public void reject(ServerSession.SessionKey sesKey, EventReason reason, String data) {
+		sesKey.getListener().reject(sesKey, reason, data);
+	}
+
+	/**
+	 * Adds a worker to which forwardBalanced can forward sessions arriving on any of the listeners
+	 * 
+	 * @param portal
+	 *            - ServerPortal worker
+	 * @param weight
+	 *            - relative share of the sessions this worker gets with policy WEIGHTED
+	 */
+	public void addWorker(ServerPortal portal, int weight) {
+		for (ServerPortal listener : listeners) {
+			listener.addWorker(portal, weight);
+		}
+	}
+
+	/**
+	 * Removes a worker that was added with addWorker
+	 * 
+	 * @param portal
+	 *            - ServerPortal worker
+	 * @return true if the portal was a worker of this group and false otherwise
+	 */
+	public boolean removeWorker(ServerPortal portal) {
+		boolean removed = false;
+		for (ServerPortal listener : listeners) {
+			removed |= listener.removeWorker(portal);
+		}
+		return removed;
+	}
+
+	/**
+	 * Sets the policy used by forwardBalanced on all the listeners
+	 * 
+	 * @param policy
+	 *            - the policy for choosing a worker
+	 */
+	public void setForwardPolicy(ServerPortal.ForwardPolicy policy) {
+		for (ServerPortal listener : listeners) {
+			listener.setForwardPolicy(policy);
+		}
+	}
+
+	/**
+	 * Returns the index, in the URIs given in the c-tor, of the listener that received a session request
+	 * 
+	 * @param sesKey
+	 *            - SessionKey received in onSessionNew
+	 * @return index of the listener or -1 if the session request did not arrive on this group
+	 */
+	public int getListenerIndex(ServerSession.SessionKey sesKey) {
+		ServerPortal listener = sesKey.getListener();
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a listener of the group, e.g. for getUriForServer or drain
+	 * 
+	 * @param index
+	 *            - index of the URI in the URIs given in the c-tor
+	 * @return the ServerPortal listening on that URI
+	 */
+	public ServerPortal getListener(int index) {
+		return listeners[index];
+	}
+
+	/**
+	 * Returns the number of listeners
+	 * 
+	 * @return number of URIs the group listens on
+	 */
+	public int getNumListeners() {
+		return listeners.length;
+	}
+
+	/**
+	 * Returns the EventQueueHandler of the listeners
+	 * 
+	 * @return the EventQueueHandler
+	 */
+	public EventQueueHandler getEventQueueHandler() {
+		return eventQHandler;
+	}
+
+	/**
+	 * Closes all the listeners and the sessions accepted on them. The method is asynchronous: PORTAL_CLOSED is
+	 * delivered once all the listeners were closed
+	 * 
+	 * @return true if all the listeners were closed and false if closing any of them failed
+	 */
+	public boolean close() {
+		boolean closed = true;
+		for (ServerPortal listener : listeners) {
+			if (!listener.getIsClosing()) {
+				closed &= listener.close();
+			}
+		}
+		return closed;
+	}
+
+	private class ListenerCallbacks implements ServerPortal.Callbacks {
+		private final int index;
+
+		ListenerCallbacks(int index) {
+			this.index = index;
+		}
+
+		public void onSessionNew(ServerSession.SessionKey sesKey, String srcIP) {
+			callbacks.onSessionNew(sesKey, srcIP);
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			if (session_event == EventName.PORTAL_CLOSED) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("listener " + index + " on " + listeners[index].getUri() + " was closed");
+				}
+				if (++numClosed < listeners.length) {
+					return;
+				}
+			}
+			callbacks.onSessionEvent(session_event, reason);
+		}
+	}
+}
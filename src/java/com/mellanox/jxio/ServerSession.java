@@ -16,6 +16,10 @@
  */
 package com.mellanox.jxio;
 
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -34,6 +38,7 @@ import com.mellanox.jxio.impl.EventSession;
  * 1. onRequest.
  * 2. onSessionEvent.
  * 3. onMsgError.
+ * 4. onOneWay.
  * 
  */
 public class ServerSession extends EventQueueHandler.Eventable {
@@ -49,8 +54,48 @@ public class ServerSession extends EventQueueHandler.Eventable {
 	private long              ptrSesServer;
 	private ServerPortal      creator;
 	final String              uri;
+	private final SessionKey  sessionKey;
+	// requests delivered to onRequest and not answered yet
+	private final AtomicInteger requestsInFlight = new AtomicInteger(0);
+	// set by SessionRebalancer: the session is closed at the next point it has no requests in flight
+	private volatile boolean  moveRequested = false;
+	// set by StreamServer and ServerBroadcast: requests are parked, so the session may never reach a quiet point
+	private volatile boolean  parksRequests = false;
+	private volatile boolean  highPriority  = false;
+	// rate limiting, used only on the EQH of the session's msgs
+	private TokenBucket       requestBucket;
+	private TokenBucket       byteBucket;
+	private RateLimitAction   rateLimitAction = RateLimitAction.REJECT;
+	private int               maxDelayed;
+	private ArrayDeque<Msg>   delayedMsgs;
+	private RateLimitTimer    rateLimitTimer;
+	private long              numRejected  = 0;
+	private long              numDelayed   = 0;
+	private volatile DedupCache dedupCache   = null;
+	private long              dedupClient  = 0; // scopes the request ids in dedupCache, see DedupCache.CLIENT_PARAM
+	private volatile ResponseCache responseCache = null;
+	private volatile boolean  dropPastDeadline = true;
+	private long              numPastDeadline  = 0;
+	private static final long BURST_NANOS  = 100000000L;  // the buckets hold 100 msec worth of tokens
 	private static final Log  LOG = LogFactory.getLog(ServerSession.class.getCanonicalName());
 
+	/**
+	 * What is done with requests that exceed the rate limit of the session (see setRateLimit)
+	 */
+	public static enum RateLimitAction {
+		/**
+		 * the request is answered right away with an empty response (OUT position 0) and onRequest is not called.
+		 * The client sees Msg.isRejected on it. This costs the server almost nothing and returns the receive buffer
+		 * at once
+		 */
+		REJECT,
+		/**
+		 * the request is held, keeping its receive buffer, and delivered to onRequest once the rate allows. Requests
+		 * beyond the max number of delayed requests are rejected
+		 */
+		DELAY
+	}
+
 	public static interface Callbacks {
 		/**
 		 * This event is triggered when a request from Client is received.
@@ -61,6 +106,16 @@ public class ServerSession extends EventQueueHandler.Eventable {
 		 */
 		public void onRequest(Msg msg);
 
+		/**
+		 * This event is triggered when a one way msg from Client is received (see ClientSession.sendOneWay).
+		 * No response is sent. The Msg is returned to the pool once onOneWay returns, therefore it must not be
+		 * used afterwards.
+		 * 
+		 * @param msg
+		 *            containing Client's one way msg
+		 */
+		public void onOneWay(Msg msg);
+
 		/**
 		 * There are several types of session events: SESSION_CLOSED(because user called ServerSession.close(),
 		 * Client initiated close or because of an internal error),
@@ -99,11 +154,32 @@ public class ServerSession extends EventQueueHandler.Eventable {
 		this.callbacks = callbacks;
 		setId(sessionKey.getSessionPtr());
 		this.uri = sessionKey.getUri();
+		this.sessionKey = sessionKey;
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("id as recieved from C is " + getId());
 		}
 	}
 
+	/**
+	 * Marks all the requests of this session as high priority: if the EventQueueHandler dispatches by priority (see
+	 * EventQueueHandler.setPriorityDispatch), they are handled before bulk events.
+	 * 
+	 * @param highPriority
+	 *            - true for high priority
+	 */
+	public void setHighPriority(boolean highPriority) {
+		this.highPriority = highPriority;
+	}
+
+	/**
+	 * Returns true if this session was marked as high priority
+	 * 
+	 * @return true if high priority
+	 */
+	public boolean isHighPriority() {
+		return highPriority;
+	}
+
 	/**
 	 * This method closes the ServerSession.
 	 * <p>
@@ -126,6 +202,166 @@ public class ServerSession extends EventQueueHandler.Eventable {
 		return true;
 	}
 
+	/**
+	 * This method closes the ServerSession once all the requests it received were answered, or once the time out
+	 * passed. Unlike close, requests in flight are not failed with msg errors.
+	 * <p>
+	 * The method is asynchronous and must be called from the thread running the EventQueueHandler of the session's
+	 * msgs: the progress is polled by a timer of the EventQueueHandler and reported through callbacks.
+	 * 
+	 * @param timeOutMicroSec
+	 *            - max time to wait for the requests in flight (measured in micro-sec)
+	 * @param drainCallbacks
+	 *            - implementation of Interface ServerPortal.DrainCallbacks
+	 * @return true if drain started and false if the session is closing
+	 */
+	public boolean drain(long timeOutMicroSec, ServerPortal.DrainCallbacks drainCallbacks) {
+		if (this.getIsClosing()) {
+			LOG.warn("attempting to drain server session that is already closed or being closed");
+			return false;
+		}
+		new DrainTimer(this.eventQHandlerMsg, drainCallbacks) {
+			int numSessions() {
+				return getIsClosing() ? 0 : 1;
+			}
+
+			int numRequestsInFlight() {
+				return requestsInFlight.get();
+			}
+
+			void finish() {
+				if (!getIsClosing()) {
+					close();
+				}
+			}
+		}.start(timeOutMicroSec);
+		return true;
+	}
+
+	/**
+	 * Limits the rate of requests delivered to onRequest on this session with token buckets. The buckets allow
+	 * bursts of 100 msec worth of requests (bytes). Must be called from the thread running the EventQueueHandler of
+	 * the session's msgs.
+	 * 
+	 * @param requestsPerSecond
+	 *            - max requests per second, 0 for no limit
+	 * @param bytesPerSecond
+	 *            - max request bytes per second, 0 for no limit
+	 */
+	public void setRateLimit(long requestsPerSecond, long bytesPerSecond) {
+		this.requestBucket = (requestsPerSecond > 0) ? new TokenBucket(requestsPerSecond, BURST_NANOS) : null;
+		this.byteBucket = (bytesPerSecond > 0) ? new TokenBucket(bytesPerSecond, BURST_NANOS) : null;
+	}
+
+	/**
+	 * Sets what is done with requests exceeding the rate limit. The default is REJECT.
+	 * 
+	 * @param action
+	 *            - REJECT or DELAY
+	 * @param maxDelayed
+	 *            - with DELAY, max number of requests (receive buffers) held by this session. Requests beyond it are
+	 *            rejected
+	 */
+	public void setRateLimitAction(RateLimitAction action, int maxDelayed) {
+		this.rateLimitAction = action;
+		this.maxDelayed = maxDelayed;
+		if (action == RateLimitAction.DELAY && this.delayedMsgs == null) {
+			this.delayedMsgs = new ArrayDeque<Msg>();
+			this.rateLimitTimer = new RateLimitTimer();
+		}
+	}
+
+	/**
+	 * Returns the number of requests that were rejected because of the rate limit
+	 * 
+	 * @return number of rejected requests
+	 */
+	public long getNumRejected() {
+		return numRejected;
+	}
+
+	/**
+	 * Sets whether requests whose deadline passed are dropped (the default). Such a request is answered with an
+	 * empty response marked as rejected (see Msg.isRejected) before onRequest is called, since the client already
+	 * gave up on it (see Msg.getDeadlineNanos). This sheds work nobody waits for when the server is overloaded
+	 * 
+	 * @param drop
+	 *            - true to drop requests past their deadline, false to pass them to onRequest as well
+	 */
+	public void setDropPastDeadline(boolean drop) {
+		this.dropPastDeadline = drop;
+	}
+
+	/**
+	 * Returns the number of requests that were dropped because their deadline passed
+	 * 
+	 * @return number of requests dropped past their deadline
+	 */
+	public long getNumPastDeadline() {
+		return numPastDeadline;
+	}
+
+	/**
+	 * Returns the number of requests that were delayed because of the rate limit
+	 * 
+	 * @return number of delayed requests
+	 */
+	public long getNumDelayed() {
+		return numDelayed;
+	}
+
+	/**
+	 * Returns the number of requests that were delivered to onRequest and were not answered yet
+	 * 
+	 * @return number of requests in flight
+	 */
+	public int getRequestsInFlight() {
+		return requestsInFlight.get();
+	}
+
+	/**
+	 * Attaches a DedupCache to this session: requests carrying a request id that is in the cache are answered with the
+	 * cached response and onRequest is not called for them, and the responses to requests carrying an id are added to
+	 * the cache. The same cache should be attached to all the sessions a client may retry its requests on. The ids
+	 * are scoped by the client parameter of the session URI (see DedupCache.CLIENT_PARAM)
+	 * 
+	 * @param cache
+	 *            - the DedupCache or null to stop deduplicating
+	 */
+	public void setDedupCache(DedupCache cache) {
+		this.dedupClient = DedupCache.clientKeyOf(this.uri);
+		this.dedupCache = cache;
+	}
+
+	/**
+	 * Returns the DedupCache attached to this session
+	 * 
+	 * @return the DedupCache or null if none is attached
+	 */
+	public DedupCache getDedupCache() {
+		return dedupCache;
+	}
+
+	/**
+	 * Attaches a ResponseCache to this session: requests whose response is in the cache are answered from the cache,
+	 * with zero copy, and onRequest is not called for them. Responses are added to the cache with ResponseCache.put
+	 * 
+	 * @param cache
+	 *            - the ResponseCache or null to stop answering from the cache
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.responseCache = cache;
+	}
+
+	/**
+	 * Returns the ResponseCache attached to this session
+	 * 
+	 * @return the ResponseCache or null if none is attached
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
 	/**
 	 * This method sends the response to client.
 	 * <p>
@@ -137,15 +373,20 @@ public class ServerSession extends EventQueueHandler.Eventable {
 	 * @return true if queuing of the msg was successful and false otherwise
 	 */
 	public boolean sendResponse(Msg msg) {
+		onResponsesSent(1);
 		if (this.getIsClosing()) {
 			LOG.warn("Trying to send message while session is closing");
 			return false;
 		}
+		if (dedupCache != null) {
+			dedupCache.store(msg, dedupClient);
+		}
 		boolean ret = Bridge.serverSendResponse(msg.getId(), msg.getOut().position(), ptrSesServer);
 		if (!ret) {
 			LOG.debug("there was an error sending the message");
 		}
 		this.eventQHandlerMsg.releaseMsgBackToPool(msg);
+		afterResponsesSent();
 		/*
 		 * this message should be released back to pool.
 		 * even though the message might not reached the client yet, it's ok since this pool is
@@ -154,6 +395,90 @@ public class ServerSession extends EventQueueHandler.Eventable {
 		return ret;
 	}
 
+	/**
+	 * This method sends several responses to client with a single call to the C side.
+	 * <p>
+	 * Behaves as calling sendResponse on msgs[0] .. msgs[count-1], but crosses JNI once per batch. As with
+	 * sendResponse, all the msgs are returned to the pool, including those that failed to be sent.
+	 * 
+	 * @param msgs
+	 *            - Msgs to be sent to Client. The size of each is the current position of its OUT ByteBuffer
+	 * @param count
+	 *            - number of msgs to send from the beginning of msgs
+	 * @return number of msgs that were queued successfully
+	 */
+	public int sendResponses(Msg[] msgs, int count) {
+		onResponsesSent(count);
+		if (this.getIsClosing()) {
+			LOG.warn("Trying to send message while session is closing");
+			return 0;
+		}
+		if (dedupCache != null) {
+			for (int i = 0; i < count; i++) {
+				dedupCache.store(msgs[i], dedupClient);
+			}
+		}
+		return this.eventQHandlerMsg.sendResponses(this, msgs, count);
+	}
+
+	/**
+	 * This method sends the response to client and may be called from any thread.
+	 * <p>
+	 * Unlike sendResponse, which must be called from the thread running the EventQueueHandler, postResponse
+	 * only queues the msg on a lock free queue of the EventQueueHandler and wakes it up. The EventQueueHandler
+	 * sends all the responses posted since its last batch of events in a single call to the C side. When called
+	 * from the EventQueueHandler thread itself the response is sent immediately, as with sendResponse.
+	 * <p>
+	 * The msg must not be touched by the calling thread once this method returns. If the session is closed before
+	 * the response is sent, the msg is released back to the pool.
+	 * 
+	 * @param msg
+	 *            - Msg to be sent to Client. The size sent is the position of the OUT ByteBuffer
+	 * @return true if the msg was queued and false if the session is closing
+	 */
+	public boolean postResponse(Msg msg) {
+		if (this.getIsClosing()) {
+			LOG.warn("Trying to post message while session is closing");
+			onResponsesSent(1);
+			return false;
+		}
+		if (this.eventQHandlerMsg.isEventLoopThread()) {
+			return sendResponse(msg);
+		}
+		if (dedupCache != null) {
+			dedupCache.store(msg, dedupClient);
+		}
+		msg.setPostedTo(this);
+		this.eventQHandlerMsg.postMsg(msg);
+		return true;
+	}
+
+	/**
+	 * This method sends a range of a memory mapped file as the response to client.
+	 * <p>
+	 * The range is attached to the OUT side of the msg (see {@link Msg#attachOut(MemoryRegion, int, int)}) and
+	 * zero copied from the mapped file. The FileRegion must remain registered until the response was sent.
+	 * 
+	 * @param msg
+	 *            - Msg holding the request from Client
+	 * @param region
+	 *            - FileRegion mapping the file
+	 * @param position
+	 *            - position in the file of the first byte to send
+	 * @param length
+	 *            - number of bytes to send
+	 * @return true if queuing of the msg was successful and false otherwise
+	 */
+	public boolean sendFileRegion(Msg msg, FileRegion region, long position, int length) {
+		if (!region.contains(position, length)) {
+			LOG.error("file range position=" + position + ", length=" + length + " is not mapped by " + region);
+			return false;
+		}
+		if (!msg.attachOut(region, (int) (position - region.getFilePosition()), length)) {
+			return false;
+		}
+		return sendResponse(msg);
+	}
 	
 	/** This method releases Msg to pool after onMsgError. In case the user returns false in
 	 * onMsgError he needs to release the Msg back to pool once he is done with it (using returnOnMsgError)
@@ -162,9 +487,18 @@ public class ServerSession extends EventQueueHandler.Eventable {
 	 */
 	public void returnOnMsgError (Msg msg){
 		//the user finished with the Msg. It can now be released on C side 
+		releaseMsg(msg);
+	}
+
+	void releaseMsg(Msg msg) {
 		Bridge.releaseMsgServerSide(msg.getId());
 		this.eventQHandlerMsg.releaseMsgBackToPool(msg);
 	}
+
+	// the EventQueueHandler on which the msgs of this session arrive
+	EventQueueHandler getEventQueueHandler() {
+		return eventQHandlerMsg;
+	}
 	
 	void setEventQueueHandlers(EventQueueHandler eqhS, EventQueueHandler eqhM) {
 		this.eventQHandlerMsg = eqhM;
@@ -178,6 +512,53 @@ public class ServerSession extends EventQueueHandler.Eventable {
 		this.creator = p;
 	}
 
+	SessionKey getSessionKey() {
+		return sessionKey;
+	}
+
+	void requestMove() {
+		this.moveRequested = true;
+	}
+
+	// called by SessionRebalancer when the session did not reach a quiet point in time
+	void cancelMove() {
+		this.moveRequested = false;
+	}
+
+	boolean isMoveRequested() {
+		return moveRequested;
+	}
+
+	void setParksRequests() {
+		this.parksRequests = true;
+	}
+
+	boolean getParksRequests() {
+		return parksRequests;
+	}
+
+	// called on the EQH thread after responses were handed to C side: a quiet point for closing a session to move
+	void afterResponsesSent() {
+		if (this.moveRequested && this.requestsInFlight.get() == 0 && !this.getIsClosing()) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("closing session " + getId() + " for moving it to a less loaded worker");
+			}
+			close();
+		}
+	}
+
+	void onResponsesSent(int count) {
+		// responses of a closed session were already subtracted when it closed
+		int current, n;
+		do {
+			current = this.requestsInFlight.get();
+			n = Math.min(count, current);
+		} while (n > 0 && !this.requestsInFlight.compareAndSet(current, current - n));
+		if (n > 0 && this.creator != null) {
+			this.creator.onRequestsAnswered(n);
+		}
+	}
+
 	void onEvent(Event ev) {
 		switch (ev.getEventType()) {
 			case 0: // session event
@@ -191,6 +572,11 @@ public class ServerSession extends EventQueueHandler.Eventable {
 					if (eventName == EventName.SESSION_CLOSED) {
 						removeFromEQHs(); // now we are officially done with this session and it can
 						this.setIsClosing(true);// be deleted from the EQH
+						// requests that were not answered will not be: stop counting them on the portal
+						int unanswered = this.requestsInFlight.getAndSet(0);
+						if (unanswered > 0) {
+							this.creator.onRequestsAnswered(unanswered);
+						}
 						// need to delete this Session from the set in ServerPortal
 						this.creator.removeSession(this);
 						// now that the user knows session is closed, object holding session state can be deleted
@@ -227,6 +613,23 @@ public class ServerSession extends EventQueueHandler.Eventable {
 				if (ev instanceof EventNewMsg) {
 					evNewMsg = (EventNewMsg) ev;
 					Msg msg = evNewMsg.getMsg();
+					this.requestsInFlight.incrementAndGet();
+					this.creator.onRequestReceived();
+					if (dropPastDeadline && msg.isPastDeadline()) {
+						dropPastDeadline(msg);
+						break;
+					}
+					if (dedupCache != null && dedupCache.replay(msg, dedupClient)) {
+						// a retry of a request that was already answered
+						sendResponse(msg);
+						break;
+					}
+					if (responseCache != null && responseCache.serve(this, msg)) {
+						break;
+					}
+					if ((requestBucket != null || byteBucket != null) && !admit(msg)) {
+						break;
+					}
 					callbacks.onRequest(msg);
 				} else {
 					LOG.error("Event is not an instance of EventNewMsg");
@@ -234,11 +637,113 @@ public class ServerSession extends EventQueueHandler.Eventable {
 
 				break;
 
+			case 9: // on one way msg
+				if (LOG.isTraceEnabled()) {
+					LOG.trace("received one way msg event");
+				}
+				if (ev instanceof EventNewMsg) {
+					Msg msg = ((EventNewMsg) ev).getMsg();
+					callbacks.onOneWay(msg);
+					// there is no response: the msg can be released as soon as the user is done with it
+					releaseMsg(msg);
+				} else {
+					LOG.error("Event is not an instance of EventNewMsg");
+				}
+				break;
+
 			default:
 				LOG.error("received an unknown event " + ev.getEventType());
 		}
 	}
 
+	private boolean admit(Msg msg) {
+		final long now = System.nanoTime();
+		boolean queued = delayedMsgs != null && !delayedMsgs.isEmpty(); // keep the order of delayed requests
+		if (!queued && acquire(msg, now)) {
+			return true;
+		}
+		if (rateLimitAction == RateLimitAction.DELAY && delayedMsgs.size() < maxDelayed) {
+			delayedMsgs.add(msg);
+			numDelayed++;
+			if (!rateLimitTimer.isScheduled()) {
+				scheduleRateLimitTimer(now);
+			}
+			return false;
+		}
+		numRejected++;
+		sendRejected(msg);
+		return false;
+	}
+
+	private void dropPastDeadline(Msg msg) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(this.toString() + ": dropping request past its deadline " + msg);
+		}
+		numPastDeadline++;
+		sendRejected(msg);
+	}
+
+	// an empty response the client tells from a real one with Msg.isRejected
+	private void sendRejected(Msg msg) {
+		Bridge.setMsgReplyStatus(msg.getId(), Msg.REPLY_STATUS_REJECTED);
+		msg.getOut().position(0);
+		sendResponse(msg);
+	}
+
+	private boolean acquire(Msg msg, long now) {
+		// check both buckets before taking from either
+		if ((requestBucket != null && !requestBucket.canAcquire(now))
+		        || (byteBucket != null && !byteBucket.canAcquire(now))) {
+			return false;
+		}
+		if (requestBucket != null) {
+			requestBucket.tryAcquire(1, now);
+		}
+		if (byteBucket != null) {
+			byteBucket.tryAcquire(msg.getIn().limit(), now);
+		}
+		return true;
+	}
+
+	private void scheduleRateLimitTimer(long now) {
+		long waitNanos = 0;
+		if (requestBucket != null) {
+			waitNanos = requestBucket.nanosUntilAvailable(now);
+		}
+		if (byteBucket != null) {
+			waitNanos = Math.max(waitNanos, byteBucket.nanosUntilAvailable(now));
+		}
+		eventQHandlerMsg.scheduleTimer(rateLimitTimer, Math.max(1, waitNanos / 1000));
+	}
+
+	private class RateLimitTimer extends TimerWheel.Timer {
+		void onExpired() {
+			final long now = System.nanoTime();
+			while (!delayedMsgs.isEmpty()) {
+				Msg msg = delayedMsgs.peek();
+				if (getIsClosing()) {
+					// the response can not be sent anymore: return the receive buffer
+					delayedMsgs.poll();
+					onResponsesSent(1);
+					releaseMsg(msg);
+					continue;
+				}
+				if (dropPastDeadline && msg.isPastDeadline()) {
+					// the request expired while it was delayed
+					delayedMsgs.poll();
+					dropPastDeadline(msg);
+					continue;
+				}
+				if (!acquire(msg, now)) {
+					scheduleRateLimitTimer(now);
+					return;
+				}
+				delayedMsgs.poll();
+				callbacks.onRequest(msg);
+			}
+		}
+	}
+
 	private void removeFromEQHs() {
 		eventQHandlerSession.removeEventable(this);
 		if (eventQHandlerSession != eventQHandlerMsg) {
@@ -251,14 +756,19 @@ public class ServerSession extends EventQueueHandler.Eventable {
 
 	}
 
+	long getPtrServerSession() {
+		return ptrSesServer;
+	}
+
 	/**
 	 * This class holds the ID of a session. It is passed to user on onNewSession callback
 	 * and passed to ServerSession's constructor. It contains id of the session request (long) and
 	 * uri that the client wishes to connect to.
 	 */
 	public static class SessionKey {
-		private final long   sessionPtr;
-		private final String uri;
+		private final long         sessionPtr;
+		private final String       uri;
+		private final ServerPortal listener;
 
 		/**
 		 * Returns id of the session request
@@ -278,9 +788,24 @@ public class ServerSession extends EventQueueHandler.Eventable {
 			return uri;
 		}
 
-		SessionKey(long sessionPtr, String uri) {
+		/**
+		 * Returns the URI of the ServerPortal listener that received the session request, which tells the interface
+		 * the client connected through when the server listens on several (see ServerPortalGroup)
+		 * 
+		 * @return URI the listener is bound to
+		 */
+		public URI getListenUri() {
+			return listener.getUri();
+		}
+
+		SessionKey(long sessionPtr, String uri, ServerPortal listener) {
 			this.sessionPtr = sessionPtr;
 			this.uri = uri;
+			this.listener = listener;
+		}
+
+		ServerPortal getListener() {
+			return listener;
 		}
 
 	}
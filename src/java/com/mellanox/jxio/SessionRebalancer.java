@@ -0,0 +1,194 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * SessionRebalancer moves load away from busy worker EventQueueHandlers of a listener ServerPortal.
+ * <p>
+ * An established Accelio connection is bound to the context (EventQueueHandler) it was accepted on, therefore a
+ * ServerSession can not be moved to another EventQueueHandler while its connection stays up. Instead, the rebalancer
+ * periodically samples the utilization of the workers' EventQueueHandlers (see EventQueueHandler.getBusyNanos) and,
+ * when the busiest worker is loaded more than the threshold above the least busy one, picks one of its sessions and
+ * closes it at its next quiet point: right after a response was sent, when it has no requests in flight. No request
+ * is failed. A client using ReconnectingClientSession reconnects and is forwarded by forwardBalanced to a less loaded
+ * worker (policy LEAST_SESSIONS, LEAST_IN_FLIGHT or WEIGHTED).
+ * <p>
+ * The session with the fewest requests in flight is picked, skipping sessions that park requests (StreamServer,
+ * ServerBroadcast). At most one move is pending at a time: if the picked session does not reach a quiet point within
+ * MAX_MOVE_INTERVALS intervals, the move is cancelled and another session can be picked. The rebalancer runs on the
+ * listener's EventQueueHandler and must be started and stopped from its thread.
+ * 
+ */
+public class SessionRebalancer {
+
+	private final ServerPortal      listener;
+	private final RebalanceTimer    timer = new RebalanceTimer();
+	private long                    intervalMicroSec;
+	private double                  threshold;
+	private long                    lastSampleNanos;
+	private ServerPortal[]          sampledWorkers = new ServerPortal[0];
+	private long[]                  lastBusyNanos  = new long[0];
+	private double[]                utilization    = new double[0];
+	private int                     numMoved       = 0;
+	// the session picked for moving that did not close yet, and the number of intervals it was waited for
+	private ServerSession           pendingMove    = null;
+	private int                     pendingIntervals = 0;
+	private static final int        MAX_MOVE_INTERVALS = 4;
+	private static final Log        LOG            = LogFactory.getLog(SessionRebalancer.class.getCanonicalName());
+
+	/**
+	 * Constructor of SessionRebalancer
+	 * 
+	 * @param listener
+	 *            - ServerPortal listener whose workers (see ServerPortal.addWorker) are balanced
+	 */
+	public SessionRebalancer(ServerPortal listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts rebalancing periodically.
+	 * 
+	 * @param intervalMicroSec
+	 *            - time between samples of the workers' utilization (measured in micro-sec)
+	 * @param threshold
+	 *            - difference in utilization (between 0 and 1) between the busiest and the least busy worker above
+	 *            which a session is moved
+	 */
+	public void start(long intervalMicroSec, double threshold) {
+		this.intervalMicroSec = intervalMicroSec;
+		this.threshold = threshold;
+		sample();
+		listener.getEventQueueHandler().scheduleTimer(timer, intervalMicroSec);
+	}
+
+	/**
+	 * Stops rebalancing. A session already picked for moving is still closed at its next quiet point.
+	 */
+	public void stop() {
+		listener.getEventQueueHandler().cancelTimer(timer);
+	}
+
+	/**
+	 * Returns the utilization of each worker (fraction of time its EventQueueHandler was busy) in the last interval
+	 * 
+	 * @return utilization per worker, in the order the workers were added to the listener
+	 */
+	public double[] getUtilization() {
+		return utilization.clone();
+	}
+
+	/**
+	 * Returns the number of sessions this rebalancer moved: picked sessions that were closed. A move that is still
+	 * pending or was cancelled is not counted
+	 * 
+	 * @return number of sessions moved
+	 */
+	public int getNumMoved() {
+		return numMoved;
+	}
+
+	/**
+	 * Samples the workers' utilization and, if they are imbalanced, picks a session to move. Called periodically
+	 * after start, can also be called directly from the listener's EventQueueHandler thread.
+	 * 
+	 * @return the session that will be closed at its next quiet point or null if none was picked
+	 */
+	public ServerSession rebalance() {
+		if (!sample() || !checkPendingMove()) {
+			return null;
+		}
+		int busiest = -1, idlest = -1;
+		for (int i = 0; i < sampledWorkers.length; i++) {
+			if (sampledWorkers[i].isDraining()) {
+				continue;
+			}
+			if (busiest == -1 || utilization[i] > utilization[busiest]) {
+				busiest = i;
+			}
+			if (idlest == -1 || utilization[i] < utilization[idlest]) {
+				idlest = i;
+			}
+		}
+		if (busiest == -1 || utilization[busiest] - utilization[idlest] < threshold) {
+			return null;
+		}
+		ServerSession ses = sampledWorkers[busiest].pickSessionToMove();
+		if (ses == null) {
+			return null;
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("moving session " + ses.getId() + " away from worker " + sampledWorkers[busiest]
+			        + " (utilization " + utilization[busiest] + " vs " + utilization[idlest] + ")");
+		}
+		ses.requestMove();
+		pendingMove = ses;
+		pendingIntervals = 0;
+		return ses;
+	}
+
+	// returns true if no move is pending any more: the picked session closed or it was waited for too long
+	private boolean checkPendingMove() {
+		if (pendingMove == null) {
+			return true;
+		}
+		if (pendingMove.getIsClosing()) {
+			numMoved++;
+		} else if (++pendingIntervals >= MAX_MOVE_INTERVALS) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("session " + pendingMove.getId() + " did not reach a quiet point, cancelling its move");
+			}
+			pendingMove.cancelMove();
+		} else {
+			return false;
+		}
+		pendingMove = null;
+		return true;
+	}
+
+	// returns false if the workers changed since the last sample, so there is no interval to compare
+	private boolean sample() {
+		ServerPortal[] workers = listener.getWorkers();
+		long now = System.nanoTime();
+		boolean sameWorkers = workers == sampledWorkers;
+		if (!sameWorkers) {
+			sampledWorkers = workers;
+			lastBusyNanos = new long[workers.length];
+			utilization = new double[workers.length];
+		}
+		long elapsed = now - lastSampleNanos;
+		for (int i = 0; i < workers.length; i++) {
+			long busy = workers[i].getEventQueueHandler().getBusyNanos();
+			if (sameWorkers && elapsed > 0) {
+				utilization[i] = Math.min(1.0, (double) (busy - lastBusyNanos[i]) / elapsed);
+			}
+			lastBusyNanos[i] = busy;
+		}
+		lastSampleNanos = now;
+		return sameWorkers;
+	}
+
+	private class RebalanceTimer extends TimerWheel.Timer {
+		void onExpired() {
+			rebalance();
+			listener.getEventQueueHandler().scheduleTimer(this, intervalMicroSec);
+		}
+	}
+}
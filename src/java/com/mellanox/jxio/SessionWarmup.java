@@ -0,0 +1,206 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * SessionWarmup prepares a client before the service reports it is ready, so the first real requests do not pay
+ * for the connection handshake and interpreted JNI paths (the memory of the MsgPools is already faulted in, since it
+ * is pinned when registered with Accelio):
+ * 1. establish - opens the sessions and runs the EventQueueHandler until all of them are established.
+ * 2. sendWarmupRequests - sends empty requests over the established sessions and waits for their replies, so the
+ * send and receive paths are compiled by the JIT. The server must answer empty requests.
+ * <p>
+ * The warm-up runs the EventQueueHandler itself, therefore it must be called from the thread that will run it
+ * later and not while it is running. Events that are not part of the warm-up (including the replies to requests the
+ * application sends) are delivered to the application's ClientSession.Callbacks.
+ * 
+ */
+public class SessionWarmup {
+
+	private final EventQueueHandler       eventQHandler;
+	private final ClientSession.Callbacks callbacks;
+	private final ClientSession[]         sessions;
+	private int                           numEstablished    = 0;
+	private int                           numFailed         = 0;
+	private int                           warmupOutstanding = 0;
+	private int                           warmupReplies     = 0;
+	// marks the msgs sent by the warm-up, their replies are not passed to the application
+	private static final Object           WARMUP_TAG        = new Object();
+	private static final Log              LOG               = LogFactory.getLog(SessionWarmup.class.getCanonicalName());
+
+	/**
+	 * Constructor of SessionWarmup. Opens numSessions ClientSessions to uri. The sessions can be used by the
+	 * application (getSessions) once established.
+	 * 
+	 * @param eventQHandler
+	 *            - EventQueueHandler on which the events of the sessions will arrive
+	 * @param uri
+	 *            - URI of the server
+	 * @param numSessions
+	 *            - number of sessions to open
+	 * @param callbacks
+	 *            - implementation of Interface ClientSession.Callbacks, receiving the events of the sessions
+	 */
+	public SessionWarmup(EventQueueHandler eventQHandler, URI uri, int numSessions, ClientSession.Callbacks callbacks) {
+		this.eventQHandler = eventQHandler;
+		this.callbacks = callbacks;
+		this.sessions = new ClientSession[numSessions];
+		WarmupCallbacks warmupCallbacks = new WarmupCallbacks();
+		for (int i = 0; i < numSessions; i++) {
+			this.sessions[i] = new ClientSession(eventQHandler, uri, warmupCallbacks);
+		}
+	}
+
+	/**
+	 * Runs the EventQueueHandler until all the sessions are established (or failed), or until the time out passes.
+	 * 
+	 * @param timeOutMicroSec
+	 *            - max time to wait (measured in micro-sec)
+	 * @return true if all the sessions were established and false otherwise
+	 */
+	public boolean establish(long timeOutMicroSec) {
+		final long deadline = System.nanoTime() + timeOutMicroSec * 1000;
+		long remaining = timeOutMicroSec;
+		while (numEstablished + numFailed < sessions.length && remaining > 0) {
+			eventQHandler.runEventLoop(1, remaining);
+			remaining = (deadline - System.nanoTime()) / 1000;
+		}
+		if (LOG.isDebugEnabled()) {
+			LOG.debug(this.toString() + ": " + numEstablished + " out of " + sessions.length
+			        + " sessions were established");
+		}
+		return numEstablished == sessions.length;
+	}
+
+	/**
+	 * Sends empty requests round robin over the established sessions and runs the EventQueueHandler until their
+	 * replies arrive, or until the time out passes. At most pool.count() requests are outstanding at a time.
+	 * 
+	 * @param pool
+	 *            - client MsgPool the requests are taken from. The msgs are returned to it
+	 * @param numRequests
+	 *            - number of requests to send
+	 * @param timeOutMicroSec
+	 *            - max time to wait (measured in micro-sec)
+	 * @return number of requests that were replied
+	 */
+	public int sendWarmupRequests(MsgPool pool, int numRequests, long timeOutMicroSec) {
+		final long deadline = System.nanoTime() + timeOutMicroSec * 1000;
+		long remaining = timeOutMicroSec;
+		int sent = 0;
+		int next = 0;
+		this.warmupReplies = 0;
+		while ((sent < numRequests || warmupOutstanding > 0) && remaining > 0) {
+			while (sent < numRequests && !pool.isEmpty()) {
+				ClientSession ses = nextOpen(next);
+				if (ses == null) {
+					LOG.error(this.toString() + ": there are no open sessions to warm up");
+					sent = numRequests;
+					break;
+				}
+				next++;
+				Msg msg = pool.getMsg();
+				msg.setUserContext(WARMUP_TAG);
+				if (!ses.sendRequest(msg)) {
+					msg.setUserContext(null);
+					msg.returnToParentPool();
+					sent = numRequests;
+					break;
+				}
+				warmupOutstanding++;
+				sent++;
+			}
+			eventQHandler.runEventLoop(1, remaining);
+			remaining = (deadline - System.nanoTime()) / 1000;
+		}
+		return warmupReplies;
+	}
+
+	/**
+	 * Returns the sessions opened by this object
+	 * 
+	 * @return the sessions
+	 */
+	public ClientSession[] getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Returns the number of sessions that were established
+	 * 
+	 * @return number of established sessions
+	 */
+	public int getNumEstablished() {
+		return numEstablished;
+	}
+
+	private ClientSession nextOpen(int start) {
+		for (int j = 0; j < sessions.length; j++) {
+			ClientSession ses = sessions[(start + j) % sessions.length];
+			if (!ses.getIsClosing()) {
+				return ses;
+			}
+		}
+		return null;
+	}
+
+	private boolean isWarmupMsg(Msg msg) {
+		if (msg.getUserContext() != WARMUP_TAG) {
+			return false;
+		}
+		msg.setUserContext(null);
+		warmupOutstanding--;
+		msg.returnToParentPool();
+		return true;
+	}
+
+	private class WarmupCallbacks implements ClientSession.Callbacks {
+
+		public void onReply(Msg msg) {
+			if (isWarmupMsg(msg)) {
+				warmupReplies++;
+				return;
+			}
+			callbacks.onReply(msg);
+		}
+
+		public void onSessionEstablished() {
+			numEstablished++;
+			callbacks.onSessionEstablished();
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			if (session_event == EventName.SESSION_REJECT || session_event == EventName.SESSION_ERROR
+			        || session_event == EventName.SESSION_CLOSED) {
+				numFailed++;
+			}
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			if (isWarmupMsg(msg)) {
+				return;
+			}
+			callbacks.onMsgError(msg, reason);
+		}
+	}
+}
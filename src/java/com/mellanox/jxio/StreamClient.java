@@ -0,0 +1,169 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * StreamClient opens streams of a StreamServer over a ClientSession: the client sends one request and receives many
+ * chunks for it, in order, through the RequestStream.Listener of the stream.
+ * <p>
+ * The request is written in place to the OUT buffer of a Msg from the pool, after space for the header:
+ * 
+ * <pre>
+ * Msg msg = pool.getMsg();
+ * StreamClient.startOpen(msg).putLong(fromKey).putLong(toKey);
+ * streamClient.open(msg, pool, 8, listener);
+ * </pre>
+ * 
+ * The window is the number of msgs of the pool the stream uses: the request plus window-1 credits are sent at once,
+ * and after each chunk is passed to the listener its Msg is sent back as a new credit. So at most window chunks are
+ * in flight and the server can not send faster than the listener consumes.
+ * <p>
+ * The session events are delivered to the ClientSession.Callbacks given in the c-tor; replies and msg errors of msgs
+ * sent directly on getSession() are delivered to them as usual. Streams must be opened and cancelled on the thread
+ * of the EventQueueHandler, or before it runs.
+ */
+public class StreamClient {
+
+	private final ClientSession           session;
+	private final ClientSession.Callbacks callbacks;
+	private long                          nextStreamId = 1;
+	private static final Log              LOG          = LogFactory.getLog(StreamClient.class.getCanonicalName());
+
+	/**
+	 * Constructor of StreamClient. Opens a ClientSession to uri
+	 * 
+	 * @param eventQHandler
+	 *            - EventQueueHandler on which the events of the session will arrive
+	 * @param uri
+	 *            - URI of the StreamServer
+	 * @param callbacks
+	 *            - implementation of Interface ClientSession.Callbacks receiving the session events
+	 */
+	public StreamClient(EventQueueHandler eventQHandler, URI uri, ClientSession.Callbacks callbacks) {
+		this.callbacks = callbacks;
+		this.session = new ClientSession(eventQHandler, uri, new StreamClientCallbacks());
+	}
+
+	/**
+	 * Prepares the OUT buffer of msg for the request of a stream: clears it and skips the space of the header
+	 * 
+	 * @param msg
+	 *            - Msg for the request
+	 * @return OUT buffer of msg, to which the request is written
+	 */
+	public static ByteBuffer startOpen(Msg msg) {
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		out.position(StreamServer.HEADER_LENGTH);
+		return out;
+	}
+
+	/**
+	 * Opens a stream. The request must have been written to msg after startOpen
+	 * 
+	 * @param msg
+	 *            - Msg holding the request
+	 * @param pool
+	 *            - MsgPool of msg, from which the credits are taken and to which all the msgs of the stream return
+	 *            when it ends
+	 * @param window
+	 *            - max number of chunks in flight. It is smaller if the pool does not have enough msgs
+	 * @param listener
+	 *            - receives the chunks and the end of the stream
+	 * @return the stream or null if the request could not be sent
+	 */
+	public RequestStream open(Msg msg, MsgPool pool, int window, RequestStream.Listener listener) {
+		ByteBuffer out = msg.getOut();
+		if (out.position() < StreamServer.HEADER_LENGTH) {
+			LOG.error("no space for the stream header in " + msg + ", StreamClient.startOpen was not called");
+			return null;
+		}
+		RequestStream stream = new RequestStream(session, nextStreamId++, pool, Math.max(1, window), listener);
+		StreamServer.writeHeader(out, stream.getStreamId(), 0, StreamServer.OPEN);
+		if (!stream.sendRequest(msg)) {
+			return null;
+		}
+		for (int i = 1; i < window; i++) {
+			Msg credit = pool.getMsg();
+			if (credit == null) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug(stream.toString() + ": " + pool + " is empty, window is " + i);
+				}
+				break;
+			}
+			if (!stream.sendCredit(credit)) {
+				credit.returnToParentPool();
+				break;
+			}
+		}
+		return stream;
+	}
+
+	/**
+	 * Returns the ClientSession of this StreamClient
+	 * 
+	 * @return the ClientSession
+	 */
+	public ClientSession getSession() {
+		return session;
+	}
+
+	/**
+	 * Closes the session. The method is asynchronous: SESSION_CLOSED is delivered to the callbacks when the session
+	 * is closed, and streams still open end with a msg error before it
+	 * 
+	 * @return true if there was a successful call to close of the session and false otherwise
+	 */
+	public boolean close() {
+		return session.close();
+	}
+
+	private class StreamClientCallbacks implements ClientSession.Callbacks {
+
+		public void onReply(Msg msg) {
+			Object ctx = msg.getUserContext();
+			if (ctx instanceof RequestStream) {
+				((RequestStream) ctx).onReply(msg);
+			} else {
+				callbacks.onReply(msg);
+			}
+		}
+
+		public void onSessionEstablished() {
+			callbacks.onSessionEstablished();
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			Object ctx = msg.getUserContext();
+			if (ctx instanceof RequestStream) {
+				((RequestStream) ctx).onMsgError(msg, reason);
+			} else {
+				callbacks.onMsgError(msg, reason);
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * StreamServer answers a single request of a client with a stream of responses (chunks), e.g. for range scans and
+ * subscriptions.
+ * <p>
+ * Accelio sends exactly one response per request, so a stream is carried by credits: the client (see StreamClient)
+ * sends the request that opens the stream followed by up to window-1 empty credit requests, and each chunk is the
+ * response to one of them. The server holds the credits of a stream until it has chunks to send, and the client
+ * sends a new credit for each chunk it consumed. The number of chunks in flight, and so the memory a stream takes on
+ * both sides, is bounded by the window; a producer that is faster than its consumer runs out of credits and waits
+ * for Handler.onCredit.
+ * <p>
+ * Each request and response starts with a 16 byte header: stream id (8 bytes), sequence number of the chunk (4
+ * bytes), type (2 bytes) and 2 reserved bytes. Chunks are written in place to the OUT buffer of the credit's Msg:
+ * 
+ * <pre>
+ * public void onOpen(ResponseStream stream, ByteBuffer request) {
+ * 	stream.setUserContext(openScan(request));
+ * 	onCredit(stream);
+ * }
+ * 
+ * public void onCredit(ResponseStream stream) {
+ * 	Scan scan = (Scan) stream.getUserContext();
+ * 	Msg chunk;
+ * 	while ((chunk = stream.nextChunk()) != null) {
+ * 		scan.fill(chunk.getOut());
+ * 		stream.send(chunk, scan.isDone());
+ * 	}
+ * }
+ * </pre>
+ * 
+ * Sessions are created with newSession instead of the ServerSession c-tor, as with RpcServer. All the methods of
+ * the streams of a session must be called on the thread of the EventQueueHandler of its msgs.
+ */
+public class StreamServer {
+
+	/**
+	 * Length of the header preceding the request and the chunks
+	 */
+	public static final int  HEADER_LENGTH = 16;
+	// request types
+	static final int         OPEN          = 0;
+	static final int         CREDIT        = 1;
+	static final int         CANCEL        = 2;
+	// response types
+	static final int         CHUNK         = 0;
+	static final int         LAST          = 1;
+	static final int         UNUSED        = 2;  // a credit returned without a chunk
+	static final int         BAD_REQUEST   = 3;
+
+	private final Handler    handler;
+	private final int        maxCredits;
+	private static final Log LOG           = LogFactory.getLog(StreamServer.class.getCanonicalName());
+
+	/**
+	 * Produces the chunks of streams. All the methods are invoked on the thread of the EventQueueHandler of the
+	 * session
+	 */
+	public static interface Handler {
+		/**
+		 * Invoked when a client opens a stream. The request is valid until the first chunk is sent, and the stream
+		 * has at least one credit
+		 * 
+		 * @param stream
+		 *            - the new stream
+		 * @param request
+		 *            - the request, from its position to its limit
+		 */
+		public void onOpen(ResponseStream stream, ByteBuffer request);
+
+		/**
+		 * Invoked when a credit arrives for a stream that was not closed, i.e. when the client consumed a chunk
+		 * 
+		 * @param stream
+		 *            - the stream that received the credit
+		 */
+		public void onCredit(ResponseStream stream);
+
+		/**
+		 * Invoked when the client cancels a stream before its last chunk was sent, or when the session of the stream
+		 * is closed. Chunks can not be sent on the stream anymore
+		 * 
+		 * @param stream
+		 *            - the cancelled stream
+		 */
+		public void onCancel(ResponseStream stream);
+	}
+
+	/**
+	 * Constructor of StreamServer
+	 * 
+	 * @param handler
+	 *            - produces the chunks of all the streams
+	 * @param maxCredits
+	 *            - max number of credits held for a single stream. Credits beyond it are returned at once, which
+	 *            shrinks the window of the client, so a stream can not hold more than maxCredits msgs of the MsgPool
+	 */
+	public StreamServer(Handler handler, int maxCredits) {
+		this.handler = handler;
+		this.maxCredits = Math.max(1, maxCredits);
+	}
+
+	/**
+	 * Creates a ServerSession whose requests open and feed streams of this StreamServer. The session events, msg
+	 * errors and one way msgs are delivered to callbacks, whose onRequest is not used
+	 * 
+	 * @param sessionKey
+	 *            - SessionKey received in ServerPortal.Callbacks.onSessionNew
+	 * @param callbacks
+	 *            - implementation of Interface ServerSession.Callbacks receiving the other events of the session
+	 * @return the new ServerSession, to be passed to ServerPortal.accept or ServerPortal.forward
+	 */
+	public ServerSession newSession(ServerSession.SessionKey sessionKey, ServerSession.Callbacks callbacks) {
+		StreamSessionCallbacks streamCallbacks = new StreamSessionCallbacks(callbacks);
+		ServerSession session = new ServerSession(sessionKey, streamCallbacks);
+		session.setParksRequests();
+		streamCallbacks.session = session;
+		return session;
+	}
+
+	// answers a request without a chunk
+	static void answer(ServerSession session, Msg msg, long streamId, int type) {
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		writeHeader(out, streamId, 0, type);
+		out.position(HEADER_LENGTH);
+		session.sendResponse(msg);
+	}
+
+	static void writeHeader(ByteBuffer buf, long streamId, int seq, int type) {
+		buf.putLong(0, streamId);
+		buf.putInt(8, seq);
+		buf.putShort(12, (short) type);
+		buf.putShort(14, (short) 0);
+	}
+
+	private class StreamSessionCallbacks implements ServerSession.Callbacks {
+		private final ServerSession.Callbacks   callbacks;
+		private final Map<Long, ResponseStream> streams = new HashMap<Long, ResponseStream>();
+		private ServerSession                   session;
+
+		StreamSessionCallbacks(ServerSession.Callbacks callbacks) {
+			this.callbacks = callbacks;
+		}
+
+		public void onRequest(Msg msg) {
+			ByteBuffer in = msg.getIn();
+			if (in.limit() < HEADER_LENGTH) {
+				LOG.error(session.toString() + ": request of " + in.limit() + " bytes is too short for the stream header");
+				answer(session, msg, 0, BAD_REQUEST);
+				return;
+			}
+			long streamId = in.getLong(0);
+			int type = in.getShort(12);
+			ResponseStream stream = streams.get(streamId);
+			switch (type) {
+				case OPEN:
+					if (stream != null) {
+						LOG.error(session.toString() + ": stream " + streamId + " is already open");
+						answer(session, msg, streamId, BAD_REQUEST);
+						return;
+					}
+					stream = new ResponseStream(session, streamId, streams);
+					streams.put(streamId, stream);
+					stream.addCredit(msg);
+					in.position(HEADER_LENGTH);
+					handler.onOpen(stream, in);
+					break;
+				case CREDIT:
+					if (stream == null || stream.getCredits() >= maxCredits) {
+						// the stream ended or has enough credits
+						answer(session, msg, streamId, UNUSED);
+						return;
+					}
+					stream.addCredit(msg);
+					if (!stream.finishPending()) {
+						handler.onCredit(stream);
+					}
+					break;
+				case CANCEL:
+					if (stream != null) {
+						stream.cancel();
+						handler.onCancel(stream);
+					}
+					answer(session, msg, streamId, UNUSED);
+					break;
+				default:
+					LOG.error(session.toString() + ": unknown stream request type " + type);
+					answer(session, msg, streamId, BAD_REQUEST);
+			}
+		}
+
+		public void onOneWay(Msg msg) {
+			callbacks.onOneWay(msg);
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			if (session_event == EventName.SESSION_CLOSED && !streams.isEmpty()) {
+				// the credits held by the streams are released with the session
+				ResponseStream[] open = streams.values().toArray(new ResponseStream[streams.size()]);
+				streams.clear();
+				for (ResponseStream stream : open) {
+					stream.cancel();
+					handler.onCancel(stream);
+				}
+			}
+			callbacks.onSessionEvent(session_event, reason);
+		}
+
+		public boolean onMsgError(Msg msg, EventReason reason) {
+			return callbacks.onMsgError(msg, reason);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+/**
+ * Hashed timer wheel used by EventQueueHandler for deadlines of its objects (for example request timeouts).
+ * Scheduling and canceling are O(1) and do not allocate: the timers are intrusive list nodes that are
+ * preallocated by their owners. Not thread safe, it is used only from the EventQueueHandler's thread.
+ */
+class TimerWheel {
+
+	private final Timer[] slots;
+	private final int     mask;
+	private final long    tickNanos;
+	private long          currentTick;                     // all ticks up to this one were expired
+	private int           count;
+	private long          nextDeadlineHint = Long.MAX_VALUE; // no timer expires before this time
+
+	static abstract class Timer {
+		private long  deadlineNanos;
+		private long  tick;
+		private Timer prev, next;
+		private Timer nextExpired;
+		private int   slot = -1;
+
+		final boolean isScheduled() {
+			return slot >= 0;
+		}
+
+		abstract void onExpired();
+	}
+
+	/**
+	 * @param numSlots
+	 *            - number of slots in the wheel, rounded up to a power of 2
+	 * @param tickNanos
+	 *            - resolution of the wheel
+	 */
+	TimerWheel(int numSlots, long tickNanos) {
+		int n = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+		this.slots = new Timer[n];
+		this.mask = n - 1;
+		this.tickNanos = tickNanos;
+		this.currentTick = System.nanoTime() / tickNanos;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	void schedule(Timer t, long deadlineNanos) {
+		if (t.isScheduled()) {
+			cancel(t);
+		}
+		long tick = (deadlineNanos + tickNanos - 1) / tickNanos;
+		if (tick <= currentTick) {
+			tick = currentTick + 1;
+		}
+		int slot = (int) (tick & mask);
+		t.deadlineNanos = deadlineNanos;
+		t.tick = tick;
+		t.slot = slot;
+		t.prev = null;
+		t.next = slots[slot];
+		if (t.next != null) {
+			t.next.prev = t;
+		}
+		slots[slot] = t;
+		count++;
+		if (deadlineNanos < nextDeadlineHint) {
+			nextDeadlineHint = deadlineNanos;
+		}
+	}
+
+	void cancel(Timer t) {
+		if (!t.isScheduled()) {
+			return;
+		}
+		if (t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			slots[t.slot] = t.next;
+		}
+		if (t.next != null) {
+			t.next.prev = t.prev;
+		}
+		t.prev = t.next = null;
+		t.slot = -1;
+		if (--count == 0) {
+			nextDeadlineHint = Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Returns how long the event loop may block before the next timer might expire
+	 * 
+	 * @return time in micro seconds or -1 if there are no timers
+	 */
+	long getTimeToNextExpiryMicro(long nowNanos) {
+		if (count == 0) {
+			return -1;
+		}
+		long wait = Math.max(nextDeadlineHint - nowNanos, tickNanos);
+		return wait / 1000;
+	}
+
+	/**
+	 * Calls onExpired() of all timers with a deadline before now
+	 * 
+	 * @return number of timers that expired
+	 */
+	int expire(long nowNanos) {
+		if (count == 0 || nowNanos < nextDeadlineHint) {
+			return 0;
+		}
+		// unlink the expired timers first, so the callbacks are free to schedule and cancel timers
+		Timer expiredList = null;
+		long nowTick = nowNanos / tickNanos;
+		// a full turn of the wheel visits every slot
+		long lastTick = Math.min(nowTick, currentTick + slots.length);
+		for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+			Timer t = slots[(int) (tick & mask)];
+			while (t != null) {
+				Timer next = t.next;
+				if (t.deadlineNanos <= nowNanos) {
+					cancel(t);
+					t.nextExpired = expiredList;
+					expiredList = t;
+				}
+				t = next;
+			}
+		}
+		// the slot of the current tick may still hold timers due later within this tick: visit it again next time
+		currentTick = Math.max(currentTick, nowTick - 1);
+		nextDeadlineHint = (count == 0) ? Long.MAX_VALUE : earliestDeadline();
+		int expired = 0;
+		while (expiredList != null) {
+			Timer t = expiredList;
+			expiredList = t.nextExpired;
+			t.nextExpired = null;
+			t.onExpired();
+			expired++;
+		}
+		return expired;
+	}
+
+	// walks the wheel in tick order from the current tick: the first timer due in the tick of its slot is the earliest
+	// one, since timers met before it in other slots are due at least a full turn later
+	private long earliestDeadline() {
+		long later = Long.MAX_VALUE;
+		for (long tick = currentTick + 1; tick <= currentTick + slots.length; tick++) {
+			long earliest = Long.MAX_VALUE;
+			for (Timer t = slots[(int) (tick & mask)]; t != null; t = t.next) {
+				if (t.tick == tick) {
+					earliest = Math.min(earliest, t.deadlineNanos);
+				} else {
+					later = Math.min(later, t.deadlineNanos);
+				}
+			}
+			if (earliest != Long.MAX_VALUE) {
+				return earliest;
+			}
+		}
+		return later;
+	}
+}
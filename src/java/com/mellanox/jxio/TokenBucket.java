@@ -0,0 +1,84 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio;
+
+/**
+ * Token bucket used by ServerSession for rate limiting. Tokens are refilled lazily from the elapsed time, so there
+ * is no background activity. An acquire succeeds as long as the bucket is not empty and may take it below zero, so
+ * a single request larger than the bucket is still admitted, and pays for it by delaying the following ones.
+ * Not thread safe.
+ */
+class TokenBucket {
+
+	private static final long NANOS_PER_SEC = 1000000000L;
+	private final long        ratePerSec;
+	private final long        capacity;
+	private long              tokens;
+	private long              lastRefillNanos;
+	private long              remainderNanos;   // time not yet converted to tokens
+
+	/**
+	 * @param ratePerSec
+	 *            - tokens added per second
+	 * @param burstNanos
+	 *            - the bucket holds the tokens of this duration
+	 */
+	TokenBucket(long ratePerSec, long burstNanos) {
+		this.ratePerSec = ratePerSec;
+		this.capacity = Math.max(1, ratePerSec * burstNanos / NANOS_PER_SEC);
+		this.tokens = this.capacity;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	boolean tryAcquire(long n, long nowNanos) {
+		refill(nowNanos);
+		if (tokens <= 0) {
+			return false;
+		}
+		tokens -= n;
+		return true;
+	}
+
+	boolean canAcquire(long nowNanos) {
+		refill(nowNanos);
+		return tokens > 0;
+	}
+
+	/**
+	 * @return time until the bucket is not empty anymore, 0 if it is not empty now
+	 */
+	long nanosUntilAvailable(long nowNanos) {
+		refill(nowNanos);
+		if (tokens > 0) {
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((double) (1 - tokens) * NANOS_PER_SEC / ratePerSec) - remainderNanos);
+	}
+
+	private void refill(long nowNanos) {
+		long elapsed = nowNanos - lastRefillNanos + remainderNanos;
+		lastRefillNanos = nowNanos;
+		if (elapsed <= 0) {
+			remainderNanos = elapsed;
+			return;
+		}
+		// elapsed * ratePerSec may overflow a long for byte rates
+		long added = (long) ((double) elapsed * ratePerSec / NANOS_PER_SEC);
+		remainderNanos = elapsed - (long) ((double) added * NANOS_PER_SEC / ratePerSec);
+		tokens = Math.min(capacity, tokens + added);
+	}
+}
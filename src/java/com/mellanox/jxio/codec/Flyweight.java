@@ -0,0 +1,114 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a region of a ByteBuffer (typically the IN or OUT buffer of a {@link com.mellanox.jxio.Msg}).
+ * The fields of the message are read and written in place with absolute gets and puts, so encoding and decoding
+ * neither copy the data nor create objects. A flyweight instance is meant to be allocated once and re-wrapped for
+ * every message.
+ * <p>
+ * Implementations describe a fixed layout: templateId identifies the message type and encodedLength is the number
+ * of bytes it occupies. They are usually generated from a schema by {@link FlyweightGenerator}.
+ */
+public abstract class Flyweight {
+
+	protected ByteBuffer buffer;
+	protected int        offset;
+
+	/**
+	 * Points this flyweight at a message in buffer
+	 * 
+	 * @param buffer
+	 *            - buffer holding the message
+	 * @param offset
+	 *            - offset of the first byte of the message in buffer
+	 * @return this flyweight
+	 */
+	public Flyweight wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Returns the buffer this flyweight is wrapping
+	 * 
+	 * @return the wrapped buffer
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the offset of the message in the wrapped buffer
+	 * 
+	 * @return offset of the message
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the id of the message type, written to the message header
+	 * 
+	 * @return template id, between 0 and 65535
+	 */
+	public abstract int templateId();
+
+	/**
+	 * Returns the version of the schema the message type belongs to, written to the message header
+	 * 
+	 * @return schema version, between 0 and 65535
+	 */
+	public int schemaVersion() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of bytes the message occupies, not including the message header
+	 * 
+	 * @return length of the message
+	 */
+	public abstract int encodedLength();
+
+	protected final void putString(int fieldOffset, int length, CharSequence value) {
+		int n = Math.min(length, value.length());
+		int pos = offset + fieldOffset;
+		for (int i = 0; i < n; i++) {
+			buffer.put(pos + i, (byte) value.charAt(i));
+		}
+		for (int i = n; i < length; i++) {
+			buffer.put(pos + i, (byte) 0);
+		}
+	}
+
+	protected final int getString(int fieldOffset, int length, StringBuilder dst) {
+		int pos = offset + fieldOffset;
+		int i = 0;
+		for (; i < length; i++) {
+			byte b = buffer.get(pos + i);
+			if (b == 0) {
+				break;
+			}
+			dst.append((char) (b & 0xff));
+		}
+		return i;
+	}
+}
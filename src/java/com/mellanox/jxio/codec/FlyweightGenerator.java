@@ -0,0 +1,218 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.codec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates {@link Flyweight} classes for fixed-layout messages from a schema file.
+ * <p>
+ * Usage: java com.mellanox.jxio.codec.FlyweightGenerator &lt;schema file&gt; &lt;output directory&gt;
+ * &lt;java package&gt;
+ * <p>
+ * The schema holds one or more messages. Each starts with a line "message &lt;Name&gt; &lt;templateId&gt;
+ * [schemaVersion]" followed by one field per line: "&lt;type&gt; &lt;name&gt;". The types are byte, short, int,
+ * long, float, double and char[n] (ASCII string of at most n bytes, zero padded). The fields are laid out in the
+ * order they are declared, without padding. Empty lines and lines starting with # are ignored. For example:
+ * 
+ * <pre>
+ * message Order 1
+ *   long    orderId
+ *   int     quantity
+ *   double  price
+ *   char[8] symbol
+ * </pre>
+ * 
+ * For each field the generated class has a getter (name()) and a setter (name(value)) returning the flyweight, so
+ * setters can be chained. char[n] fields are set from a CharSequence and read into a StringBuilder.
+ */
+public class FlyweightGenerator {
+
+	private static class Field {
+		final String type;
+		final String name;
+		final int    length;
+		final int    offset;
+
+		Field(String type, String name, int length, int offset) {
+			this.type = type;
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+		}
+	}
+
+	private static class Message {
+		final String      name;
+		final int         templateId;
+		final int         version;
+		final List<Field> fields = new ArrayList<Field>();
+		int               length = 0;
+
+		Message(String name, int templateId, int version) {
+			this.name = name;
+			this.templateId = templateId;
+			this.version = version;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: FlyweightGenerator <schema file> <output directory> <java package>");
+			System.exit(1);
+		}
+		List<Message> messages = parse(new File(args[0]));
+		File dir = new File(args[1], args[2].replace('.', File.separatorChar));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create directory " + dir);
+		}
+		for (Message m : messages) {
+			File out = new File(dir, m.name + ".java");
+			Writer w = new FileWriter(out);
+			try {
+				w.write(generate(m, args[2]));
+			} finally {
+				w.close();
+			}
+			System.out.println("generated " + out);
+		}
+	}
+
+	static List<Message> parse(File schema) throws IOException {
+		List<Message> messages = new ArrayList<Message>();
+		BufferedReader r = new BufferedReader(new FileReader(schema));
+		try {
+			Message current = null;
+			String line;
+			int lineNum = 0;
+			while ((line = r.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] tokens = line.split("\\s+");
+				if (tokens[0].equals("message")) {
+					if (tokens.length < 3) {
+						throw new IOException(schema + ":" + lineNum + ": expected 'message <Name> <templateId>'");
+					}
+					int version = (tokens.length > 3) ? Integer.parseInt(tokens[3]) : 0;
+					current = new Message(tokens[1], Integer.parseInt(tokens[2]), version);
+					messages.add(current);
+					continue;
+				}
+				if (current == null || tokens.length != 2) {
+					throw new IOException(schema + ":" + lineNum + ": expected '<type> <name>' inside a message");
+				}
+				String type = tokens[0];
+				int length;
+				if (type.startsWith("char[") && type.endsWith("]")) {
+					length = Integer.parseInt(type.substring(5, type.length() - 1));
+					type = "char[]";
+				} else {
+					length = sizeOf(type);
+					if (length == 0) {
+						throw new IOException(schema + ":" + lineNum + ": unknown type " + type);
+					}
+				}
+				current.fields.add(new Field(type, tokens[1], length, current.length));
+				current.length += length;
+			}
+		} finally {
+			r.close();
+		}
+		return messages;
+	}
+
+	private static int sizeOf(String type) {
+		if (type.equals("byte")) {
+			return 1;
+		} else if (type.equals("short")) {
+			return 2;
+		} else if (type.equals("int") || type.equals("float")) {
+			return 4;
+		} else if (type.equals("long") || type.equals("double")) {
+			return 8;
+		}
+		return 0;
+	}
+
+	static String generate(Message m, String pkg) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("/* Generated by com.mellanox.jxio.codec.FlyweightGenerator. Do not edit. */\n");
+		sb.append("package ").append(pkg).append(";\n\n");
+		sb.append("import com.mellanox.jxio.codec.Flyweight;\n\n");
+		sb.append("public class ").append(m.name).append(" extends Flyweight {\n\n");
+		sb.append("\tpublic static final int TEMPLATE_ID = ").append(m.templateId).append(";\n");
+		sb.append("\tpublic static final int SCHEMA_VERSION = ").append(m.version).append(";\n");
+		sb.append("\tpublic static final int BLOCK_LENGTH = ").append(m.length).append(";\n");
+		for (Field f : m.fields) {
+			sb.append("\tpublic static final int ").append(constant(f.name)).append("_OFFSET = ").append(f.offset)
+			        .append(";\n");
+		}
+		sb.append("\n\tpublic int templateId() {\n\t\treturn TEMPLATE_ID;\n\t}\n");
+		sb.append("\n\tpublic int schemaVersion() {\n\t\treturn SCHEMA_VERSION;\n\t}\n");
+		sb.append("\n\tpublic int encodedLength() {\n\t\treturn BLOCK_LENGTH;\n\t}\n");
+		for (Field f : m.fields) {
+			String off = constant(f.name) + "_OFFSET";
+			if (f.type.equals("char[]")) {
+				sb.append("\n\tpublic int ").append(f.name).append("(StringBuilder dst) {\n");
+				sb.append("\t\treturn getString(").append(off).append(", ").append(f.length).append(", dst);\n\t}\n");
+				sb.append("\n\tpublic ").append(m.name).append(" ").append(f.name).append("(CharSequence value) {\n");
+				sb.append("\t\tputString(").append(off).append(", ").append(f.length).append(", value);\n");
+				sb.append("\t\treturn this;\n\t}\n");
+				continue;
+			}
+			String accessor = accessor(f.type);
+			sb.append("\n\tpublic ").append(f.type).append(" ").append(f.name).append("() {\n");
+			sb.append("\t\treturn buffer.get").append(accessor).append("(offset + ").append(off).append(");\n\t}\n");
+			sb.append("\n\tpublic ").append(m.name).append(" ").append(f.name).append("(").append(f.type)
+			        .append(" value) {\n");
+			sb.append("\t\tbuffer.put").append(accessor).append("(offset + ").append(off).append(", value);\n");
+			sb.append("\t\treturn this;\n\t}\n");
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	private static String accessor(String type) {
+		if (type.equals("byte")) {
+			return "";
+		}
+		return Character.toUpperCase(type.charAt(0)) + type.substring(1);
+	}
+
+	// orderId -> ORDER_ID
+	private static String constant(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c) && i > 0) {
+				sb.append('_');
+			}
+			sb.append(Character.toUpperCase(c));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressor for the LZ4 block format, working directly between ByteBuffers (e.g. a MemoryRegion and the OUT buffer
+ * of a Msg) without intermediate copies or allocations per call.
+ * <p>
+ * The output is a plain LZ4 block (no frame header or checksum), readable by any LZ4 block decoder. The compressor
+ * favors speed over ratio, like the LZ4 "fast" mode: a 4K entry hash table of the last position of each 4 byte
+ * sequence and skipping ahead faster over incompressible data.
+ * <p>
+ * An instance keeps its hash table between calls and must be used by one thread at a time. decompress is static.
+ */
+public class Lz4Compressor {
+
+	private static final int MIN_MATCH     = 4;
+	// the last match must start at least 12 bytes before the end and the last 5 bytes are always literals
+	private static final int MF_LIMIT      = 12;
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_DISTANCE  = 65535;
+	private static final int HASH_LOG      = 12;
+	private static final int SKIP_TRIGGER  = 6;
+
+	private final int[]      hashTable     = new int[1 << HASH_LOG];
+
+	/**
+	 * Returns the size of the largest block compressing length bytes can produce
+	 * 
+	 * @param length
+	 *            - number of bytes to compress
+	 * @return maximal compressed size
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses srcLength bytes of src starting at srcOffset into dst starting at dstOffset. Positions and limits of
+	 * the buffers are not changed
+	 * 
+	 * @param src
+	 *            - buffer holding the data
+	 * @param srcOffset
+	 *            - offset of the data in src
+	 * @param srcLength
+	 *            - number of bytes to compress
+	 * @param dst
+	 *            - buffer to write the compressed block to
+	 * @param dstOffset
+	 *            - offset in dst to write to
+	 * @param maxDstLength
+	 *            - number of bytes that may be written to dst
+	 * @return size of the compressed block or -1 if it does not fit in maxDstLength bytes
+	 */
+	public int compress(ByteBuffer src, int srcOffset, int srcLength, ByteBuffer dst, int dstOffset, int maxDstLength) {
+		final int srcEnd = srcOffset + srcLength;
+		final int dstEnd = dstOffset + maxDstLength;
+		int anchor = srcOffset;
+		int sp = srcOffset;
+		int dp = dstOffset;
+
+		if (srcLength >= MF_LIMIT + 1) {
+			final int mfLimit = srcEnd - MF_LIMIT;
+			final int matchLimit = srcEnd - LAST_LITERALS;
+			Arrays.fill(hashTable, -1);
+			hashTable[hash(src.getInt(sp))] = sp;
+			sp++;
+
+			search: while (true) {
+				// find a match, skipping faster the longer no match is found
+				int ref;
+				int attempts = 1 << SKIP_TRIGGER;
+				while (true) {
+					int step = attempts++ >>> SKIP_TRIGGER;
+					if (sp > mfLimit) {
+						break search;
+					}
+					int seq = src.getInt(sp);
+					int h = hash(seq);
+					ref = hashTable[h];
+					hashTable[h] = sp;
+					if (ref >= srcOffset && sp - ref <= MAX_DISTANCE && src.getInt(ref) == seq) {
+						break;
+					}
+					sp += step;
+				}
+				// extend the match backwards over the pending literals
+				while (sp > anchor && ref > srcOffset && src.get(sp - 1) == src.get(ref - 1)) {
+					sp--;
+					ref--;
+				}
+				// and forwards
+				int matchLen = MIN_MATCH;
+				while (sp + matchLen + 8 <= matchLimit && src.getLong(sp + matchLen) == src.getLong(ref + matchLen)) {
+					matchLen += 8;
+				}
+				while (sp + matchLen < matchLimit && src.get(sp + matchLen) == src.get(ref + matchLen)) {
+					matchLen++;
+				}
+
+				dp = writeSequence(src, anchor, sp - anchor, sp - ref, matchLen - MIN_MATCH, dst, dp, dstEnd);
+				if (dp < 0) {
+					return -1;
+				}
+				sp += matchLen;
+				anchor = sp;
+				if (sp > mfLimit) {
+					break;
+				}
+				hashTable[hash(src.getInt(sp - 2))] = sp - 2;
+			}
+		}
+
+		// the rest are literals
+		int litLen = srcEnd - anchor;
+		if (dp + 1 + litLen / 255 + 1 + litLen > dstEnd) {
+			return -1;
+		}
+		dp = writeLiteralLength(dst, dp, litLen, 0);
+		copy(src, anchor, dst, dp, litLen);
+		dp += litLen;
+		return dp - dstOffset;
+	}
+
+	/**
+	 * Decompresses an LZ4 block of srcLength bytes of src starting at srcOffset into dst starting at dstOffset.
+	 * Positions and limits of the buffers are not changed
+	 * 
+	 * @param src
+	 *            - buffer holding the compressed block
+	 * @param srcOffset
+	 *            - offset of the block in src
+	 * @param srcLength
+	 *            - size of the block
+	 * @param dst
+	 *            - buffer to write the data to
+	 * @param dstOffset
+	 *            - offset in dst to write to
+	 * @param maxDstLength
+	 *            - number of bytes that may be written to dst
+	 * @return number of bytes written to dst or -1 if the block is malformed or does not fit in maxDstLength bytes
+	 */
+	public static int decompress(ByteBuffer src, int srcOffset, int srcLength, ByteBuffer dst, int dstOffset,
+	        int maxDstLength) {
+		final int srcEnd = srcOffset + srcLength;
+		final int dstEnd = dstOffset + maxDstLength;
+		int sp = srcOffset;
+		int dp = dstOffset;
+
+		while (sp < srcEnd) {
+			int token = src.get(sp++) & 0xff;
+			// literals
+			int litLen = token >>> 4;
+			if (litLen == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						return -1;
+					}
+					b = src.get(sp++) & 0xff;
+					litLen += b;
+				} while (b == 255);
+			}
+			if (litLen > srcEnd - sp || litLen > dstEnd - dp) {
+				return -1;
+			}
+			copy(src, sp, dst, dp, litLen);
+			sp += litLen;
+			dp += litLen;
+			if (sp == srcEnd) {
+				// the last sequence has no match
+				break;
+			}
+			// match
+			if (sp + 2 > srcEnd) {
+				return -1;
+			}
+			int offset = (src.get(sp) & 0xff) | ((src.get(sp + 1) & 0xff) << 8);
+			sp += 2;
+			int ref = dp - offset;
+			if (offset == 0 || ref < dstOffset) {
+				return -1;
+			}
+			int matchLen = token & 0x0f;
+			if (matchLen == 15) {
+				int b;
+				do {
+					if (sp >= srcEnd) {
+						return -1;
+					}
+					b = src.get(sp++) & 0xff;
+					matchLen += b;
+				} while (b == 255);
+			}
+			matchLen += MIN_MATCH;
+			if (matchLen > dstEnd - dp) {
+				return -1;
+			}
+			if (offset >= 8) {
+				// the copy may overlap the bytes it writes, but never within 8 bytes
+				int end = dp + matchLen;
+				while (dp + 8 <= end) {
+					dst.putLong(dp, dst.getLong(ref));
+					dp += 8;
+					ref += 8;
+				}
+				while (dp < end) {
+					dst.put(dp++, dst.get(ref++));
+				}
+			} else {
+				for (int i = 0; i < matchLen; i++) {
+					dst.put(dp++, dst.get(ref++));
+				}
+			}
+		}
+		return dp - dstOffset;
+	}
+
+	private static int hash(int seq) {
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	// writes a sequence: token, literal length, literals, offset and match length. Returns the new dst offset or -1
+	private static int writeSequence(ByteBuffer src, int litOffset, int litLen, int offset, int matchLen,
+	        ByteBuffer dst, int dp, int dstEnd) {
+		if (dp + 1 + litLen / 255 + 1 + litLen + 2 + matchLen / 255 + 1 > dstEnd) {
+			return -1;
+		}
+		dp = writeLiteralLength(dst, dp, litLen, Math.min(matchLen, 15));
+		copy(src, litOffset, dst, dp, litLen);
+		dp += litLen;
+		dst.put(dp++, (byte) offset);
+		dst.put(dp++, (byte) (offset >>> 8));
+		if (matchLen >= 15) {
+			dp = writeLengthExtension(dst, dp, matchLen - 15);
+		}
+		return dp;
+	}
+
+	private static int writeLiteralLength(ByteBuffer dst, int dp, int litLen, int matchNibble) {
+		if (litLen >= 15) {
+			dst.put(dp++, (byte) (0xf0 | matchNibble));
+			return writeLengthExtension(dst, dp, litLen - 15);
+		}
+		dst.put(dp++, (byte) ((litLen << 4) | matchNibble));
+		return dp;
+	}
+
+	private static int writeLengthExtension(ByteBuffer dst, int dp, int len) {
+		while (len >= 255) {
+			dst.put(dp++, (byte) 255);
+			len -= 255;
+		}
+		dst.put(dp++, (byte) len);
+		return dp;
+	}
+
+	private static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+		int i = 0;
+		// copying 8 bytes at a time keeps their order only if both buffers have the same byte order
+		int longs = (src.order() == dst.order()) ? length & ~7 : 0;
+		for (; i < longs; i += 8) {
+			dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+		}
+		for (; i < length; i++) {
+			dst.put(dstOffset + i, src.get(srcOffset + i));
+		}
+	}
+}
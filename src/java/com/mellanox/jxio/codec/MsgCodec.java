@@ -0,0 +1,147 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.codec;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mellanox.jxio.Msg;
+
+/**
+ * Encodes and decodes {@link Flyweight} messages directly in the buffers of a {@link com.mellanox.jxio.Msg}.
+ * <p>
+ * Each message starts with an 8 byte header: template id (2 bytes), schema version (2 bytes) and the length of the
+ * message body (4 bytes), followed by the body. A sender wraps a flyweight with wrapForEncode, which writes the
+ * header and sets the position of the OUT buffer to the end of the message, and sets the fields of the flyweight:
+ * the Msg is then ready to be sent. A receiver checks templateId of the IN buffer and wraps the matching flyweight
+ * with wrapForDecode.
+ * 
+ * <pre>
+ * Order order = new Order(); // once
+ * ...
+ * MsgCodec.wrapForEncode(msg, order).orderId(7).quantity(100).price(99.5);
+ * session.sendRequest(msg);
+ * ...
+ * if (MsgCodec.templateId(msg) == Order.TEMPLATE_ID &amp;&amp; MsgCodec.wrapForDecode(msg, order)) {
+ * 	long id = order.orderId();
+ * }
+ * </pre>
+ */
+public final class MsgCodec {
+
+	public static final int  HEADER_LENGTH = 8;
+	private static final Log LOG           = LogFactory.getLog(MsgCodec.class.getCanonicalName());
+
+	private MsgCodec() {
+	}
+
+	/**
+	 * Writes the header of flyweight to the OUT buffer of msg and wraps flyweight after it
+	 * 
+	 * @param msg
+	 *            - Msg to encode the message into
+	 * @param flyweight
+	 *            - flyweight of the message type
+	 * @return flyweight, for setting the fields of the message
+	 */
+	public static <T extends Flyweight> T wrapForEncode(Msg msg, T flyweight) {
+		return wrapForEncode(msg.getOut(), flyweight);
+	}
+
+	/**
+	 * Writes the header of flyweight to the beginning of out, wraps flyweight after it and sets the position of out
+	 * to the end of the message
+	 * 
+	 * @param out
+	 *            - buffer to encode the message into
+	 * @param flyweight
+	 *            - flyweight of the message type
+	 * @return flyweight, for setting the fields of the message
+	 */
+	public static <T extends Flyweight> T wrapForEncode(ByteBuffer out, T flyweight) {
+		out.putShort(0, (short) flyweight.templateId());
+		out.putShort(2, (short) flyweight.schemaVersion());
+		out.putInt(4, flyweight.encodedLength());
+		flyweight.wrap(out, HEADER_LENGTH);
+		out.position(HEADER_LENGTH + flyweight.encodedLength());
+		return flyweight;
+	}
+
+	/**
+	 * Returns the template id of the message in the IN buffer of msg
+	 * 
+	 * @param msg
+	 *            - received Msg
+	 * @return template id or -1 if the buffer is too short for a header
+	 */
+	public static int templateId(Msg msg) {
+		return templateId(msg.getIn());
+	}
+
+	/**
+	 * Returns the template id of the message at the beginning of in
+	 * 
+	 * @param in
+	 *            - buffer holding a message
+	 * @return template id or -1 if the buffer is too short for a header
+	 */
+	public static int templateId(ByteBuffer in) {
+		if (in.limit() < HEADER_LENGTH) {
+			return -1;
+		}
+		return in.getShort(0) & 0xffff;
+	}
+
+	/**
+	 * Wraps flyweight over the message in the IN buffer of msg
+	 * 
+	 * @param msg
+	 *            - received Msg
+	 * @param flyweight
+	 *            - flyweight of the expected message type
+	 * @return true if the IN buffer holds a complete message of the flyweight's type and false otherwise
+	 */
+	public static boolean wrapForDecode(Msg msg, Flyweight flyweight) {
+		return wrapForDecode(msg.getIn(), flyweight);
+	}
+
+	/**
+	 * Wraps flyweight over the message at the beginning of in
+	 * 
+	 * @param in
+	 *            - buffer holding a message
+	 * @param flyweight
+	 *            - flyweight of the expected message type
+	 * @return true if in holds a complete message of the flyweight's type and false otherwise
+	 */
+	public static boolean wrapForDecode(ByteBuffer in, Flyweight flyweight) {
+		if (templateId(in) != flyweight.templateId()) {
+			LOG.error("expected message with template id " + flyweight.templateId() + " but got " + templateId(in));
+			return false;
+		}
+		int length = in.getInt(4);
+		if (length < flyweight.encodedLength() || in.limit() < HEADER_LENGTH + length) {
+			LOG.error("message with template id " + flyweight.templateId() + " is truncated: length " + length
+			        + ", received " + (in.limit() - HEADER_LENGTH) + " bytes");
+			return false;
+		}
+		flyweight.wrap(in, HEADER_LENGTH);
+		return true;
+	}
+}
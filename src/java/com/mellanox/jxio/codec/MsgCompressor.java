@@ -0,0 +1,401 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.codec;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mellanox.jxio.Msg;
+
+/**
+ * Optional LZ4 compression of Msg payloads, negotiated per session.
+ * <p>
+ * The client asks for compression by connecting to the URI returned by requestCompression, which carries
+ * "compress=lz4" in its query. Both sides then create a MsgCompressor from the session's URI: the client from the
+ * URI it connected to and the server from ServerSession.SessionKey.getUri(). If the URI asks for compression, the
+ * client confirms it with a handshake before sending data: it sends the request written by writeHandshake, the
+ * server answers it with acceptHandshake, and the client passes the reply to onHandshakeReply. Compression is
+ * enabled on each side only once the handshake succeeded. A server that does not use MsgCompressor does not
+ * acknowledge the handshake, and the client then sends its payloads as they are. Until the handshake completes,
+ * and on sessions that did not ask for compression, the payloads are sent as they are, so the same application code
+ * serves both kinds of sessions.
+ * <p>
+ * compress writes a payload to the OUT buffer of a Msg and decompress reads the IN buffer of a received Msg into
+ * the application's buffer. Both work directly between the buffers (typically registered memory on both sides), in
+ * one pass and without allocations. When enabled, each payload is preceded by a 4 byte header holding its
+ * uncompressed length and a flag telling whether it is compressed. Payloads shorter than the threshold, and payloads
+ * that do not shrink, are sent uncompressed, so the OUT buffers should be HEADER_LENGTH bytes larger than the
+ * largest payload.
+ * <p>
+ * A MsgCompressor must be used by one thread at a time, e.g. one per session on the thread of its
+ * EventQueueHandler.
+ */
+public class MsgCompressor {
+
+	/**
+	 * Name of the URI query parameter asking for compression
+	 */
+	public static final String URI_PARAM         = "compress";
+	/**
+	 * Value of the URI query parameter asking for LZ4 compression
+	 */
+	public static final String LZ4               = "lz4";
+	/**
+	 * Length of the header preceding the payload when compression is enabled
+	 */
+	public static final int    HEADER_LENGTH     = 4;
+	/**
+	 * Default threshold: shorter payloads are not worth compressing
+	 */
+	public static final int    DEFAULT_THRESHOLD = 1024;
+
+	private static final int    COMPRESSED_FLAG = 0x80000000;
+	// handshake request and its acknowledgement, different so that an echoing server does not acknowledge
+	private static final long   HANDSHAKE       = 0x4a58494f4c5a3401L;
+	private static final long   HANDSHAKE_ACK   = 0x4a58494f4c5a3481L;
+	private static final int    DISABLED        = 0;
+	private static final int    REQUESTED       = 1;  // the URI asks for compression, waiting for the handshake
+	private static final int    HANDSHAKING     = 2;  // the client sent the handshake and waits for its reply
+	private static final int    ENABLED         = 3;
+	private int                 state;
+	private final int           threshold;
+	private final Lz4Compressor lz4;
+	private long                numCompressed   = 0;
+	private long                numSkipped      = 0;
+	private long                payloadBytes    = 0;
+	private long                wireBytes       = 0;
+	private static final Log    LOG             = LogFactory.getLog(MsgCompressor.class.getCanonicalName());
+
+	/**
+	 * Constructor of MsgCompressor for a session
+	 * 
+	 * @param sessionUri
+	 *            - URI of the session: the URI the client connected to or ServerSession.SessionKey.getUri()
+	 * @param threshold
+	 *            - payloads shorter than threshold bytes are not compressed
+	 */
+	public MsgCompressor(String sessionUri, int threshold) {
+		this.state = isRequested(sessionUri) ? REQUESTED : DISABLED;
+		this.threshold = Math.max(threshold, 0);
+		this.lz4 = (state == REQUESTED) ? new Lz4Compressor() : null;
+	}
+
+	/**
+	 * Constructor of MsgCompressor for a session on which both sides agreed on compression in another way, without
+	 * the handshake
+	 * 
+	 * @param enabled
+	 *            - true if both sides of the session agreed on compression
+	 * @param threshold
+	 *            - payloads shorter than threshold bytes are not compressed
+	 */
+	public MsgCompressor(boolean enabled, int threshold) {
+		this.state = enabled ? ENABLED : DISABLED;
+		this.threshold = Math.max(threshold, 0);
+		this.lz4 = enabled ? new Lz4Compressor() : null;
+	}
+
+	/**
+	 * Returns uri with a query parameter asking the server for compression
+	 * 
+	 * @param uri
+	 *            - URI of the server
+	 * @return uri with "compress=lz4" added to its query, or uri itself if it could not be changed
+	 */
+	public static URI requestCompression(URI uri) {
+		if (isRequested(uri.toString())) {
+			return uri;
+		}
+		String query = uri.getQuery();
+		query = (query == null || query.length() == 0) ? URI_PARAM + "=" + LZ4 : query + "&" + URI_PARAM + "=" + LZ4;
+		try {
+			return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(), query,
+			        uri.getFragment());
+		} catch (URISyntaxException e) {
+			LOG.error("could not add " + URI_PARAM + " to " + uri + ", compression is not requested");
+			return uri;
+		}
+	}
+
+	/**
+	 * Returns true if the session URI asks for LZ4 compression
+	 * 
+	 * @param sessionUri
+	 *            - URI of the session
+	 * @return true if the URI carries "compress=lz4"
+	 */
+	public static boolean isRequested(String sessionUri) {
+		if (sessionUri == null) {
+			return false;
+		}
+		int q = sessionUri.indexOf('?');
+		if (q == -1) {
+			return false;
+		}
+		int end = sessionUri.indexOf('#', q);
+		String query = sessionUri.substring(q + 1, (end == -1) ? sessionUri.length() : end);
+		for (String pair : query.split("&")) {
+			if (pair.equals(URI_PARAM + "=" + LZ4)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Client side: writes the handshake confirming compression to the OUT buffer of msg, which should be sent as the
+	 * first request of the session. No payload can be compressed until onHandshakeReply is called with its reply
+	 * 
+	 * @param msg
+	 *            - Msg for the handshake request
+	 * @return true if the handshake was written and false if the session did not ask for compression
+	 */
+	public boolean writeHandshake(Msg msg) {
+		if (state != REQUESTED) {
+			return false;
+		}
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		out.putLong(HANDSHAKE);
+		state = HANDSHAKING;
+		return true;
+	}
+
+	/**
+	 * Client side: checks the reply to the handshake. Compression is enabled if the server acknowledged it, and
+	 * otherwise the payloads are sent as they are
+	 * 
+	 * @param msg
+	 *            - Msg holding the reply to the handshake request
+	 * @return true if compression is enabled
+	 */
+	public boolean onHandshakeReply(Msg msg) {
+		if (state != HANDSHAKING) {
+			LOG.error("handshake reply received without a handshake in progress");
+			return isEnabled();
+		}
+		ByteBuffer in = msg.getIn();
+		if (in.limit() == 8 && in.getLong(0) == HANDSHAKE_ACK) {
+			state = ENABLED;
+		} else {
+			LOG.warn("the server did not acknowledge compression, payloads are sent uncompressed");
+			state = DISABLED;
+		}
+		return isEnabled();
+	}
+
+	/**
+	 * Server side: answers a handshake request. Should be called on each request before the payload is read; if it
+	 * returns true the msg was the handshake and the acknowledgement (or refusal, if the session did not ask for
+	 * compression) is written to its OUT buffer, to be sent with sendResponse
+	 * 
+	 * @param msg
+	 *            - received Msg
+	 * @return true if msg is a handshake request and false if it is a request of the application
+	 */
+	public boolean acceptHandshake(Msg msg) {
+		if (state == ENABLED) {
+			// after the handshake every request has the compression header
+			return false;
+		}
+		ByteBuffer in = msg.getIn();
+		if (in.limit() != 8 || in.getLong(0) != HANDSHAKE) {
+			return false;
+		}
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		if (state == REQUESTED) {
+			out.putLong(HANDSHAKE_ACK);
+			state = ENABLED;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true while the client waits for the reply to its handshake, during which no payloads can be sent
+	 * 
+	 * @return true if the handshake is in progress
+	 */
+	public boolean isHandshaking() {
+		return state == HANDSHAKING;
+	}
+
+	/**
+	 * Returns true if compression is enabled on this session
+	 * 
+	 * @return true if payloads are compressed
+	 */
+	public boolean isEnabled() {
+		return state == ENABLED;
+	}
+
+	/**
+	 * Writes the remaining bytes of payload to the OUT buffer of msg, compressed if compression is enabled and the
+	 * payload is at least threshold bytes long and shrinks. The OUT buffer is cleared first and its position is set to
+	 * the end of the written data, so the msg is ready to be sent. The position of payload is advanced to its limit
+	 * 
+	 * @param payload
+	 *            - data to send
+	 * @param msg
+	 *            - Msg to write the data to
+	 * @return true if the payload was written and false if it does not fit in the OUT buffer or the handshake is in
+	 *         progress
+	 */
+	public boolean compress(ByteBuffer payload, Msg msg) {
+		if (state == HANDSHAKING) {
+			LOG.error("payload can not be sent before the reply to the compression handshake arrives");
+			return false;
+		}
+		ByteBuffer out = msg.getOut();
+		out.clear();
+		int len = payload.remaining();
+		if (state != ENABLED) {
+			if (len > out.capacity()) {
+				LOG.error("payload of " + len + " bytes does not fit in " + msg);
+				return false;
+			}
+			out.put(payload);
+			return true;
+		}
+		int room = out.capacity() - HEADER_LENGTH;
+		if (len >= threshold) {
+			int clen = lz4.compress(payload, payload.position(), len, out, HEADER_LENGTH, Math.min(room, len - 1));
+			if (clen > 0) {
+				out.putInt(0, len | COMPRESSED_FLAG);
+				out.position(HEADER_LENGTH + clen);
+				payload.position(payload.limit());
+				numCompressed++;
+				payloadBytes += len;
+				wireBytes += HEADER_LENGTH + clen;
+				return true;
+			}
+		}
+		if (len > room) {
+			LOG.error("payload of " + len + " bytes does not fit in " + msg);
+			return false;
+		}
+		out.putInt(0, len);
+		out.position(HEADER_LENGTH);
+		out.put(payload);
+		numSkipped++;
+		payloadBytes += len;
+		wireBytes += HEADER_LENGTH + len;
+		return true;
+	}
+
+	/**
+	 * Returns the length the payload in the IN buffer of msg will have after decompress
+	 * 
+	 * @param msg
+	 *            - received Msg
+	 * @return length of the payload or -1 if the msg is too short for the header
+	 */
+	public int getPayloadLength(Msg msg) {
+		ByteBuffer in = msg.getIn();
+		if (state != ENABLED) {
+			return in.limit();
+		}
+		if (in.limit() < HEADER_LENGTH) {
+			return -1;
+		}
+		return in.getInt(0) & ~COMPRESSED_FLAG;
+	}
+
+	/**
+	 * Reads the payload in the IN buffer of msg into dst, decompressing it if it was compressed. The payload is
+	 * written from the position of dst, which is advanced past it
+	 * 
+	 * @param msg
+	 *            - received Msg
+	 * @param dst
+	 *            - buffer to write the payload to
+	 * @return length of the payload or -1 if it does not fit in dst or is corrupted
+	 */
+	public int decompress(Msg msg, ByteBuffer dst) {
+		ByteBuffer in = msg.getIn();
+		if (state != ENABLED) {
+			int len = in.limit();
+			if (len > dst.remaining()) {
+				LOG.error("payload of " + len + " bytes does not fit in " + dst);
+				return -1;
+			}
+			in.position(0);
+			dst.put(in);
+			return len;
+		}
+		if (in.limit() < HEADER_LENGTH) {
+			LOG.error("received " + in.limit() + " bytes, too short for the compression header");
+			return -1;
+		}
+		int header = in.getInt(0);
+		int len = header & ~COMPRESSED_FLAG;
+		if (len > dst.remaining()) {
+			LOG.error("payload of " + len + " bytes does not fit in " + dst);
+			return -1;
+		}
+		if ((header & COMPRESSED_FLAG) == 0) {
+			if (in.limit() - HEADER_LENGTH != len) {
+				LOG.error("uncompressed payload of " + len + " bytes arrived with " + (in.limit() - HEADER_LENGTH)
+				        + " bytes");
+				return -1;
+			}
+			in.position(HEADER_LENGTH);
+			dst.put(in);
+			return len;
+		}
+		int n = Lz4Compressor.decompress(in, HEADER_LENGTH, in.limit() - HEADER_LENGTH, dst, dst.position(), len);
+		if (n != len) {
+			LOG.error("corrupted compressed payload: expected " + len + " bytes, decompressed " + n);
+			return -1;
+		}
+		dst.position(dst.position() + n);
+		return len;
+	}
+
+	/**
+	 * Returns the number of payloads that were sent compressed
+	 * 
+	 * @return number of compressed payloads
+	 */
+	public long getNumCompressed() {
+		return numCompressed;
+	}
+
+	/**
+	 * Returns the number of payloads that were sent uncompressed while compression is enabled, because they were
+	 * shorter than the threshold or did not shrink
+	 * 
+	 * @return number of uncompressed payloads
+	 */
+	public long getNumSkipped() {
+		return numSkipped;
+	}
+
+	/**
+	 * Returns the ratio between the bytes of the payloads given to compress and the bytes written to the OUT
+	 * buffers, including the headers
+	 * 
+	 * @return compression ratio, 1 if nothing was compressed
+	 */
+	public double getCompressionRatio() {
+		return (wireBytes == 0) ? 1 : (double) payloadBytes / wireBytes;
+	}
+}
@@ -163,6 +163,49 @@ public class Bridge {
 		deleteMsgPoolNative(ptrMsgPool);
 	}
 
+	private static native long registerMemoryRegionNative(ByteBuffer buffer);
+
+	public static long registerMemoryRegion(final ByteBuffer buffer) {
+		long ptr = registerMemoryRegionNative(buffer);
+		return ptr;
+	}
+
+	private static native void deregisterMemoryRegionNative(long ptrRegion);
+
+	public static void deregisterMemoryRegion(final long ptrRegion) {
+		deregisterMemoryRegionNative(ptrRegion);
+	}
+
+	private static native void setMsgOutRegionNative(long ptrMsg, long ptrRegion, int offset);
+
+	public static void setMsgOutRegion(final long ptrMsg, final long ptrRegion, final int offset) {
+		setMsgOutRegionNative(ptrMsg, ptrRegion, offset);
+	}
+
+	private static native void resetMsgOutRegionNative(long ptrMsg);
+
+	public static void resetMsgOutRegion(final long ptrMsg) {
+		resetMsgOutRegionNative(ptrMsg);
+	}
+
+	private static native void setMsgNotifySendCompleteNative(long ptrMsg, boolean notify);
+
+	public static void setMsgNotifySendComplete(final long ptrMsg, final boolean notify) {
+		setMsgNotifySendCompleteNative(ptrMsg, notify);
+	}
+
+	private static native void setMsgDeadlineNative(long ptrMsg, long remainingMicroSec);
+
+	public static void setMsgDeadline(final long ptrMsg, final long remainingMicroSec) {
+		setMsgDeadlineNative(ptrMsg, remainingMicroSec);
+	}
+
+	private static native void setMsgReplyStatusNative(long ptrMsg, int status);
+
+	public static void setMsgReplyStatus(final long ptrMsg, final int status) {
+		setMsgReplyStatusNative(ptrMsg, status);
+	}
+
 	private static native boolean clientSendReqNative(long ptrSession, long ptrMsg, int size);
 
 	public static boolean clientSendReq(final long ptrSession, final long ptrMsg, final int size) {
@@ -170,6 +213,20 @@ public class Bridge {
 		return ret;
 	}
 
+	private static native int clientSendReqsNative(long ptrSession, long[] ptrMsgs, int[] sizes, int count);
+
+	public static int clientSendReqs(final long ptrSession, final long[] ptrMsgs, final int[] sizes, final int count) {
+		int ret = clientSendReqsNative(ptrSession, ptrMsgs, sizes, count);
+		return ret;
+	}
+
+	private static native boolean clientSendOneWayNative(long ptrSession, long ptrMsg, int size);
+
+	public static boolean clientSendOneWay(final long ptrSession, final long ptrMsg, final int size) {
+		boolean ret = clientSendOneWayNative(ptrSession, ptrMsg, size);
+		return ret;
+	}
+
 	private static native boolean serverSendResponseNative(long ptrMsg, int size, long ptrSesServer);
 
 	public static boolean serverSendResponse(final long ptrMsg, final int size, final long ptrSesServer) {
@@ -177,6 +234,14 @@ public class Bridge {
 		return ret;
 	}
 	
+	private static native int serverSendResponsesNative(long[] ptrMsgs, int[] sizes, long[] ptrSesServers, int count);
+
+	public static int serverSendResponses(final long[] ptrMsgs, final int[] sizes, final long[] ptrSesServers,
+	        final int count) {
+		int ret = serverSendResponsesNative(ptrMsgs, sizes, ptrSesServers, count);
+		return ret;
+	}
+
 	private static native void releaseMsgServerSideNative(long ptrMsg);
 
 	public static void releaseMsgServerSide(final long ptrMsg) {
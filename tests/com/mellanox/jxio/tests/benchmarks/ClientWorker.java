@@ -18,6 +18,7 @@ cd te	 ** Copyright (C) 2013 Mellanox Technologies
 package com.mellanox.jxio.tests.benchmarks;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
@@ -29,6 +30,7 @@ import com.mellanox.jxio.EventQueueHandler;
 import com.mellanox.jxio.EventReason;
 import com.mellanox.jxio.Msg;
 import com.mellanox.jxio.MsgPool;
+import com.mellanox.jxio.codec.MsgCompressor;
 
 public class ClientWorker implements Callable<double[]> {
 	private final ClientSession cs;
@@ -42,6 +44,10 @@ public class ClientWorker implements Callable<double[]> {
 	private long cnt;
 	private int sample_cnt;
 	private int res_array_index = 0;
+	// payload compression, null unless the test runs with compression
+	private final MsgCompressor compressor;
+	private final ByteBuffer payload;
+	private final ByteBuffer reply;
 
 	// results array (in the form of [tps1,bw1,tp2,bw2...]
 	public double[] results;
@@ -53,9 +59,22 @@ public class ClientWorker implements Callable<double[]> {
 	int num_of_messages = 50;
 
 	// cTor
-	public ClientWorker(int inMsg_size, int outMsg_size, URI uri, int num_of_buffers, double[] res) {
+	public ClientWorker(int inMsg_size, int outMsg_size, URI uri, int num_of_buffers, double[] res,
+	        int compress_threshold) {
 		eqh = new EventQueueHandler(new ClientEQHCallbacks());
-		pool = new MsgPool(num_of_buffers, inMsg_size, outMsg_size);
+		if (compress_threshold >= 0) {
+			compressor = new MsgCompressor(uri.toString(), compress_threshold);
+			payload = ByteBuffer.allocateDirect(outMsg_size);
+			DataPathTest.fillPayload(payload);
+			reply = ByteBuffer.allocateDirect(inMsg_size);
+			pool = new MsgPool(num_of_buffers, inMsg_size + MsgCompressor.HEADER_LENGTH, outMsg_size
+			        + MsgCompressor.HEADER_LENGTH);
+		} else {
+			compressor = null;
+			payload = null;
+			reply = null;
+			pool = new MsgPool(num_of_buffers, inMsg_size, outMsg_size);
+		}
 		results = res;
 		cs = new ClientSession(eqh, uri, new ClientWorkerCallbacks());
 		in_msgSize = inMsg_size;
@@ -70,29 +89,59 @@ public class ClientWorker implements Callable<double[]> {
 		firstTime = true;
 	}
 
+	// ratio between payload bytes and bytes sent, 1 when not compressing
+	public double getCompressionRatio() {
+		return (compressor == null) ? 1 : compressor.getCompressionRatio();
+	}
+
+	// writes the request payload to msg
+	private boolean prepareRequest(Msg msg) {
+		if (compressor == null) {
+			msg.getOut().position(msg.getOut().capacity()); // simulate 'out_msgSize' was written into buffer
+			return true;
+		}
+		payload.clear();
+		return compressor.compress(payload, msg);
+	}
+
 	public void close() {
 		LOG.debug("closing client session");
 		cs.close();
 	}
 
 	public double[] call() {
+		if (compressor != null) {
+			// the first burst is sent once the server acknowledged compression
+			Msg msg = pool.getMsg();
+			if (msg == null || !compressor.writeHandshake(msg) || !cs.sendRequest(msg)) {
+				LOG.error("Error sending compression handshake");
+				if (msg != null) {
+					pool.releaseMsg(msg);
+				}
+				sendFirstBurst();
+			}
+		} else {
+			sendFirstBurst();
+		}
+		eqh.run();
+		eqh.close();
+		LOG.debug("deleting message pool");
+		pool.deleteMsgPool();
+		return results;
+	}
+
+	private void sendFirstBurst() {
 		for (int i = 0; i < num_of_messages; i++) {
 			Msg msg = pool.getMsg();
 			if (msg == null) {
 				LOG.error("Cannot get new message");
 				break;
 			}
-			msg.getOut().position(msg.getOut().capacity()); // simulate 'out_msgSize' was written into buffer
-			if (!cs.sendRequest(msg)) {
+			if (!prepareRequest(msg) || !cs.sendRequest(msg)) {
 				LOG.error("Error sending");
 				pool.releaseMsg(msg);
 			}
 		}
-		eqh.run();
-		eqh.close();
-		LOG.debug("deleting message pool");
-		pool.deleteMsgPool();
-		return results;
 	}
 	
 	// callbacks for the Client's event queue handler
@@ -127,6 +176,18 @@ public class ClientWorker implements Callable<double[]> {
 		}
 
 		public void onReply(Msg msg) {
+			if (compressor != null && compressor.isHandshaking()) {
+				if (!compressor.onHandshakeReply(msg)) {
+					LOG.warn("server did not acknowledge compression");
+				}
+				pool.releaseMsg(msg);
+				sendFirstBurst();
+				return;
+			}
+			if (compressor != null) {
+				reply.clear();
+				compressor.decompress(msg, reply);
+			}
 			if (firstTime) {
 				startTime = System.nanoTime();
 				firstTime = false;
@@ -152,7 +213,7 @@ public class ClientWorker implements Callable<double[]> {
 				startTime = System.nanoTime();
 			}
 			if (!ClientWorker.this.cs.getIsClosing()) {
-				if (!cs.sendRequest(msg)) {
+				if (!prepareRequest(msg) || !cs.sendRequest(msg)) {
 					pool.releaseMsg(msg);
 				}
 			}
@@ -0,0 +1,113 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.tests.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.mellanox.jxio.codec.MsgCodec;
+
+/**
+ * Compares encoding and decoding an {@link Order} with the flyweight codec, in place in a direct buffer (as the
+ * buffers of a Msg are), with copy based serialization through DataOutputStream and a byte[] that is then copied
+ * into the direct buffer. Does not need RDMA hardware.
+ * <p>
+ * Usage: CodecBenchmark [iterations]
+ */
+public class CodecBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 1000000;
+	private static final int BUFFER_SIZE       = 64;
+
+	private static long      sink;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		runFlyweight(buf, WARMUP_ITERATIONS);
+		runCopy(buf, WARMUP_ITERATIONS);
+
+		long start = System.nanoTime();
+		runFlyweight(buf, iterations);
+		long flyweightNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		runCopy(buf, iterations);
+		long copyNanos = System.nanoTime() - start;
+
+		print("flyweight", flyweightNanos, iterations);
+		print("copy", copyNanos, iterations);
+		System.out.println("(checksum " + sink + ")");
+	}
+
+	private static void print(String name, long nanos, int iterations) {
+		System.out.printf("%-10s %8.1f ns/msg %12.0f msg/sec%n", name, (double) nanos / iterations,
+		        iterations * 1000000000.0 / nanos);
+	}
+
+	private static void runFlyweight(ByteBuffer buf, int iterations) {
+		Order enc = new Order();
+		Order dec = new Order();
+		StringBuilder symbol = new StringBuilder(8);
+		long sum = 0;
+		for (int i = 0; i < iterations; i++) {
+			buf.clear();
+			MsgCodec.wrapForEncode(buf, enc).orderId(i).timestamp(i * 3L).quantity(i & 0xfff).price(i * 0.25)
+			        .side((byte) (i & 1)).symbol("MLNX");
+			buf.flip();
+			if (!MsgCodec.wrapForDecode(buf, dec)) {
+				throw new IllegalStateException("decode failed");
+			}
+			symbol.setLength(0);
+			dec.symbol(symbol);
+			sum += dec.orderId() + dec.timestamp() + dec.quantity() + (long) dec.price() + dec.side()
+			        + symbol.length();
+		}
+		sink += sum;
+	}
+
+	private static void runCopy(ByteBuffer buf, int iterations) throws IOException {
+		long sum = 0;
+		byte[] in = new byte[BUFFER_SIZE];
+		for (int i = 0; i < iterations; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(i);
+			out.writeLong(i * 3L);
+			out.writeInt(i & 0xfff);
+			out.writeDouble(i * 0.25);
+			out.writeByte(i & 1);
+			out.writeUTF("MLNX");
+			out.flush();
+			buf.clear();
+			buf.put(bytes.toByteArray());
+			buf.flip();
+
+			int len = buf.remaining();
+			buf.get(in, 0, len);
+			DataInputStream din = new DataInputStream(new ByteArrayInputStream(in, 0, len));
+			sum += din.readLong() + din.readLong() + din.readInt() + (long) din.readDouble() + din.readByte()
+			        + din.readUTF().length();
+		}
+		sink += sum;
+	}
+}
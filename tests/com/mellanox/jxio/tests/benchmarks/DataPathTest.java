@@ -21,10 +21,13 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.mellanox.jxio.codec.MsgCompressor;
+
 public abstract class DataPathTest {
 
 	// command line args
@@ -36,6 +39,10 @@ public abstract class DataPathTest {
 	protected String server_ip;
 	protected String server_port;
 	protected String file_path;
+	// optional "compress=<threshold>" argument: payloads of at least threshold bytes are LZ4 compressed
+	protected int compress_threshold = -1;
+	// extra bytes of the msg buffers for the compression header
+	protected int compress_overhead = 0;
 
 	// uri for connection
 	protected final URI uri;
@@ -57,13 +64,17 @@ public abstract class DataPathTest {
 			System.out.println("Bad URI, Aborting test...");
 			System.exit(0);
 		}
-		num_of_buffers_per_thread = (max_memory * 1024 * 1024) / (num_of_threads * (inMsg_size + outMsg_size));
+		num_of_buffers_per_thread = (max_memory * 1024 * 1024)
+		        / (num_of_threads * (inMsg_size + outMsg_size + 2 * compress_overhead));
 	}
 
 	// build URI from command line parameters
 	protected URI generateUri() {
 		String url_string = "rdma://" + server_ip + ":" + server_port;
 		try {
+			if (compress_threshold >= 0) {
+				return MsgCompressor.requestCompression(new URI(url_string));
+			}
 			return new URI(url_string);
 		} catch (URISyntaxException e) {
 			System.out.println("Bad URI given\n");
@@ -85,5 +96,23 @@ public abstract class DataPathTest {
 		inMsg_size = Integer.parseInt(args[3]);
 		outMsg_size = Integer.parseInt(args[4]);
 		max_memory = Integer.parseInt(args[5]);
+		for (String arg : args) {
+			if (arg.startsWith("compress=")) {
+				compress_threshold = Integer.parseInt(arg.substring("compress=".length()));
+				compress_overhead = MsgCompressor.HEADER_LENGTH;
+			}
+		}
+	}
+
+	// fills buf with JSON like records, compressible like the payloads compression is meant for
+	public static void fillPayload(ByteBuffer buf) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < buf.capacity(); i++) {
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i * 7919 % 10007).append("\",\"price\":")
+			        .append(i % 1000).append(".").append(i % 100).append(",\"tags\":[\"red\",\"large\"]},");
+		}
+		for (int i = 0; i < buf.capacity(); i++) {
+			buf.put(i, (byte) sb.charAt(i));
+		}
 	}
 }
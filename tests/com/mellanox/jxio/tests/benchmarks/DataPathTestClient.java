@@ -44,10 +44,13 @@ public class DataPathTestClient extends DataPathTest {
 	double totalBTW = 0;
 	int totalCnt = 0;
 	int totalPPS = 0;
+	double compressionRatio = 1;
 
 	// results matrix
 	private double results[][];
 
+	private final ClientWorker[] clientWorkers;
+
 	// logger
 	private final static Log LOG = LogFactory.getLog(DataPathTestClient.class.getCanonicalName());
 	
@@ -61,9 +64,12 @@ public class DataPathTestClient extends DataPathTest {
 		results = new double[num_of_threads][test_iterations * 3];
 		workers = new ArrayList<FutureTask<double[]>>(num_of_threads);
 		executor = Executors.newFixedThreadPool(num_of_threads);
+		clientWorkers = new ClientWorker[num_of_threads];
 
 		for (int i = 0; i < num_of_threads; i++) {
-			ClientWorker cw = new ClientWorker(inMsg_size, outMsg_size, uri, num_of_buffers_per_thread, results[i]);
+			ClientWorker cw = new ClientWorker(inMsg_size, outMsg_size, uri, num_of_buffers_per_thread, results[i],
+			        compress_threshold);
+			clientWorkers[i] = cw;
 			workers.add(new FutureTask<double[]>(cw));
 		}
 		// Create/Open file
@@ -134,6 +140,16 @@ public class DataPathTestClient extends DataPathTest {
 
 			System.out.println("average_TPS = " + av_TPS + ",  average_RX_BW = " + av_InBW + " MB,  average_TX_BW = " + av_OutBW + " MB,  in_msg_size = "
 			        + inMsg_size + " Bytes,  out_msg_size = " + outMsg_size + " Bytes");
+			if (compress_threshold >= 0) {
+				// BW above counts payload bytes. The gain over a run without compression is the ratio of the BWs
+				compressionRatio = 0;
+				for (ClientWorker cw : clientWorkers) {
+					compressionRatio += cw.getCompressionRatio();
+				}
+				compressionRatio /= clientWorkers.length;
+				System.out.println("compression: threshold = " + compress_threshold + " Bytes,  TX_compression_ratio = "
+				        + compressionRatio + ",  TX_wire_BW = " + (av_OutBW / compressionRatio) + " MB");
+			}
 			// write results to file
 			this.writeResultsToFile(av_TPS, av_OutBW, av_InBW);
 
@@ -147,7 +163,8 @@ public class DataPathTestClient extends DataPathTest {
 	private void writeResultsToFile(double av_TPS, double av_OutBW, double av_InBW) {
 		if(write_to_file){
     		try {
-    			out.write(inMsg_size + "," + outMsg_size + "," + av_TPS + "," + av_OutBW + "," + av_InBW + "\n");
+    			String compression = (compress_threshold >= 0) ? "," + compress_threshold + "," + compressionRatio : "";
+    			out.write(inMsg_size + "," + outMsg_size + "," + av_TPS + "," + av_OutBW + "," + av_InBW + compression + "\n");
     			out.close();
     		} catch (IOException e) {
     			LOG.error("error in writing results to file : " + file_path);
@@ -17,8 +17,6 @@
 
 package com.mellanox.jxio.tests.benchmarks;
 
-import java.util.PriorityQueue;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -35,7 +33,7 @@ public class DataPathTestServer extends DataPathTest {
 	private final ServerPortal listener;
 
 	// portal workers list
-	private static PriorityQueue<ServerPortalWorker> SPWorkers;
+	private final ServerPortalWorker[] SPWorkers;
 
 	// logger
 	private final static Log LOG = LogFactory.getLog(DataPathTestServer.class.getCanonicalName());
@@ -46,10 +44,13 @@ public class DataPathTestServer extends DataPathTest {
 		listen_eqh = new EventQueueHandler(null);
 		tsc = new TestServerCallbacks();
 		listener = new ServerPortal(listen_eqh, uri, tsc);
-		SPWorkers = new PriorityQueue<ServerPortalWorker>(num_of_threads);
+		listener.setForwardPolicy(ServerPortal.ForwardPolicy.LEAST_SESSIONS);
+		SPWorkers = new ServerPortalWorker[num_of_threads];
 		//adding 15 to num_of_buffers_per_thread due to ACCELLIO demand
 		for (int i = 0; i < num_of_threads; i++) {
-			SPWorkers.add(new ServerPortalWorker(i, inMsg_size, outMsg_size, listener.getUriForServer(), num_of_buffers_per_thread + 16));
+			SPWorkers[i] = new ServerPortalWorker(i, inMsg_size + compress_overhead, outMsg_size + compress_overhead,
+			        listener.getUriForServer(), num_of_buffers_per_thread + 16);
+			listener.addWorker(SPWorkers[i].getPortal());
 		}
 	}
 
@@ -63,28 +64,16 @@ public class DataPathTestServer extends DataPathTest {
 		}
 	}
 
-	private synchronized static ServerPortalWorker getNextWorker() {
-		// retrieve next spw and update its position in the queue
-		ServerPortalWorker s = SPWorkers.poll();
-		s.incrNumOfSessions();
-		SPWorkers.add(s);
-		return s;
-	}
-
-	public synchronized static void updateWorkers(ServerPortalWorker s) {
-		// remove & add the ServerPortalWorker in order.
-		SPWorkers.remove(s);
-		SPWorkers.add(s);
-	}
-
 	// callbacks for the listener server portal
 	public class TestServerCallbacks implements ServerPortal.Callbacks {
 
 		public void onSessionNew(ServerSession.SessionKey sesKey, String srcIP) {
-			LOG.debug("New session created, forwarding to the next Server Portal");
-			// forward the created session to the ServerPortal
-			ServerPortalWorker spw = getNextWorker();
-			listener.forward(spw.getPortal(), (new ServerSessionHandle(sesKey, spw)).getSession());
+			LOG.debug("New session created, forwarding to the least loaded Server Portal");
+			// forward the created session to the ServerPortal with the least sessions
+			ServerPortal portal = listener.forwardBalanced((new ServerSessionHandle(sesKey, compress_threshold, inMsg_size, outMsg_size))
+			        .getSession());
+			System.out.println("Server Portal " + portal + " got new Session, now handling " + portal.getNumSessions()
+			        + " sessions");
 		}
 
 		public void onSessionEvent(EventName session_event, EventReason reason) {
@@ -0,0 +1,83 @@
+/* Generated by com.mellanox.jxio.codec.FlyweightGenerator. Do not edit. */
+package com.mellanox.jxio.tests.benchmarks;
+
+import com.mellanox.jxio.codec.Flyweight;
+
+public class Order extends Flyweight {
+
+	public static final int TEMPLATE_ID = 1;
+	public static final int SCHEMA_VERSION = 0;
+	public static final int BLOCK_LENGTH = 37;
+	public static final int ORDER_ID_OFFSET = 0;
+	public static final int TIMESTAMP_OFFSET = 8;
+	public static final int QUANTITY_OFFSET = 16;
+	public static final int PRICE_OFFSET = 20;
+	public static final int SIDE_OFFSET = 28;
+	public static final int SYMBOL_OFFSET = 29;
+
+	public int templateId() {
+		return TEMPLATE_ID;
+	}
+
+	public int schemaVersion() {
+		return SCHEMA_VERSION;
+	}
+
+	public int encodedLength() {
+		return BLOCK_LENGTH;
+	}
+
+	public long orderId() {
+		return buffer.getLong(offset + ORDER_ID_OFFSET);
+	}
+
+	public Order orderId(long value) {
+		buffer.putLong(offset + ORDER_ID_OFFSET, value);
+		return this;
+	}
+
+	public long timestamp() {
+		return buffer.getLong(offset + TIMESTAMP_OFFSET);
+	}
+
+	public Order timestamp(long value) {
+		buffer.putLong(offset + TIMESTAMP_OFFSET, value);
+		return this;
+	}
+
+	public int quantity() {
+		return buffer.getInt(offset + QUANTITY_OFFSET);
+	}
+
+	public Order quantity(int value) {
+		buffer.putInt(offset + QUANTITY_OFFSET, value);
+		return this;
+	}
+
+	public double price() {
+		return buffer.getDouble(offset + PRICE_OFFSET);
+	}
+
+	public Order price(double value) {
+		buffer.putDouble(offset + PRICE_OFFSET, value);
+		return this;
+	}
+
+	public byte side() {
+		return buffer.get(offset + SIDE_OFFSET);
+	}
+
+	public Order side(byte value) {
+		buffer.put(offset + SIDE_OFFSET, value);
+		return this;
+	}
+
+	public int symbol(StringBuilder dst) {
+		return getString(SYMBOL_OFFSET, 8, dst);
+	}
+
+	public Order symbol(CharSequence value) {
+		putString(SYMBOL_OFFSET, 8, value);
+		return this;
+	}
+}
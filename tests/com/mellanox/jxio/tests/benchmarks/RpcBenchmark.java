@@ -0,0 +1,264 @@
+/*
+ ** Copyright (C) 2013 Mellanox Technologies
+ **
+ ** Licensed under the Apache License, Version 2.0 (the "License");
+ ** you may not use this file except in compliance with the License.
+ ** You may obtain a copy of the License at:
+ **
+ ** http://www.apache.org/licenses/LICENSE-2.0
+ **
+ ** Unless required by applicable law or agreed to in writing, software
+ ** distributed under the License is distributed on an "AS IS" BASIS,
+ ** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ ** either express or implied. See the License for the specific language
+ ** governing permissions and  limitations under the License.
+ **
+ */
+package com.mellanox.jxio.tests.benchmarks;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import com.mellanox.jxio.ClientSession;
+import com.mellanox.jxio.EventName;
+import com.mellanox.jxio.EventQueueHandler;
+import com.mellanox.jxio.EventReason;
+import com.mellanox.jxio.Msg;
+import com.mellanox.jxio.MsgPool;
+import com.mellanox.jxio.RpcClient;
+import com.mellanox.jxio.RpcFuture;
+import com.mellanox.jxio.RpcServer;
+import com.mellanox.jxio.ServerPortal;
+import com.mellanox.jxio.ServerSession;
+
+/**
+ * Measures the overhead of RpcServer/RpcClient over raw sendRequest/sendResponse. Runs an echo server in a second
+ * thread with two portals, a raw one on port and an rpc one on port+1, and a client sending 8 byte requests with
+ * depth requests in flight, first raw and then through RpcClient.
+ * <p>
+ * Usage: RpcBenchmark &lt;server ip&gt; &lt;port&gt; [iterations] [depth]
+ */
+public class RpcBenchmark {
+
+	private static final int ECHO_METHOD = 1;
+	private static final int MSG_SIZE    = 64;
+
+	public static void main(String[] args) throws URISyntaxException, InterruptedException {
+		if (args.length < 2) {
+			System.out.println("Usage: RpcBenchmark <server ip> <port> [iterations] [depth]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 1000000;
+		int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+		URI rawUri = new URI("rdma://" + host + ":" + port + "/");
+		URI rpcUri = new URI("rdma://" + host + ":" + (port + 1) + "/");
+
+		EchoServer server = new EchoServer(rawUri, rpcUri, depth);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		// first round warms up both paths
+		new RawClient(rawUri, iterations / 10, depth).run();
+		new RpcBenchClient(rpcUri, iterations / 10, depth).run();
+		long raw = new RawClient(rawUri, iterations, depth).run();
+		long rpc = new RpcBenchClient(rpcUri, iterations, depth).run();
+
+		print("raw", raw, iterations);
+		print("rpc", rpc, iterations);
+		System.out.printf("rpc overhead %.1f%%%n", (rpc - raw) * 100.0 / raw);
+
+		server.eqh.stop();
+		serverThread.join();
+		server.releaseResources();
+	}
+
+	private static void print(String name, long nanos, int iterations) {
+		System.out.printf("%-4s %8.2f usec/req %12.0f req/sec%n", name, nanos / 1000.0 / iterations,
+		        iterations * 1000000000.0 / nanos);
+	}
+
+	static class EchoServer implements Runnable {
+		final EventQueueHandler eqh;
+		final MsgPool           pool;
+		final ServerPortal      rawPortal;
+		final ServerPortal      rpcPortal;
+		final RpcServer         rpcServer;
+
+		EchoServer(URI rawUri, URI rpcUri, int depth) {
+			this.eqh = new EventQueueHandler(null);
+			this.pool = new MsgPool(4 * depth, MSG_SIZE, MSG_SIZE);
+			eqh.bindMsgPool(pool);
+			this.rpcServer = new RpcServer(ECHO_METHOD);
+			rpcServer.register(ECHO_METHOD, new RpcServer.Handler() {
+				public void onCall(ServerSession session, Msg msg) {
+					msg.getOut().putLong(msg.getIn().getLong());
+					session.sendResponse(msg);
+				}
+			});
+			this.rawPortal = new ServerPortal(eqh, rawUri, new ServerPortal.Callbacks() {
+				public void onSessionNew(ServerSession.SessionKey sesKey, String srcIP) {
+					RawSessionCallbacks cb = new RawSessionCallbacks();
+					cb.session = new ServerSession(sesKey, cb);
+					rawPortal.accept(cb.session);
+				}
+
+				public void onSessionEvent(EventName session_event, EventReason reason) {
+				}
+			});
+			this.rpcPortal = new ServerPortal(eqh, rpcUri, new ServerPortal.Callbacks() {
+				public void onSessionNew(ServerSession.SessionKey sesKey, String srcIP) {
+					rpcPortal.accept(rpcServer.newSession(sesKey, new RawSessionCallbacks()));
+				}
+
+				public void onSessionEvent(EventName session_event, EventReason reason) {
+				}
+			});
+		}
+
+		public void run() {
+			eqh.run();
+		}
+
+		void releaseResources() {
+			eqh.releaseMsgPool(pool);
+			pool.deleteMsgPool();
+			eqh.close();
+		}
+	}
+
+	static class RawSessionCallbacks implements ServerSession.Callbacks {
+		ServerSession session;
+
+		public void onRequest(Msg msg) {
+			msg.getOut().putLong(msg.getIn().getLong());
+			session.sendResponse(msg);
+		}
+
+		public void onOneWay(Msg msg) {
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+		}
+
+		public boolean onMsgError(Msg msg, EventReason reason) {
+			return true;
+		}
+	}
+
+	static abstract class BenchClient implements ClientSession.Callbacks {
+		final EventQueueHandler eqh = new EventQueueHandler(null);
+		final MsgPool           pool;
+		final int               iterations;
+		final int               depth;
+		int                     sent      = 0;
+		int                     received  = 0;
+		long                    checksum  = 0;
+		long                    startTime;
+		long                    endTime;
+
+		BenchClient(int iterations, int depth) {
+			this.iterations = iterations;
+			this.depth = depth;
+			this.pool = new MsgPool(depth, MSG_SIZE, MSG_SIZE);
+		}
+
+		abstract void send(Msg msg);
+
+		abstract void close();
+
+		long run() {
+			eqh.run();
+			pool.deleteMsgPool();
+			eqh.close();
+			if (received != iterations || checksum != (long) iterations * (iterations - 1) / 2) {
+				System.out.println("received " + received + " of " + iterations + " replies, checksum " + checksum);
+			}
+			return endTime - startTime;
+		}
+
+		void next(Msg msg) {
+			checksum += msg.getIn().getLong();
+			received++;
+			if (sent < iterations) {
+				send(msg);
+			} else {
+				msg.returnToParentPool();
+				if (received == iterations) {
+					endTime = System.nanoTime();
+					close();
+				}
+			}
+		}
+
+		public void onSessionEstablished() {
+			startTime = System.nanoTime();
+			for (int i = 0; i < depth && sent < iterations; i++) {
+				send(pool.getMsg());
+			}
+		}
+
+		public void onReply(Msg msg) {
+			next(msg);
+		}
+
+		public void onSessionEvent(EventName session_event, EventReason reason) {
+			if (session_event == EventName.SESSION_CLOSED || session_event == EventName.SESSION_ERROR) {
+				eqh.stop();
+			}
+		}
+
+		public void onMsgError(Msg msg, EventReason reason) {
+			System.out.println("msg error " + reason);
+			msg.returnToParentPool();
+			close();
+		}
+	}
+
+	static class RawClient extends BenchClient {
+		final ClientSession session;
+
+		RawClient(URI uri, int iterations, int depth) {
+			super(iterations, depth);
+			this.session = new ClientSession(eqh, uri, this);
+		}
+
+		void send(Msg msg) {
+			msg.resetPositions();
+			msg.getOut().putLong(sent++);
+			session.sendRequest(msg);
+		}
+
+		void close() {
+			session.close();
+		}
+	}
+
+	static class RpcBenchClient extends BenchClient implements RpcFuture.Listener {
+		final RpcClient client;
+
+		RpcBenchClient(URI uri, int iterations, int depth) {
+			super(iterations, depth);
+			this.client = new RpcClient(eqh, uri, this);
+		}
+
+		void send(Msg msg) {
+			msg.resetPositions();
+			RpcClient.startCall(msg).putLong(sent++);
+			client.call(ECHO_METHOD, msg).setListener(this);
+		}
+
+		void close() {
+			client.close();
+		}
+
+		public void onComplete(RpcFuture future) {
+			if (future.isCompleted()) {
+				next(future.getMsg());
+			} else {
+				onMsgError(future.getMsg(), future.getErrorReason());
+			}
+		}
+	}
+}
@@ -18,7 +18,6 @@
 package com.mellanox.jxio.tests.benchmarks;
 
 import java.net.URI;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,13 +26,12 @@ import com.mellanox.jxio.EventQueueHandler;
 import com.mellanox.jxio.MsgPool;
 import com.mellanox.jxio.ServerPortal;
 
-public class ServerPortalWorker extends Thread implements Comparable<ServerPortalWorker> {
+public class ServerPortalWorker extends Thread {
 
 	private final ServerPortal sp;
 	private final EventQueueHandler eqh;
 	private final MsgPool pool;
 	private final int portal_index;
-	private AtomicInteger num_of_sessions;
 
 	// logger
 	private final static Log LOG = LogFactory.getLog(ServerPortalWorker.class.getCanonicalName());
@@ -45,7 +43,6 @@ public class ServerPortalWorker extends Thread implements Comparable<ServerPorta
 		pool = new MsgPool(num_of_buffers, inMsg_size, outMsg_size);
 		eqh.bindMsgPool(pool);
 		sp = new ServerPortal(eqh, uri);
-		num_of_sessions = new AtomicInteger(0);
 	}
 
 	public void run() {
@@ -59,22 +56,6 @@ public class ServerPortalWorker extends Thread implements Comparable<ServerPorta
 		return sp;
 	}
 
-	public void incrNumOfSessions() {
-		num_of_sessions.incrementAndGet();
-		System.out.println("Server worker number " + (portal_index + 1) + " got new Session, now handling " + num_of_sessions + " sessions");
-	}
-
-	private void decrNumOfSessions() {
-		num_of_sessions.decrementAndGet();
-		System.out.println("Server worker number " + (portal_index + 1) + " disconnected from a Session, now handling " + num_of_sessions
-		        + " sessions");
-		DataPathTestServer.updateWorkers(this); 
-	}
-
-	public void sessionClosed() {
-		decrNumOfSessions();
-	}
-	
 	// callbacks for the Server's event queue handler
 	public class ServerEQHCallbacks implements EventQueueHandler.Callbacks {
 		//this method should return an unbinded MsgPool.  
@@ -82,15 +63,5 @@ public class ServerPortalWorker extends Thread implements Comparable<ServerPorta
 				System.out.println("Messages in Client's message pool ran out, Aborting test");
 				return null;
 			}
-	}	
-	
-	
-	@Override
-	public int compareTo(ServerPortalWorker s) {
-		if (this.num_of_sessions.get() <= s.num_of_sessions.get()) {
-			return -1;
-		} else {
-			return 1;
-		}
 	}
 }
\ No newline at end of file
@@ -17,6 +17,8 @@
 
 package com.mellanox.jxio.tests.benchmarks;
 
+import java.nio.ByteBuffer;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -24,22 +26,39 @@ import com.mellanox.jxio.EventName;
 import com.mellanox.jxio.EventReason;
 import com.mellanox.jxio.Msg;
 import com.mellanox.jxio.ServerSession;
+import com.mellanox.jxio.codec.MsgCompressor;
 
 public class ServerSessionHandle {
 
 	// the server session
 	private final ServerSession ss;
 
-	// the thread that will run the server portal
-	private final ServerPortalWorker spw;
+	// payload compression, null unless the client asked for it
+	private final MsgCompressor compressor;
+	private final ByteBuffer request;
+	private final ByteBuffer payload;
 
 	// logger
 	private final static Log LOG = LogFactory.getLog(ServerSessionHandle.class.getCanonicalName());
 
 	// cTor
-	public ServerSessionHandle(ServerSession.SessionKey sesKey, ServerPortalWorker s) {
+	public ServerSessionHandle(ServerSession.SessionKey sesKey) {
+		this(sesKey, -1, 0, 0);
+	}
+
+	public ServerSessionHandle(ServerSession.SessionKey sesKey, int compress_threshold, int inMsg_size, int outMsg_size) {
+		if (MsgCompressor.isRequested(sesKey.getUri())) {
+			compressor = new MsgCompressor(sesKey.getUri(), (compress_threshold >= 0) ? compress_threshold
+			        : MsgCompressor.DEFAULT_THRESHOLD);
+			request = ByteBuffer.allocateDirect(inMsg_size);
+			payload = ByteBuffer.allocateDirect(outMsg_size);
+			DataPathTest.fillPayload(payload);
+		} else {
+			compressor = null;
+			request = null;
+			payload = null;
+		}
 		ss = new ServerSession(sesKey, new SessionServerCallbacks());
-		spw = s;
 	}
 
 	public ServerSession getSession() {
@@ -51,18 +70,27 @@ public class ServerSessionHandle {
 
 		public void onRequest(Msg msg) {
 			// answer back with the same message that was received
-			msg.getOut().position(msg.getOut().capacity()); // simulate 'out_msgSize' was written into buffer
+			if (compressor == null) {
+				msg.getOut().position(msg.getOut().capacity()); // simulate 'out_msgSize' was written into buffer
+			} else if (!compressor.acceptHandshake(msg)) {
+				// a data request: the handshake the client confirms compression with is answered as it is
+				request.clear();
+				compressor.decompress(msg, request);
+				payload.clear();
+				compressor.compress(payload, msg);
+			}
 			if (!ss.sendResponse(msg)) {
 				LOG.error("request was not handled");
 			}
 		}
 
+		public void onOneWay(Msg msg) {
+			// nothing to answer
+		}
+
 		public void onSessionEvent(EventName session_event, EventReason reason) {
 			LOG.debug("got event " + session_event.toString() + ", the reason is " + reason.toString());
 			System.out.println("got event " + session_event.toString() + ", the reason is " + reason.toString());
-			if (session_event == EventName.SESSION_CLOSED) {
-				spw.sessionClosed();
-			}
 		}
 
 		public boolean onMsgError(Msg msg, EventReason reason) {
@@ -160,6 +160,10 @@ public class ServerSessionPlayer {
 			}
 		}
 
+		public void onOneWay(Msg msg) {
+			LOG.error(outer.toString() + ": unexpected one way msg " + msg);
+		}
+
 		public boolean onMsgError(Msg msg, EventReason reason) {
 			if (outer.server.getIsClosing()){
 				LOG.debug(outer.toString() + ": MsgError in msg " + msg.toString() + " reason='" + reason + "'");
@@ -45,12 +45,14 @@ def usage():
     print "\t-u  | --cpu			core number or range of cores to run the threads on (default is 1)"  
     print "\t-f  | --file			path to results file (client only, default is no file for writing)"  
     print "\t-r  | --runs			number of runs of the test (client only, default is 50)"
+    print "\t-z  | --compress		LZ4 compress payloads of at least this size in Bytes (give to both client and server)"
     print "examples :"
     print "\ttests/runJBenchmarkTest.py -c -a 1.1.1.1 -p 2222 -t 2 -i 0 -o 64 -m 2 -u 12 -f /tmp/results.csv -r 10"  
     print "\ttests/runJBenchmarkTest.py -s -a 1.1.1.1 -p 2222 -t 2 -i 64 -o 0 -m 2 -u 12"   
+    print "\ttests/runJBenchmarkTest.py -c -a 1.1.1.1 -p 2222 -i 0 -o 65536 -z 1024 -r 10"
 
 
-options, remainder = getopt.gnu_getopt(sys.argv[1:], 'hcsa:p:t:i:o:m:u:f:r:', ['help',
+options, remainder = getopt.gnu_getopt(sys.argv[1:], 'hcsa:p:t:i:o:m:u:f:r:z:', ['help',
                                                                 'address=',
                                                                 'port=',
                                                                 'thread=',
@@ -59,7 +61,8 @@ options, remainder = getopt.gnu_getopt(sys.argv[1:], 'hcsa:p:t:i:o:m:u:f:r:', ['
                                                                 'memory=',
                                                                 'cpu=',
                                                                 'file=',
-                                                                'runs='])
+                                                                'runs=',
+                                                                'compress='])
                                                                 
 test_type = None
 address = None
@@ -70,6 +73,7 @@ memory = 2
 core = 1
 file = "no_file"
 runs = 50
+compress = ""
 
 in1 = None
 out1 = None
@@ -107,6 +111,8 @@ for opt, arg in options:
             in1 = arg
         elif opt in ('-o', '--out'):
             out1 = arg
+        elif opt in ('-z', '--compress'):
+            compress = "compress=%s" % arg
         else:
             assert False, "unhandled option"
             
@@ -148,11 +154,11 @@ os.system(cmd)
 
 if(test_type == "server"):
 	print "\n------ Running Server Test Application -----"
-	cmd = 'taskset -c %s java -Dlog4j.configuration=com/mellanox/jxio/tests/log4j.properties.jxiotest -cp "%s:../bin/jxio.jar:../src/lib/commons-logging.jar:../src/lib/log4j-1.2.15.jar:." %s com.mellanox.jxio.tests.benchmarks.DataPathTestServer  %s %s %s %s %s %s' % (core, cob_jar_path, cov_command, address, port, thread, in1, out1, memory)
+	cmd = 'taskset -c %s java -Dlog4j.configuration=com/mellanox/jxio/tests/log4j.properties.jxiotest -cp "%s:../bin/jxio.jar:../src/lib/commons-logging.jar:../src/lib/log4j-1.2.15.jar:." %s com.mellanox.jxio.tests.benchmarks.DataPathTestServer  %s %s %s %s %s %s %s' % (core, cob_jar_path, cov_command, address, port, thread, in1, out1, memory, compress)
 	os.system(cmd)
 else:
 	print "\n------ Running Client Test Application -----"
-	cmd = 'taskset -c %s java -Dlog4j.configuration=com/mellanox/jxio/tests/log4j.properties.jxiotest -cp "%s:../bin/jxio.jar:../src/lib/commons-logging.jar:../src/lib/log4j-1.2.15.jar:." %s com.mellanox.jxio.tests.benchmarks.DataPathTestClient  %s %s %s %s %s %s %s %s' % (core, cob_jar_path, cov_command, address, port, thread, in1, out1, memory, file, runs)
+	cmd = 'taskset -c %s java -Dlog4j.configuration=com/mellanox/jxio/tests/log4j.properties.jxiotest -cp "%s:../bin/jxio.jar:../src/lib/commons-logging.jar:../src/lib/log4j-1.2.15.jar:." %s com.mellanox.jxio.tests.benchmarks.DataPathTestClient  %s %s %s %s %s %s %s %s %s' % (core, cob_jar_path, cov_command, address, port, thread, in1, out1, memory, file, runs, compress)
 	os.system(cmd)
    
 sys.exit(0)